@@ -0,0 +1,101 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.benchmark;
+
+import com.github.beelzebu.coins.common.messaging.MessageCodec;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link MessageCodec} with the json messages sent before it, run with {@code mvn -P benchmark package} and
+ * {@code java -jar benchmark/target/Coins-Benchmarks.jar}.
+ *
+ * @author Beelzebu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    @Param({"user", "multiplier", "other"})
+    public String message;
+    private final Gson gson = new Gson();
+    private final MessageCodec codec = new MessageCodec(true);
+    private JsonObject object;
+    private byte[] json;
+    private byte[] binary;
+
+    @Setup
+    public void setup() {
+        String value;
+        switch (message) {
+            case "user":
+                value = "{\"uuid\":\"" + UUID.randomUUID() + "\",\"coins\":1234.5,\"messageid\":\"" + UUID.randomUUID() + "\",\"type\":\"USER_UPDATE\"}";
+                break;
+            case "multiplier":
+                value = "{\"multiplier\":{\"server\":\"lobby\",\"id\":12,\"amount\":2,\"minutes\":30,\"endtime\":1700000000000,\"enabler\":\"Beelzebu\",\"enableruuid\":\"" + UUID.randomUUID() + "\",\"type\":\"SERVER\"},\"messageid\":\"" + UUID.randomUUID() + "\",\"type\":\"MULTIPLIER_UPDATE\"}";
+                break;
+            default:
+                value = "{\"server\":\"lobby\",\"messageid\":\"" + UUID.randomUUID() + "\",\"type\":\"GET_MULTIPLIERS\"}";
+                break;
+        }
+        object = new JsonParser().parse(value).getAsJsonObject();
+        json = value.getBytes(StandardCharsets.UTF_8);
+        binary = codec.encode(object);
+    }
+
+    @Benchmark
+    public byte[] encodeJson() {
+        return object.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return codec.encode(object);
+    }
+
+    @Benchmark
+    public JsonObject decodeJson() {
+        return gson.fromJson(new String(json, StandardCharsets.UTF_8), JsonObject.class);
+    }
+
+    @Benchmark
+    public List<JsonObject> decodeBinary() {
+        return codec.decode(binary);
+    }
+}
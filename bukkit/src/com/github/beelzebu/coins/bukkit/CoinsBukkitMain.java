@@ -30,6 +30,7 @@ import com.github.beelzebu.coins.bukkit.messaging.BukkitMessaging;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import org.bukkit.Bukkit;
 import org.bukkit.command.CommandSender;
@@ -162,10 +163,14 @@ public class CoinsBukkitMain extends JavaPlugin implements CoinsBootstrap {
     @NotNull
     @Override
     public List<String> getPermissions(@NotNull UUID uuid) {
-        List<String> permissions = new ArrayList<>();
         Player player = Bukkit.getPlayer(uuid);
-        if (player != null) {
-            player.getEffectivePermissions().stream().map(PermissionAttachmentInfo::getPermission).forEach(permissions::add);
+        if (player == null) {
+            return new ArrayList<>();
+        }
+        Set<PermissionAttachmentInfo> effectivePermissions = player.getEffectivePermissions();
+        List<String> permissions = new ArrayList<>(effectivePermissions.size());
+        for (PermissionAttachmentInfo permission : effectivePermissions) {
+            permissions.add(permission.getPermission());
         }
         return permissions;
     }
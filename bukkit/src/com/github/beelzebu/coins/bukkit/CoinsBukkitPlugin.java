@@ -118,7 +118,7 @@ public class CoinsBukkitPlugin extends CommonCoinsPlugin<CoinsBukkitMain> {
         // Hook placeholders
         if (Bukkit.getPluginManager().isPluginEnabled("PlaceholderAPI") && !placeholderapi) {
             getBootstrap().log("PlaceholderAPI found, hooking into it.");
-            new CoinsPlaceholders().register();
+            new CoinsPlaceholders(this).register();
             new MultipliersPlaceholders(this).register();
             placeholderapi = true;
         }
@@ -21,23 +21,36 @@ package com.github.beelzebu.coins.bukkit.command;
 import com.github.beelzebu.coins.api.CoinsAPI;
 import com.github.beelzebu.coins.api.CoinsResponse;
 import com.github.beelzebu.coins.api.CoinsUser;
-import com.github.beelzebu.coins.api.Multiplier;
-import com.github.beelzebu.coins.api.MultiplierData;
+import com.github.beelzebu.coins.api.cache.CacheProvider;
 import com.github.beelzebu.coins.api.executor.Executor;
 import com.github.beelzebu.coins.api.executor.ExecutorManager;
 import com.github.beelzebu.coins.api.storage.StorageType;
 import com.github.beelzebu.coins.api.utils.StringUtils;
 import com.github.beelzebu.coins.bukkit.CoinsBukkitPlugin;
 import com.github.beelzebu.coins.bukkit.importer.BukkitImporter;
+import com.github.beelzebu.coins.bukkit.messaging.BukkitMessaging;
 import com.github.beelzebu.coins.bukkit.utils.CoinsEconomy;
 import com.github.beelzebu.coins.bukkit.utils.CompatUtils;
+import com.github.beelzebu.coins.common.balance.RemoteBalanceClient;
+import com.github.beelzebu.coins.common.cache.EffectiveMultiplierCache;
+import com.github.beelzebu.coins.common.cache.MultiplierScheduler;
+import com.github.beelzebu.coins.common.cache.NearCache;
+import com.github.beelzebu.coins.common.cache.RedisBalanceCommitter;
+import com.github.beelzebu.coins.common.cache.RedisCache;
+import com.github.beelzebu.coins.common.concurrent.CoinsExecutor;
 import com.github.beelzebu.coins.common.importer.ImportManager;
 import com.github.beelzebu.coins.common.importer.PluginToImport;
+import com.github.beelzebu.coins.common.messaging.MessageBatcher;
+import com.github.beelzebu.coins.common.messaging.OutboundQueue;
+import com.github.beelzebu.coins.common.messaging.RedisStreamMessaging;
+import com.github.beelzebu.coins.common.storage.BalanceLedger;
+import com.github.beelzebu.coins.common.storage.CommonSQLDatabase;
 import java.text.DecimalFormat;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.OptionalDouble;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 import org.bukkit.Bukkit;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.ConsoleCommandSender;
@@ -62,6 +75,7 @@ public class CoinsCommand extends AbstractCoinsCommand {
         return true;
     }
 
+    // runs in the server thread, only storage work is sent to the executor
     private void execute(@NotNull CommandSender sender, @NotNull String[] args, @NotNull String locale) {
         if (getPermission() != null && !sender.hasPermission(getPermission())) {
             sender.sendMessage(plugin.getString("Errors.No permissions", locale));
@@ -69,7 +83,7 @@ public class CoinsCommand extends AbstractCoinsCommand {
         }
         if (args.length == 0) {
             if (sender instanceof Player) {
-                sender.sendMessage(plugin.getString("Coins.Own coins", locale).replace("%coins%", CoinsAPI.getCoinsString(sender.getName())));
+                async(sender, locale, () -> sender.sendMessage(plugin.getString("Coins.Own coins", locale).replace("%coins%", CoinsAPI.getCoinsString(sender.getName()))));
             } else {
                 sender.sendMessage(plugin.getString("Errors.Console", locale));
             }
@@ -90,20 +104,49 @@ public class CoinsCommand extends AbstractCoinsCommand {
         } else if (args[0].equalsIgnoreCase("top") && args.length == 1) {
             top(sender, locale);
         } else if (args[0].equalsIgnoreCase("import")) {
-            importer(sender, args);
+            async(sender, locale, () -> importer(sender, args));
         } else if (args[0].equalsIgnoreCase("importdb")) {
-            importDB(sender, args);
-        } else if (args[0].equalsIgnoreCase("reload")) {
+            async(sender, locale, () -> importDB(sender, args));
+        } else if (args[0].equalsIgnoreCase("convertbalances")) {
+            async(sender, locale, () -> convertBalances(sender));
+        } else if (args[0].equalsIgnoreCase("reload")) { // reload hooks into vault, it must be done in the main thread
             reload(sender);
         } else if (args[0].equalsIgnoreCase("about")) {
-            about(sender);
-        } else if (args.length == 1 && CoinsAPI.isindb(args[0])) {
+            boolean admin = sender.hasPermission("coins.admin.info") || sender.getName().equals("Beelzebu");
+            async(sender, locale, () -> about(sender, admin));
+        } else if (args.length == 1) {
             target(sender, args, locale);
         } else {
             sender.sendMessage(plugin.getString("Errors.Unknown command", locale));
         }
     }
 
+    /**
+     * Run storage work for a command in the plugin executor, the sender is told if it can't run or fails.
+     *
+     * @param sender sender of the command.
+     * @param lang   language of the sender.
+     * @param task   work to run.
+     */
+    private void async(@NotNull CommandSender sender, @NotNull String lang, @NotNull Runnable task) {
+        plugin.getAsyncAPI().runAsync(task).whenComplete((ignored, ex) -> {
+            if (ex == null) {
+                return;
+            }
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            if (cause instanceof RemoteBalanceClient.UnknownResultException) {
+                plugin.log(cause.getMessage());
+                sender.sendMessage(plugin.getString("Errors.Unknown Result", lang));
+            } else if (cause instanceof RejectedExecutionException) {
+                sender.sendMessage(plugin.getString("Errors.Busy", lang));
+            } else {
+                plugin.log("An error has occurred executing a command for " + sender.getName());
+                plugin.debug(cause);
+                sender.sendMessage(plugin.getString("Errors.Database", lang));
+            }
+        });
+    }
+
     private void help(@NotNull CommandSender sender, @NotNull String lang) {
         plugin.getMessages(lang).getStringList("Help.User").forEach(line -> sender.sendMessage(StringUtils.rep(line)));
         if (sender.hasPermission(getPermission() + ".admin.help")) {
@@ -112,11 +155,16 @@ public class CoinsCommand extends AbstractCoinsCommand {
     }
 
     private void target(@NotNull CommandSender sender, String[] args, @NotNull String lang) {
-        if (!sender.hasPermission(getPermission() + ".target")) {
-            sender.sendMessage(plugin.getString("Errors.No permissions", lang));
-            return;
-        }
-        sender.sendMessage(plugin.getString("Coins.Get", lang).replace("%coins%", CoinsAPI.getCoinsString(args[0])).replace("%target%", args[0]));
+        boolean allowed = sender.hasPermission(getPermission() + ".target");
+        async(sender, lang, () -> {
+            if (!CoinsAPI.isindb(args[0])) {
+                sender.sendMessage(plugin.getString("Errors.Unknown command", lang));
+            } else if (!allowed) {
+                sender.sendMessage(plugin.getString("Errors.No permissions", lang));
+            } else {
+                sender.sendMessage(plugin.getString("Coins.Get", lang).replace("%coins%", CoinsAPI.getCoinsString(args[0])).replace("%target%", args[0]));
+            }
+        });
     }
 
     private void pay(@NotNull CommandSender sender, @NotNull String[] args, @NotNull String lang) {
@@ -129,12 +177,19 @@ public class CoinsCommand extends AbstractCoinsCommand {
             return;
         }
         if (sender instanceof Player && args.length == 3 && !args[1].equalsIgnoreCase(sender.getName())) {
-            if (CoinsAPI.isindb(args[1])) {
-                double coins = Double.parseDouble(args[2]);
-                if (coins > 0) {
-                    CoinsResponse response = CoinsAPI.payCoins(((Player) sender).getUniqueId(), CoinsAPI.getPlugin().getUniqueId(args[1], false), coins);
-                    response.ifSuccess(r -> {
-                        Player target = Bukkit.getPlayer(args[1]);
+            UUID payer = ((Player) sender).getUniqueId();
+            double coins = Double.parseDouble(args[2]);
+            async(sender, lang, () -> {
+                UUID targetUniqueId = plugin.getUniqueId(args[1], false);
+                if (targetUniqueId == null || !CoinsAPI.isindb(targetUniqueId)) {
+                    sender.sendMessage(plugin.getString("Errors.Unknown player", lang));
+                } else if (coins <= 0) {
+                    sender.sendMessage(plugin.getString("Errors.No Zero", lang));
+                } else if (!plugin.getBalanceService().payCoins(payer, targetUniqueId, coins)) {
+                    sender.sendMessage(plugin.getString("Errors.No Coins", lang));
+                } else {
+                    plugin.getBootstrap().runSync(() -> {
+                        Player target = Bukkit.getPlayer(targetUniqueId);
                         if (!plugin.getString("Coins.Pay", lang).equals("")) {
                             sender.sendMessage(plugin.getString("Coins.Pay", lang).replace("%coins%", new DecimalFormat("#.#").format(coins)).replace("%target%", target != null ? target.getName() : args[1]));
                         }
@@ -142,13 +197,8 @@ public class CoinsCommand extends AbstractCoinsCommand {
                             target.sendMessage(plugin.getString("Coins.Pay target", CompatUtils.getLocale(target)).replace("%coins%", df.format(coins)).replace("%from%", sender.getName()));
                         }
                     });
-                    response.ifFailed(r -> sender.sendMessage(r.getMessage(CompatUtils.getLocale((Player) sender))));
-                } else {
-                    sender.sendMessage(plugin.getString("Errors.No Zero", lang));
                 }
-            } else {
-                sender.sendMessage(plugin.getString("Errors.Unknown player", lang));
-            }
+            });
             return;
         }
         if (!(sender instanceof Player)) {
@@ -165,36 +215,34 @@ public class CoinsCommand extends AbstractCoinsCommand {
             sender.sendMessage(plugin.getString("Help.Give Usage", lang));
             return;
         }
-        UUID targetUniqueId = plugin.getUniqueId(args[1], false);
-        if (targetUniqueId == null || !CoinsAPI.isindb(targetUniqueId)) {
-            sender.sendMessage(plugin.getString("Errors.Unknown player", lang).replace("%target%", args[1]));
-            return;
-        }
         double coins = Double.parseDouble(args[2]);
         boolean multiply = args.length == 4 && getBoolean(args[3].toLowerCase());
-
-        CoinsResponse response = CoinsAPI.addCoins(targetUniqueId, coins, multiply);
-        response.ifSuccess(r -> {
-            String multiplierFormat = "";
-            Player target = Bukkit.getPlayer(targetUniqueId);
-            String targetName = target != null ? target.getName() : args[1];
-            if (!plugin.getString("Coins.Give", lang).equals("")) {
-                sender.sendMessage(plugin.getString("Coins.Give", lang).replace("%coins%", df.format(coins)).replace("%target%", targetName));
+        async(sender, lang, () -> {
+            UUID targetUniqueId = plugin.getUniqueId(args[1], false);
+            if (targetUniqueId == null || !CoinsAPI.isindb(targetUniqueId) || !plugin.getBalanceService().addCoins(targetUniqueId, coins, multiply).isPresent()) {
+                sender.sendMessage(plugin.getString("Errors.Unknown player", lang).replace("%target%", args[1]));
+                return;
             }
-            if (target != null && target.isOnline()) {
-                if (multiply) {
-                    Collection<Multiplier> usableMultipliers = CoinsAPI.getUsableMultipliers(targetUniqueId);
-                    int multiplyAmmount = usableMultipliers.stream().mapToInt(multiplier -> multiplier.getData().getAmount()).sum();
-                    if (multiplyAmmount >= 0) {
-                        multiplierFormat = plugin.getString("Multipliers.Format", CompatUtils.getLocale(target)).replace("%multiplier%", df.format(multiplyAmmount)).replace("%enabler%", CoinsAPI.getUsableMultipliers(target.getUniqueId()).stream().map(Multiplier::getData).map(MultiplierData::getEnablerName).collect(Collectors.joining(", ")));
-                    }
+            plugin.getBootstrap().runSync(() -> {
+                String multiplierFormat = "";
+                Player target = Bukkit.getPlayer(targetUniqueId);
+                String targetName = target != null ? target.getName() : args[1];
+                if (!plugin.getString("Coins.Give", lang).equals("")) {
+                    sender.sendMessage(plugin.getString("Coins.Give", lang).replace("%coins%", df.format(coins)).replace("%target%", targetName));
                 }
-                if (!plugin.getString("Coins.Give target", CompatUtils.getLocale(target)).equals("")) {
-                    target.sendMessage(plugin.getString("Coins.Give target", CompatUtils.getLocale(target)).replace("%coins%", df.format(coins)).replace("%multiplier_format%", multiplierFormat));
+                if (target != null && target.isOnline()) {
+                    if (multiply) {
+                        EffectiveMultiplierCache.EffectiveMultiplier effective = plugin.getEffectiveMultipliers().get(targetUniqueId);
+                        if (effective.getAmount() >= 0) {
+                            multiplierFormat = plugin.getString("Multipliers.Format", CompatUtils.getLocale(target)).replace("%multiplier%", df.format(effective.getAmount())).replace("%enabler%", effective.getEnablers());
+                        }
+                    }
+                    if (!plugin.getString("Coins.Give target", CompatUtils.getLocale(target)).equals("")) {
+                        target.sendMessage(plugin.getString("Coins.Give target", CompatUtils.getLocale(target)).replace("%coins%", df.format(coins)).replace("%multiplier_format%", multiplierFormat));
+                    }
                 }
-            }
+            });
         });
-        response.ifFailed(r -> sender.sendMessage(r.getMessage(sender instanceof Player ? CompatUtils.getLocale(((Player) sender)) : "")));
     }
 
     private void take(@NotNull CommandSender sender, @NotNull String[] args, @NotNull String lang) {
@@ -206,21 +254,24 @@ public class CoinsCommand extends AbstractCoinsCommand {
             sender.sendMessage(plugin.getString("Help.Take Usage", lang));
             return;
         }
-        if (!CoinsAPI.isindb(args[1])) {
-            sender.sendMessage(plugin.getString("Errors.Unknown player", lang).replace("%target%", args[1]));
+        if (args.length != 3) {
             return;
         }
-        double currentCoins = CoinsAPI.getCoins(args[1]);
         double coins = Double.parseDouble(args[2]);
-        if (currentCoins < coins) {
-            sender.sendMessage(plugin.getString("Errors.No Negative", lang));
-            return;
-        }
-        double finalCoins = currentCoins - coins;
-        if (args.length == 3) {
-            Player target = Bukkit.getPlayer(args[1]);
-            CoinsResponse response = CoinsAPI.takeCoins(args[1], coins);
-            response.ifSuccess(r -> {
+        async(sender, lang, () -> {
+            UUID targetUniqueId = plugin.getUniqueId(args[1], false);
+            if (targetUniqueId == null || !CoinsAPI.isindb(targetUniqueId)) {
+                sender.sendMessage(plugin.getString("Errors.Unknown player", lang).replace("%target%", args[1]));
+                return;
+            }
+            OptionalDouble balance = plugin.getBalanceService().takeCoins(targetUniqueId, coins);
+            if (!balance.isPresent()) {
+                sender.sendMessage(plugin.getString("Errors.No Negative", lang));
+                return;
+            }
+            double finalCoins = balance.getAsDouble();
+            plugin.getBootstrap().runSync(() -> {
+                Player target = Bukkit.getPlayer(targetUniqueId);
                 if (!plugin.getString("Coins.Take", lang).equals("")) {
                     sender.sendMessage(plugin.getString("Coins.Take", lang).replace("%coins%", df.format(coins)).replace("%newcoins%", df.format(finalCoins)).replace("%target%", args[1]));
                 }
@@ -228,8 +279,7 @@ public class CoinsCommand extends AbstractCoinsCommand {
                     target.sendMessage(plugin.getString("Coins.Take target", CompatUtils.getLocale(target)).replace("%coins%", df.format(finalCoins)));
                 }
             });
-            response.ifFailed(r -> sender.sendMessage(sender instanceof Player ? CompatUtils.getLocale(((Player) sender)) : ""));
-        }
+        });
     }
 
     private void reset(@NotNull CommandSender sender, @NotNull String[] args, @NotNull String lang) {
@@ -241,21 +291,23 @@ public class CoinsCommand extends AbstractCoinsCommand {
             sender.sendMessage(plugin.getString("Help.Reset Usage", lang));
             return;
         }
-        if (!CoinsAPI.isindb(args[1])) {
-            sender.sendMessage(plugin.getString("Errors.Unknown player", lang).replace("%target%", args[1]));
-            return;
-        }
-        CoinsResponse response = CoinsAPI.resetCoins(args[1]);
-        response.ifSuccess(r -> {
-            Player target = Bukkit.getPlayer(args[1]);
-            if (!plugin.getString("Coins.Reset", lang).equals("")) {
-                sender.sendMessage(plugin.getString("Coins.Reset", lang).replace("%target%", args[1]));
-            }
-            if (target != null && !plugin.getString("Coins.Reset target", CompatUtils.getLocale(target)).equals("")) {
-                target.sendMessage(plugin.getString("Coins.Reset target", CompatUtils.getLocale(target)));
+        async(sender, lang, () -> {
+            if (!CoinsAPI.isindb(args[1])) {
+                sender.sendMessage(plugin.getString("Errors.Unknown player", lang).replace("%target%", args[1]));
+                return;
             }
+            CoinsResponse response = CoinsAPI.resetCoins(args[1]);
+            response.ifSuccess(r -> plugin.getBootstrap().runSync(() -> {
+                Player target = Bukkit.getPlayer(args[1]);
+                if (!plugin.getString("Coins.Reset", lang).equals("")) {
+                    sender.sendMessage(plugin.getString("Coins.Reset", lang).replace("%target%", args[1]));
+                }
+                if (target != null && !plugin.getString("Coins.Reset target", CompatUtils.getLocale(target)).equals("")) {
+                    target.sendMessage(plugin.getString("Coins.Reset target", CompatUtils.getLocale(target)));
+                }
+            }));
+            response.ifFailed(r -> sender.sendMessage(r.getMessage(lang)));
         });
-        response.ifFailed(r -> sender.sendMessage(r.getMessage(sender instanceof Player ? CompatUtils.getLocale((Player) sender) : "")));
     }
 
     private void set(@NotNull CommandSender sender, @NotNull String[] args, @NotNull String lang) {
@@ -267,24 +319,26 @@ public class CoinsCommand extends AbstractCoinsCommand {
             sender.sendMessage(plugin.getString("Help.Set Usage", lang));
             return;
         }
-        if (args.length == 3) {
-            if (args[0].equalsIgnoreCase("set")) {
-                double coins = Double.parseDouble(args[2]);
-                if (CoinsAPI.isindb(args[1])) {
-                    CoinsAPI.setCoins(args[1], coins);
-                    if (!plugin.getString("Coins.Set", lang).equals("")) {
-                        sender.sendMessage(plugin.getString("Coins.Set", lang).replace("%target%", args[1]).replace("%coins%", df.format(coins)));
-                    }
-                } else {
-                    sender.sendMessage(plugin.getString("Errors.Unknown player", lang).replace("%target%", args[1]));
-                    return;
-                }
+        if (args.length != 3) {
+            return;
+        }
+        double coins = Double.parseDouble(args[2]);
+        async(sender, lang, () -> {
+            if (!CoinsAPI.isindb(args[1])) {
+                sender.sendMessage(plugin.getString("Errors.Unknown player", lang).replace("%target%", args[1]));
+                return;
+            }
+            CoinsAPI.setCoins(args[1], coins);
+            if (!plugin.getString("Coins.Set", lang).equals("")) {
+                sender.sendMessage(plugin.getString("Coins.Set", lang).replace("%target%", args[1]).replace("%coins%", df.format(coins)));
+            }
+            plugin.getBootstrap().runSync(() -> {
                 Player target = Bukkit.getPlayer(args[1]);
                 if (target != null && !plugin.getString("Coins.Set target", CompatUtils.getLocale(target)).equals("")) {
                     target.sendMessage(plugin.getString("Coins.Set target", CompatUtils.getLocale(target)).replace("%coins%", args[2]));
                 }
-            }
-        }
+            });
+        });
     }
 
     private void top(@NotNull CommandSender sender, @NotNull String lang) {
@@ -292,18 +346,23 @@ public class CoinsCommand extends AbstractCoinsCommand {
             sender.sendMessage(plugin.getString("Errors.No permissions", lang));
             return;
         }
-        sender.sendMessage(plugin.getString("Coins.Top.Header", lang));
-        int i = 0;
-        for (CoinsUser coinsTopEntry : CoinsAPI.getTopPlayers(10)) {
-            if (coinsTopEntry == null) {
-                continue;
-            }
-            Player player = Bukkit.getPlayer(coinsTopEntry.getUniqueId());
-            sender.sendMessage(plugin.getString("Coins.Top.List", lang)
-                    .replace("%top%", Integer.toString(++i))
-                    .replace("%player%", player != null ? player.getName() : coinsTopEntry.getName())
-                    .replace("%coins%", df.format(coinsTopEntry.getCoins())));
-        }
+        async(sender, lang, () -> {
+            CoinsUser[] top = plugin.getLeaderboard().getTop(10);
+            plugin.getBootstrap().runSync(() -> {
+                sender.sendMessage(plugin.getString("Coins.Top.Header", lang));
+                int i = 0;
+                for (CoinsUser coinsTopEntry : top) {
+                    if (coinsTopEntry == null) {
+                        continue;
+                    }
+                    Player player = Bukkit.getPlayer(coinsTopEntry.getUniqueId());
+                    sender.sendMessage(plugin.getString("Coins.Top.List", lang)
+                            .replace("%top%", Integer.toString(++i))
+                            .replace("%player%", player != null ? player.getName() : coinsTopEntry.getName())
+                            .replace("%coins%", df.format(coinsTopEntry.getCoins())));
+                }
+            });
+        });
     }
 
     private void executor(CommandSender sender, String[] args, @NotNull String lang) {
@@ -311,14 +370,13 @@ public class CoinsCommand extends AbstractCoinsCommand {
             Executor ex = ExecutorManager.getExecutor(args[1]);
             if (ex == null) {
                 sender.sendMessage(plugin.getString("Errors.No Execute", lang));
-            } else {
-                if (ex.getCost() > 0) {
-                    if (CoinsAPI.getCoins(((Player) sender).getUniqueId()) >= ex.getCost()) {
-                        CoinsAPI.takeCoins(((Player) sender).getUniqueId(), ex.getCost());
-                    } else {
-                        sender.sendMessage(plugin.getString("Errors.No Coins", lang));
-                        return;
-                    }
+                return;
+            }
+            UUID uuid = ((Player) sender).getUniqueId();
+            async(sender, lang, () -> {
+                if (ex.getCost() > 0 && !plugin.getBalanceService().takeCoins(uuid, ex.getCost()).isPresent()) {
+                    sender.sendMessage(plugin.getString("Errors.No Coins", lang));
+                    return;
                 }
                 if (!ex.getCommands().isEmpty()) {
                     plugin.getBootstrap().runSync(() -> { // who knows ¯\_(ツ)_/¯
@@ -335,7 +393,7 @@ public class CoinsCommand extends AbstractCoinsCommand {
                         }
                     });
                 }
-            }
+            });
         } else {
             sender.sendMessage(plugin.getString("Errors.Console", lang));
         }
@@ -391,6 +449,22 @@ public class CoinsCommand extends AbstractCoinsCommand {
         }
     }
 
+    private void convertBalances(CommandSender sender) {
+        if (!(sender instanceof ConsoleCommandSender)) {
+            sender.sendMessage(StringUtils.rep("%prefix% &cThis command must be executed from the console."));
+            return;
+        }
+        if (!(plugin.getStorageProvider() instanceof CommonSQLDatabase) || !((CommonSQLDatabase) plugin.getStorageProvider()).hasBalanceMismatch()) {
+            sender.sendMessage(StringUtils.rep("%prefix% Balances in the database already match the fixed point settings."));
+            return;
+        }
+        if (((CommonSQLDatabase) plugin.getStorageProvider()).convertBalances()) {
+            sender.sendMessage(StringUtils.rep("%prefix% Balances were converted, restart the server to enable the API."));
+        } else {
+            sender.sendMessage(StringUtils.rep("%prefix% &cBalances couldn't be converted, check the logs."));
+        }
+    }
+
     private void reload(@NotNull CommandSender sender) {
         if (sender.hasPermission(getPermission() + ".admin.reload")) {
             if (plugin.getCoinsEconomy() != null) {
@@ -412,18 +486,50 @@ public class CoinsCommand extends AbstractCoinsCommand {
         }
     }
 
-    private void about(@NotNull CommandSender sender) {
+    private void about(@NotNull CommandSender sender, boolean admin) {
         sender.sendMessage(StringUtils.rep("%prefix% Coins plugin by Beelzebu, plugin info:"));
         sender.sendMessage("");
         sender.sendMessage(StringUtils.rep(" &cAPI Version:&7 " + CoinsAPI.API_VERSION));
         sender.sendMessage(StringUtils.rep(" &cVersion:&7 " + plugin.getBootstrap().getVersion()));
-        if (sender.hasPermission("coins.admin.info") || sender.getName().equals("Beelzebu")) {
+        if (admin) {
             sender.sendMessage(StringUtils.rep(" &cExecutors:&7 " + ExecutorManager.getExecutors().size()));
             sender.sendMessage(StringUtils.rep(" &cStorage Type:&7 " + plugin.getStorageProvider().getStorageType()));
             sender.sendMessage(StringUtils.rep(" &cCache Type:&7 " + plugin.getCache().getCacheType()));
             sender.sendMessage(StringUtils.rep(" &cMessaging Service:&7 " + plugin.getMessagingService().getType()));
+            if (plugin.getMessagingService() instanceof BukkitMessaging) {
+                MessageBatcher batcher = ((BukkitMessaging) plugin.getMessagingService()).getBatcher();
+                sender.sendMessage(StringUtils.rep(" &cBalance updates:&7 " + batcher.getReceived() + " received, " + batcher.getSent() + " sent in " + batcher.getFrames() + " frames (" + batcher.getSaved() + " coalesced)"));
+                OutboundQueue queue = ((BukkitMessaging) plugin.getMessagingService()).getMessageQueue();
+                sender.sendMessage(StringUtils.rep(" &cQueued messages:&7 " + queue.getDepth() + " waiting, " + queue.getDeduplicated() + " replaced, " + queue.getDropped() + " dropped, " + queue.getExpired() + " expired"));
+                RemoteBalanceClient balanceClient = ((BukkitMessaging) plugin.getMessagingService()).getBalanceClient();
+                if (balanceClient != null) {
+                    sender.sendMessage(StringUtils.rep(" &cProxy balances:&7 " + balanceClient.getRequests() + " requests, " + balanceClient.getTimeouts() + " timeouts, " + balanceClient.getUnknown() + " unknown, " + balanceClient.getUnavailable() + " unavailable"));
+                }
+            }
+            if (plugin.getMessagingService() instanceof RedisStreamMessaging) {
+                RedisStreamMessaging streamMessaging = (RedisStreamMessaging) plugin.getMessagingService();
+                sender.sendMessage(StringUtils.rep(" &cMessage stream:&7 " + streamMessaging.getRead() + " read, " + streamMessaging.getAcknowledged() + " acknowledged (" + streamMessaging.getServerId() + ")"));
+            }
             sender.sendMessage(StringUtils.rep(" &cMultipliers in cache:&7 " + plugin.getCache().getMultipliers().size()));
             sender.sendMessage(StringUtils.rep(" &cPlayers in cache:&7 " + plugin.getCache().getPlayers().size()));
+            MultiplierScheduler scheduler = plugin.getMultiplierScheduler();
+            sender.sendMessage(StringUtils.rep(" &cMultiplier timers:&7 " + scheduler.getPendingTimers() + " pending, " + scheduler.getLastLag() + "ms lag (" + scheduler.getMaxLag() + "ms max)"));
+            CoinsExecutor executor = plugin.getExecutor();
+            sender.sendMessage(StringUtils.rep(" &cExecutor:&7 " + (executor.isVirtual() ? "virtual threads" : executor.getThreads() + " threads") + ", " + executor.getActive() + " active, " + executor.getQueueDepth() + " queued, " + executor.getRejected() + " rejected"));
+            BalanceLedger ledger = plugin.getStorageProvider() instanceof CommonSQLDatabase ? ((CommonSQLDatabase) plugin.getStorageProvider()).getLedger() : null;
+            if (ledger != null) {
+                sender.sendMessage(StringUtils.rep(" &cPending balances:&7 " + ledger.getQueueDepth()));
+                sender.sendMessage(StringUtils.rep(" &cBalance flushes:&7 " + ledger.getFlushes() + " (" + ledger.getFailedFlushes() + " failed, " + new DecimalFormat("#.##").format(ledger.getAverageFlushMillis()) + "ms avg, " + new DecimalFormat("#.##").format(ledger.getLastFlushMillis()) + "ms last)"));
+            }
+            if (plugin.getCache() instanceof NearCache) {
+                NearCache nearCache = (NearCache) plugin.getCache();
+                sender.sendMessage(StringUtils.rep(" &cNear cache:&7 " + nearCache.getHitCount() + " hits, " + nearCache.getMissCount() + " misses (" + new DecimalFormat("#.#").format(nearCache.getHitRate() * 100) + "% hit rate)"));
+            }
+            CacheProvider cache = plugin.getCache() instanceof NearCache ? ((NearCache) plugin.getCache()).getRedisCache() : plugin.getCache();
+            RedisBalanceCommitter committer = cache instanceof RedisCache ? ((RedisCache) cache).getCommitter() : null;
+            if (committer != null) {
+                sender.sendMessage(StringUtils.rep(" &cRedis balance committer:&7 " + (committer.isLockHolder() ? "active" : "standby") + " (" + committer.getCommitted() + " written)"));
+            }
             sender.sendMessage("");
         }
         sender.sendMessage(StringUtils.rep(" &cSource Code:&7 https://github.com/Beelzebu/Coins3"));
@@ -18,8 +18,8 @@
  */
 package com.github.beelzebu.coins.bukkit.importer;
 
-import com.github.beelzebu.coins.api.CoinsAPI;
 import com.github.beelzebu.coins.bukkit.CoinsBukkitPlugin;
+import com.github.beelzebu.coins.common.importer.ImportPipeline;
 import com.github.beelzebu.coins.common.importer.Importer;
 import com.github.beelzebu.coins.common.importer.PluginToImport;
 import com.twanl.tokens.commands.Commands;
@@ -77,6 +77,7 @@ public class BukkitImporter extends Importer {
             return;
         }
         plugin.log("Starting the migration of PlayerPoints data to coins, this may take a moment.");
+        ImportPipeline pipeline = new ImportPipeline(plugin, "PlayerPoints");
         FileConfiguration ppConfig = JavaPlugin.getPlugin(PlayerPoints.class).getConfig();
         String storageType = ppConfig.getString("storage");
         switch (storageType.toUpperCase()) {
@@ -88,7 +89,7 @@ public class BukkitImporter extends Importer {
                     } catch (Exception e) {
                         return null;
                     }
-                }).filter(Objects::nonNull).forEach(uuid -> migrate(uuid, "unknown_from_pp", storage.getDouble(uuid.toString(), 0)));
+                }).filter(Objects::nonNull).forEach(uuid -> pipeline.add(uuid, "unknown_from_pp", storage.getDouble(uuid.toString(), 0)));
                 break;
             case "SQLITE":
                 try {
@@ -96,12 +97,12 @@ public class BukkitImporter extends Importer {
                     Field f = sqliteStorage.getClass().getDeclaredField("sqlite");
                     f.setAccessible(true);
                     SQLite sqlite = (SQLite) f.get(sqliteStorage);
-                    try (PreparedStatement ps = sqlite.prepare("SELECT * FROM playerpoints;"); ResultSet res = ps.executeQuery()) {
+                    try (PreparedStatement ps = sqlite.prepare("SELECT playername, points FROM playerpoints;"); ResultSet res = ps.executeQuery()) {
                         while (res.next()) {
                             try {
                                 UUID uuid = UUID.fromString(res.getString("playername"));
                                 double balance = res.getInt("points");
-                                migrate(uuid, "unknown_from_pp", balance);
+                                pipeline.add(uuid, "unknown_from_pp", balance);
                             } catch (SQLException ex) {
                                 plugin.log("An error has occurred while migrating the data for: " + res.getString("playername"));
                                 plugin.debug(ex);
@@ -121,15 +122,18 @@ public class BukkitImporter extends Importer {
                     Field f = mysqlStorage.getClass().getDeclaredField("mysql");
                     f.setAccessible(true);
                     MySQL mysql = (MySQL) f.get(mysqlStorage);
-                    try (PreparedStatement ps = mysql.prepare("SELECT * FROM " + ppConfig.getString("mysql.table")); ResultSet res = ps.executeQuery()) {
-                        while (res.next()) {
-                            try {
-                                UUID uuid = UUID.fromString(res.getString("playername"));
-                                double balance = res.getInt("points");
-                                migrate(uuid, "unknown_from_pp", balance);
-                            } catch (SQLException ex) {
-                                plugin.log("An error has occurred while migrating the data for: " + res.getString("playername"));
-                                plugin.debug(ex);
+                    try (PreparedStatement ps = mysql.prepare("SELECT playername, points FROM " + ppConfig.getString("mysql.table"))) {
+                        ps.setFetchSize(Integer.MIN_VALUE); // stream rows instead of loading the whole table
+                        try (ResultSet res = ps.executeQuery()) {
+                            while (res.next()) {
+                                try {
+                                    UUID uuid = UUID.fromString(res.getString("playername"));
+                                    double balance = res.getInt("points");
+                                    pipeline.add(uuid, "unknown_from_pp", balance);
+                                } catch (SQLException ex) {
+                                    plugin.log("An error has occurred while migrating the data for: " + res.getString("playername"));
+                                    plugin.debug(ex);
+                                }
                             }
                         }
                     } catch (SQLException ex) {
@@ -141,7 +145,7 @@ public class BukkitImporter extends Importer {
                 }
                 break;
         }
-        plugin.log("The migration was completed, check the plugin logs for more information.");
+        pipeline.finish();
     }
 
     private void importFromDKCoins() {
@@ -150,8 +154,9 @@ public class BukkitImporter extends Importer {
             return;
         }
         plugin.log("Starting the migration of DKCoins data to coins, this may take a moment.");
-        ch.dkrieger.coinsystem.core.CoinSystem.getInstance().getPlayerManager().getPlayers().stream().filter(coinPlayer -> coinPlayer != null && coinPlayer.getUUID() != null && coinPlayer.getName() != null).forEach(coinPlayer -> migrate(coinPlayer.getUUID(), coinPlayer.getName(), coinPlayer.getCoins()));
-        plugin.log("The migration was completed, check the plugin logs for more information.");
+        ImportPipeline pipeline = new ImportPipeline(plugin, "DKCoins");
+        ch.dkrieger.coinsystem.core.CoinSystem.getInstance().getPlayerManager().getPlayers().stream().filter(coinPlayer -> coinPlayer != null && coinPlayer.getUUID() != null && coinPlayer.getName() != null).forEach(coinPlayer -> pipeline.add(coinPlayer.getUUID(), coinPlayer.getName(), coinPlayer.getCoins()));
+        pipeline.finish();
     }
 
     private void importFromTokensEconomy() {
@@ -160,13 +165,14 @@ public class BukkitImporter extends Importer {
             return;
         }
         plugin.log("Starting the migration of Tokens data to coins, this may take a moment.");
+        ImportPipeline pipeline = new ImportPipeline(plugin, "Tokens");
         ConfigManager configManager = new ConfigManager();
         SQLlib sqLlib = new SQLlib();
         Lib lib = new Lib();
         if (lib.sqlUse()) {
             try {
                 sqLlib.getAllRowstoHashMap();
-                Commands.map.forEach((uuid, integer) -> migrate(uuid, "unknown_from_te", integer));
+                Commands.map.forEach((uuid, integer) -> pipeline.add(uuid, "unknown_from_te", integer));
             } catch (Exception ex) {
                 plugin.debug(ex);
             }
@@ -177,24 +183,8 @@ public class BukkitImporter extends Importer {
                 } catch (Exception e) {
                     return null;
                 }
-            }).filter(Objects::nonNull).forEach(uuid -> migrate(uuid, "unknown_from_te", configManager.getPlayers().getInt(uuid + ".tokens")));
-        }
-        plugin.log("The migration was completed, check the plugin logs for more information.");
-    }
-
-    private void migrate(@NotNull UUID uuid, @NotNull String name, @NotNull Number balance) {
-        try {
-            if (CoinsAPI.isindb(uuid)) {
-                CoinsAPI.addCoins(uuid, balance.doubleValue(), false);
-            } else if (CoinsAPI.isindb(name)) {
-                CoinsAPI.addCoins(name, balance.doubleValue(), false);
-            } else {
-                CoinsAPI.createPlayer(name, uuid, balance.doubleValue());
-            }
-            plugin.debug("Migrated the data for: '" + uuid + "' (" + name + ")");
-        } catch (Exception ex) {
-            plugin.log("There is an error migrating data for: '" + uuid + "' (" + name + "), check logs for more information.");
-            plugin.debug(ex);
+            }).filter(Objects::nonNull).forEach(uuid -> pipeline.add(uuid, "unknown_from_te", configManager.getPlayers().getInt(uuid + ".tokens")));
         }
+        pipeline.finish();
     }
 }
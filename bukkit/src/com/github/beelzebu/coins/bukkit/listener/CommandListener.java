@@ -18,11 +18,17 @@
  */
 package com.github.beelzebu.coins.bukkit.listener;
 
-import com.github.beelzebu.coins.api.CoinsAPI;
 import com.github.beelzebu.coins.api.utils.StringUtils;
 import com.github.beelzebu.coins.bukkit.CoinsBukkitPlugin;
 import com.github.beelzebu.coins.bukkit.utils.CompatUtils;
+import com.github.beelzebu.coins.common.balance.RemoteBalanceClient;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerCommandPreprocessEvent;
 import org.jetbrains.annotations.NotNull;
@@ -33,27 +39,54 @@ import org.jetbrains.annotations.NotNull;
 public class CommandListener implements Listener {
 
     private final CoinsBukkitPlugin plugin;
+    // commands sent again after their cost was paid, they must not be charged twice
+    private final Map<UUID, String> paid = new ConcurrentHashMap<>();
 
     public CommandListener(CoinsBukkitPlugin plugin) {
         this.plugin = plugin;
     }
 
-    @EventHandler
+    @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
     public void onCommandEvent(@NotNull PlayerCommandPreprocessEvent e) {
         String msg = e.getMessage().toLowerCase();
-        plugin.getBootstrap().runAsync(() -> {
-            if (msg.replaceFirst("/", "").startsWith(plugin.getConfig().getCommand()) || plugin.getConfig().getCommandAliases().contains(msg.split(" ")[0].replaceFirst("/", ""))) {
-                plugin.debug(e.getPlayer().getName() + " issued command: " + msg);
-            }
-            if (plugin.getConfig().getDouble("Command Cost." + msg, 0) != 0) {
-                if (CoinsAPI.getCoins(e.getPlayer().getUniqueId()) < plugin.getConfig().getDouble("Command Cost." + msg)) {
-                    e.setCancelled(true);
-                    e.getPlayer().sendMessage(StringUtils.rep(plugin.getMessages(CompatUtils.getLocale(e.getPlayer())).getString("Errors.No Coins")));
+        if (msg.replaceFirst("/", "").startsWith(plugin.getConfig().getCommand()) || plugin.getConfig().getCommandAliases().contains(msg.split(" ")[0].replaceFirst("/", ""))) {
+            plugin.debug(e.getPlayer().getName() + " issued command: " + msg);
+        }
+        double cost = plugin.getConfig().getDouble("Command Cost." + msg, 0);
+        if (cost == 0 || paid.remove(e.getPlayer().getUniqueId(), e.getMessage())) {
+            return;
+        }
+        // the event can't wait for the storage, so the command is sent again once the cost is paid, this way it goes
+        // through all the other listeners like the first time
+        e.setCancelled(true);
+        Player player = e.getPlayer();
+        String lang = CompatUtils.getLocale(player);
+        String message = e.getMessage();
+        plugin.getAsyncAPI().takeCoinsAsync(player.getUniqueId(), cost).whenComplete((balance, ex) -> {
+            if (ex != null) {
+                Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                if (cause instanceof RemoteBalanceClient.UnknownResultException) {
+                    plugin.log(cause.getMessage());
+                    player.sendMessage(plugin.getString("Errors.Unknown Result", lang));
                 } else {
-                    plugin.debug("Applied command cost for " + e.getPlayer().getName() + " in command: " + msg);
-                    CoinsAPI.takeCoins(e.getPlayer().getName(), plugin.getConfig().getDouble("Command Cost." + msg));
+                    plugin.log("Can't apply the cost of the command " + msg + " for " + player.getName());
+                    plugin.debug(cause);
+                    player.sendMessage(plugin.getString("Errors.Busy", lang));
                 }
+                return;
+            }
+            if (!balance.isPresent()) {
+                player.sendMessage(StringUtils.rep(plugin.getMessages(lang).getString("Errors.No Coins")));
+                return;
             }
+            plugin.debug("Applied command cost for " + player.getName() + " in command: " + msg);
+            plugin.getBootstrap().runSync(() -> {
+                if (player.isOnline()) {
+                    paid.put(player.getUniqueId(), message);
+                    player.chat(message);
+                    paid.remove(player.getUniqueId(), message);
+                }
+            });
         });
     }
 }
@@ -26,6 +26,7 @@ import java.util.Objects;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import org.jetbrains.annotations.NotNull;
@@ -44,33 +45,35 @@ public class LoginListener implements Listener {
 
     @EventHandler(priority = EventPriority.LOWEST)
     public void onPlayerJoin(@NotNull PlayerJoinEvent e) {
+        plugin.getEffectiveMultipliers().invalidate(e.getPlayer().getUniqueId());
         if (plugin.getConfig().getBoolean("General.Create Join", false)) {
-            plugin.getBootstrap().runAsync(() -> CoinsAPI.createPlayer(e.getPlayer().getName(), e.getPlayer().getUniqueId()));
+            plugin.getExecutor().execute(() -> CoinsAPI.createPlayer(e.getPlayer().getName(), e.getPlayer().getUniqueId()));
         }
         if (plugin.getConfig().useBungee()) {
             if (first) {
                 first = false;
-                plugin.getBootstrap().runAsync(() -> {
+                plugin.getExecutor().execute(() -> {
                     plugin.getMessagingService().requestMultipliers();
                     plugin.getMessagingService().requestExecutors();
                 });
             }
             BukkitMessaging bukkitMessaging = (BukkitMessaging) plugin.getMessagingService();
-            if (bukkitMessaging.getMessageQueue().isEmpty()) {
+            if (!bukkitMessaging.hasQueued()) {
                 return;
             }
-            plugin.getBootstrap().runAsync(() -> {
-                String message;
-                while ((message = bukkitMessaging.getMessageQueue().poll()) != null) {
-                    bukkitMessaging.sendMessage(message, true);
-                }
-            });
+            plugin.getExecutor().execute(bukkitMessaging::sendQueued);
         }
     }
 
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldChange(@NotNull PlayerChangedWorldEvent e) { // permissions may be different per world
+        plugin.getEffectiveMultipliers().invalidate(e.getPlayer().getUniqueId());
+    }
+
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerQuit(@NotNull PlayerQuitEvent e) {
-        plugin.getBootstrap().runAsync(() -> {
+        plugin.getEffectiveMultipliers().invalidate(e.getPlayer().getUniqueId());
+        plugin.getExecutor().execute(() -> {
             if (!Objects.requireNonNull(plugin.getMessagingService(), "Messaging service is null.").getType().equals(MessagingServiceType.REDIS)) {
                 Objects.requireNonNull(plugin.getCache(), "Can't remove '" + e.getPlayer().getUniqueId() + "' (" + e.getPlayer().getName() + ") from cache, cache is null.")
                         .removePlayer(e.getPlayer().getUniqueId());
@@ -18,7 +18,6 @@
  */
 package com.github.beelzebu.coins.bukkit.listener;
 
-import com.github.beelzebu.coins.api.CoinsAPI;
 import com.github.beelzebu.coins.api.executor.Executor;
 import com.github.beelzebu.coins.api.executor.ExecutorManager;
 import com.github.beelzebu.coins.api.utils.StringUtils;
@@ -139,26 +138,14 @@ public class SignListener implements Listener {
                     if (ex == null) {
                         p.sendMessage(plugin.getString("Errors.No Execute", CompatUtils.getLocale(p)));
                     } else {
-                        if (ex.getCost() > 0) {
-                            if (CoinsAPI.getCoins(p.getUniqueId()) >= ex.getCost()) {
-                                CoinsAPI.takeCoins(p.getName(), ex.getCost());
-                            } else {
-                                p.sendMessage(plugin.getString("Errors.No Coins", CompatUtils.getLocale(p)));
-                                return;
-                            }
-                        }
-                        if (!ex.getCommands().isEmpty()) {
-                            plugin.getBootstrap().runSync(() -> {
-                                String command;
-                                for (String str : ex.getCommands()) {
-                                    command = StringUtils.rep(str).replaceAll("%player%", p.getName());
-                                    if (command.startsWith("message:")) {
-                                        p.sendMessage(StringUtils.rep(command.replaceFirst("message:", "")));
-                                    } else if (command.startsWith("broadcast:")) {
-                                        Bukkit.getServer().broadcastMessage(StringUtils.rep(command.replaceFirst("broadcast:", "")));
-                                    } else {
-                                        Bukkit.dispatchCommand(Bukkit.getConsoleSender(), command);
-                                    }
+                        if (ex.getCost() <= 0) {
+                            runCommands(p, ex);
+                        } else {
+                            plugin.getAsyncAPI().takeCoinsAsync(p.getUniqueId(), ex.getCost()).thenAccept(balance -> {
+                                if (balance.isPresent()) {
+                                    runCommands(p, ex);
+                                } else {
+                                    p.sendMessage(plugin.getString("Errors.No Coins", CompatUtils.getLocale(p)));
                                 }
                             });
                         }
@@ -169,6 +156,25 @@ public class SignListener implements Listener {
         }
     }
 
+    private void runCommands(@NotNull Player p, @NotNull Executor ex) {
+        if (ex.getCommands().isEmpty()) {
+            return;
+        }
+        plugin.getBootstrap().runSync(() -> {
+            String command;
+            for (String str : ex.getCommands()) {
+                command = StringUtils.rep(str).replaceAll("%player%", p.getName());
+                if (command.startsWith("message:")) {
+                    p.sendMessage(StringUtils.rep(command.replaceFirst("message:", "")));
+                } else if (command.startsWith("broadcast:")) {
+                    Bukkit.getServer().broadcastMessage(StringUtils.rep(command.replaceFirst("broadcast:", "")));
+                } else {
+                    Bukkit.dispatchCommand(Bukkit.getConsoleSender(), command);
+                }
+            }
+        });
+    }
+
     @NotNull
     private String rep(String str, @NotNull Executor ex) {
         return StringUtils.rep(str).replaceAll("%executor_displayname%", ex.getDisplayname()).replaceAll("%executor_cost%", String.valueOf(ex.getCost()));
@@ -19,51 +19,116 @@
 package com.github.beelzebu.coins.bukkit.messaging;
 
 import com.github.beelzebu.coins.api.messaging.ProxyMessaging;
-import com.github.beelzebu.coins.api.plugin.CoinsPlugin;
 import com.github.beelzebu.coins.bukkit.CoinsBukkitPlugin;
+import com.github.beelzebu.coins.common.balance.BalanceAuthority;
+import com.github.beelzebu.coins.common.balance.RemoteBalanceClient;
+import com.github.beelzebu.coins.common.messaging.MessageBatcher;
+import com.github.beelzebu.coins.common.messaging.MessageCodec;
+import com.github.beelzebu.coins.common.messaging.OutboundQueue;
 import com.google.common.collect.Iterables;
-import com.google.common.io.ByteArrayDataInput;
-import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
 import com.google.gson.JsonObject;
-import java.util.LinkedList;
-import java.util.Queue;
+import com.google.gson.JsonParseException;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.messaging.PluginMessageListener;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Beelzebu
  */
 public final class BukkitMessaging extends ProxyMessaging implements PluginMessageListener {
 
-    private final Queue<String> messageQueue = new LinkedList<>();
+    // plugin messages are sent through the proxy the player is connected to
+    private static final String DESTINATION = "proxy";
+    // max size of plugin messages sent by the server to the proxy
+    private static final int MAX_MESSAGE_SIZE = Short.MAX_VALUE;
+    private final OutboundQueue messageQueue;
+    private final CoinsBukkitPlugin plugin;
+    // messages are handled in the plugin executor, keeping the order they were received
+    private final Executor messageExecutor;
+    private final MessageCodec codec;
+    private final MessageBatcher batcher;
+    @Nullable
+    private final RemoteBalanceClient balanceClient;
 
     public BukkitMessaging(CoinsBukkitPlugin coinsPlugin) {
         super(coinsPlugin);
+        plugin = coinsPlugin;
+        messageExecutor = coinsPlugin.getExecutor().ordered();
+        codec = coinsPlugin.getMessageCodec();
+        batcher = new MessageBatcher(coinsPlugin, super::publishUser, this::sendFrame);
+        messageQueue = new OutboundQueue(coinsPlugin, new File(coinsPlugin.getBootstrap().getDataFolder(), "outbound.queue"));
+        // responses are received in the main thread, so it can't wait for them
+        balanceClient = coinsPlugin.getConfig().getBoolean("Proxy Balances.Enabled", false) ? new RemoteBalanceClient(coinsPlugin, this::sendBalanceRequest, () -> !Bukkit.isPrimaryThread()) : null;
     }
 
     @Override
     public void onPluginMessageReceived(@NotNull String channel, @NotNull Player player, @NotNull byte[] message) {
+        if (channel.equals(BalanceAuthority.CHANNEL) && balanceClient != null) {
+            balanceClient.receive(message);
+            return;
+        }
         if (!channel.equals(CHANNEL)) {
             return;
         }
-        ByteArrayDataInput in = ByteStreams.newDataInput(message);
-        JsonObject data = CoinsPlugin.GSON.fromJson(in.readUTF(), JsonObject.class);
-        handleMessage(data);
+        List<JsonObject> data;
+        try {
+            data = codec.decodeProxy(message);
+        } catch (JsonParseException ex) {
+            coinsPlugin.log("Received an invalid plugin message, make sure all servers use the same plugin version.");
+            coinsPlugin.debug(ex);
+            return;
+        }
+        messageExecutor.execute(() -> data.forEach(this::handle));
+    }
+
+    // the api handles the message, then local multiplier state is updated
+    private void handle(@NotNull JsonObject message) {
+        handleMessage(message);
+        plugin.handleMultiplierMessage(message);
+    }
+
+    @Override
+    public void publishUser(@NotNull UUID uuid, double coins) {
+        batcher.publishUser(uuid, coins);
     }
 
     @Override
     public void sendMessage(String message, boolean wait) {
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeUTF(message);
+        if (batcher.collect(message)) {
+            return;
+        }
+        send(codec.encodeProxy(message), Collections.singletonList(message), wait);
+    }
+
+    // old servers can't read frames, so they are only used with binary messages
+    private void sendFrame(@NotNull List<String> messages) {
+        if (codec.isBinary()) {
+            byte[] frame = codec.encodeFrame(messages);
+            if (frame.length > MAX_MESSAGE_SIZE && messages.size() > 1) {
+                sendFrame(messages.subList(0, messages.size() / 2));
+                sendFrame(messages.subList(messages.size() / 2, messages.size()));
+            } else {
+                send(frame, messages, true);
+            }
+        } else {
+            messages.forEach(message -> send(codec.encodeProxy(message), Collections.singletonList(message), true));
+        }
+    }
+
+    private void send(@NotNull byte[] data, @NotNull List<String> messages, boolean wait) {
         synchronized (messageQueue) {
             Player p = Iterables.getFirst(Bukkit.getOnlinePlayers(), null);
             if (p != null) {
                 try {
-                    p.sendPluginMessage((Plugin) coinsPlugin.getBootstrap(), CHANNEL, out.toByteArray());
+                    p.sendPluginMessage((Plugin) coinsPlugin.getBootstrap(), CHANNEL, data);
                 } catch (Exception ex) {
                     coinsPlugin.log("Hey, you need to install the plugin in BungeeCord if you have bungeecord enabled in spigot.yml!");
                 }
@@ -72,28 +137,76 @@ public final class BukkitMessaging extends ProxyMessaging implements PluginMessa
                         "least one player to send messages the data of this message may be lost or can cause " +
                         "concurrency problems, it is recommended to use redis as messaging service if you are running " +
                         "a network, because it doesn't have this limitation and avoid this kind of problems.");
-                coinsPlugin.log("Message: " + message);
+                coinsPlugin.log("Message: " + String.join(", ", messages));
                 if (wait) {
-                    messageQueue.add(message);
+                    messages.forEach(message -> messageQueue.offer(DESTINATION, message));
                 }
             }
         }
     }
 
+    private boolean sendBalanceRequest(@NotNull byte[] request) {
+        Player p = Iterables.getFirst(Bukkit.getOnlinePlayers(), null);
+        if (p == null) {
+            return false;
+        }
+        p.sendPluginMessage((Plugin) coinsPlugin.getBootstrap(), BalanceAuthority.CHANNEL, request);
+        return true;
+    }
+
     @Override
     public void start() {
+        messageQueue.load();
         Bukkit.getMessenger().registerOutgoingPluginChannel((Plugin) coinsPlugin.getBootstrap(), CHANNEL);
         Bukkit.getMessenger().registerIncomingPluginChannel((Plugin) coinsPlugin.getBootstrap(), CHANNEL, this);
+        if (balanceClient != null) {
+            Bukkit.getMessenger().registerOutgoingPluginChannel((Plugin) coinsPlugin.getBootstrap(), BalanceAuthority.CHANNEL);
+            Bukkit.getMessenger().registerIncomingPluginChannel((Plugin) coinsPlugin.getBootstrap(), BalanceAuthority.CHANNEL, this);
+            ((CoinsBukkitPlugin) coinsPlugin).getBalanceService().setRemote(balanceClient);
+        }
+        batcher.start();
     }
 
     @Override
     public void stop() {
+        if (balanceClient != null) {
+            ((CoinsBukkitPlugin) coinsPlugin).getBalanceService().setRemote(null);
+            balanceClient.stop();
+            Bukkit.getMessenger().unregisterIncomingPluginChannel((Plugin) coinsPlugin.getBootstrap(), BalanceAuthority.CHANNEL, this);
+            Bukkit.getMessenger().unregisterOutgoingPluginChannel((Plugin) coinsPlugin.getBootstrap(), BalanceAuthority.CHANNEL);
+        }
+        batcher.stop();
         Bukkit.getMessenger().unregisterIncomingPluginChannel((Plugin) coinsPlugin.getBootstrap(), CHANNEL, this);
         Bukkit.getMessenger().unregisterOutgoingPluginChannel((Plugin) coinsPlugin.getBootstrap(), CHANNEL);
+        messageQueue.close();
+    }
+
+    public boolean hasQueued() {
+        return !messageQueue.isEmpty(DESTINATION);
+    }
+
+    /**
+     * Send the messages that were queued because there weren't players online.
+     */
+    public void sendQueued() {
+        List<String> messages = messageQueue.drain(DESTINATION);
+        if (!messages.isEmpty()) {
+            sendFrame(messages);
+        }
+    }
+
+    @Nullable
+    public RemoteBalanceClient getBalanceClient() {
+        return balanceClient;
+    }
+
+    @NotNull
+    public MessageBatcher getBatcher() {
+        return batcher;
     }
 
     @NotNull
-    public Queue<String> getMessageQueue() {
+    public OutboundQueue getMessageQueue() {
         return messageQueue;
     }
 }
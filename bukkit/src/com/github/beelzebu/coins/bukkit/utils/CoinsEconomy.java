@@ -21,9 +21,11 @@ package com.github.beelzebu.coins.bukkit.utils;
 import com.github.beelzebu.coins.api.CoinsAPI;
 import com.github.beelzebu.coins.api.CoinsResponse;
 import com.github.beelzebu.coins.bukkit.CoinsBukkitMain;
+import com.github.beelzebu.coins.common.balance.RemoteBalanceClient;
 import java.text.DecimalFormat;
 import java.util.Collections;
 import java.util.List;
+import java.util.OptionalDouble;
 import java.util.UUID;
 import net.milkbowl.vault.economy.Economy;
 import net.milkbowl.vault.economy.EconomyResponse;
@@ -32,6 +34,7 @@ import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.plugin.ServicePriority;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Beelzebu
@@ -159,23 +162,13 @@ public class CoinsEconomy implements Economy {
     @Override
     @Deprecated
     public EconomyResponse withdrawPlayer(@NotNull String string, double d) {
-        CoinsResponse response = CoinsAPI.takeCoins(string, d);
-        if (response.isSuccess()) {
-            return new EconomyResponse(d, getBalance(string), ResponseType.SUCCESS, "");
-        } else {
-            return new EconomyResponse(d, getBalance(string), ResponseType.FAILURE, response.getMessage(""));
-        }
+        return withdraw(plugin.getPlugin().getUniqueId(string, false), string, d);
     }
 
     @NotNull
     @Override
     public EconomyResponse withdrawPlayer(@NotNull OfflinePlayer op, double d) {
-        CoinsResponse response = CoinsAPI.takeCoins(op.getUniqueId(), d);
-        if (response.isSuccess()) {
-            return new EconomyResponse(d, getBalance(op), ResponseType.SUCCESS, "");
-        } else {
-            return new EconomyResponse(d, getBalance(op), ResponseType.FAILURE, response.getMessage(""));
-        }
+        return withdraw(op.getUniqueId(), op.getName(), d);
     }
 
     @NotNull
@@ -195,23 +188,13 @@ public class CoinsEconomy implements Economy {
     @Override
     @Deprecated
     public EconomyResponse depositPlayer(@NotNull String string, double d) {
-        CoinsResponse response = CoinsAPI.addCoins(string, d, plugin.getPlugin().getConfig().vaultMultipliers());
-        if (response.isSuccess()) {
-            return new EconomyResponse(d, getBalance(string), ResponseType.SUCCESS, "");
-        } else {
-            return new EconomyResponse(d, getBalance(string), ResponseType.FAILURE, response.getMessage(""));
-        }
+        return deposit(plugin.getPlugin().getUniqueId(string, false), string, d);
     }
 
     @NotNull
     @Override
     public EconomyResponse depositPlayer(@NotNull OfflinePlayer op, double d) {
-        CoinsResponse response = CoinsAPI.addCoins(op.getUniqueId(), d, plugin.getPlugin().getConfig().vaultMultipliers());
-        if (response.isSuccess()) {
-            return new EconomyResponse(d, getBalance(op), ResponseType.SUCCESS, "");
-        } else {
-            return new EconomyResponse(d, getBalance(op), ResponseType.FAILURE, response.getMessage(""));
-        }
+        return deposit(op.getUniqueId(), op.getName(), d);
     }
 
     @NotNull
@@ -324,4 +307,46 @@ public class CoinsEconomy implements Economy {
     public boolean createPlayerAccount(@NotNull OfflinePlayer op, String string) {
         return createPlayerAccount(op);
     }
+
+    @NotNull
+    private EconomyResponse withdraw(@Nullable UUID uuid, String name, double d) {
+        if (uuid == null) {
+            return new EconomyResponse(d, 0, ResponseType.FAILURE, plugin.getPlugin().getString("Errors.Unknown player", "").replace("%target%", String.valueOf(name)));
+        }
+        if (d < 0) {
+            return new EconomyResponse(d, CoinsAPI.getCoins(uuid), ResponseType.FAILURE, plugin.getPlugin().getString("Errors.No Negative", ""));
+        }
+        OptionalDouble balance;
+        try {
+            balance = plugin.getPlugin().getBalanceService().takeCoins(uuid, d);
+        } catch (RemoteBalanceClient.UnknownResultException ex) {
+            plugin.getPlugin().log(ex.getMessage());
+            return new EconomyResponse(d, 0, ResponseType.FAILURE, plugin.getPlugin().getString("Errors.Unknown Result", ""));
+        }
+        if (balance.isPresent()) {
+            return new EconomyResponse(d, balance.getAsDouble(), ResponseType.SUCCESS, "");
+        }
+        return new EconomyResponse(d, CoinsAPI.getCoins(uuid), ResponseType.FAILURE, plugin.getPlugin().getString("Errors.No Coins", ""));
+    }
+
+    @NotNull
+    private EconomyResponse deposit(@Nullable UUID uuid, String name, double d) {
+        if (uuid == null) {
+            return new EconomyResponse(d, 0, ResponseType.FAILURE, plugin.getPlugin().getString("Errors.Unknown player", "").replace("%target%", String.valueOf(name)));
+        }
+        if (d < 0) {
+            return new EconomyResponse(d, CoinsAPI.getCoins(uuid), ResponseType.FAILURE, plugin.getPlugin().getString("Errors.No Negative", ""));
+        }
+        OptionalDouble balance;
+        try {
+            balance = plugin.getPlugin().getBalanceService().addCoins(uuid, d, plugin.getPlugin().getConfig().vaultMultipliers());
+        } catch (RemoteBalanceClient.UnknownResultException ex) {
+            plugin.getPlugin().log(ex.getMessage());
+            return new EconomyResponse(d, 0, ResponseType.FAILURE, plugin.getPlugin().getString("Errors.Unknown Result", ""));
+        }
+        if (balance.isPresent()) {
+            return new EconomyResponse(d, balance.getAsDouble(), ResponseType.SUCCESS, "");
+        }
+        return new EconomyResponse(d, 0, ResponseType.FAILURE, plugin.getPlugin().getString("Errors.Unknown player", "").replace("%target%", String.valueOf(name)));
+    }
 }
@@ -19,6 +19,8 @@
 package com.github.beelzebu.coins.bukkit.utils.placeholders;
 
 import com.github.beelzebu.coins.api.CoinsAPI;
+import com.github.beelzebu.coins.api.CoinsUser;
+import com.github.beelzebu.coins.bukkit.CoinsBukkitPlugin;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.Locale;
@@ -32,8 +34,13 @@ import org.jetbrains.annotations.Nullable;
  */
 public class CoinsPlaceholders extends PlaceholderExpansion {
 
+    private final CoinsBukkitPlugin plugin;
     private final DecimalFormat decimalFormat = new DecimalFormat("#.#");
 
+    public CoinsPlaceholders(CoinsBukkitPlugin plugin) {
+        this.plugin = plugin;
+    }
+
     @NotNull
     @Override
     public String getIdentifier() {
@@ -68,14 +75,14 @@ public class CoinsPlaceholders extends PlaceholderExpansion {
         if (p == null) {
             return "Player needed!";
         }
-        if (placeholder.toLowerCase().startsWith("top_") && placeholder.toLowerCase().matches("\\d+$")) {
-            int top = Integer.parseInt(placeholder.toLowerCase().replaceAll("[^\\d+$]", ""));
-            if (placeholder.toLowerCase().matches("^top_name_\\d+$")) {
-                return decimalFormat.format(CoinsAPI.getTopPlayers(top)[top - 1].getName());
-            }
-            if (placeholder.toLowerCase().matches("^top_balance_\\d+$")) {
-                return decimalFormat.format(CoinsAPI.getTopPlayers(top)[top - 1].getCoins());
+        if (placeholder.toLowerCase().matches("^top_(name|balance)_\\d{1,4}$")) {
+            int top = Integer.parseInt(placeholder.substring(placeholder.lastIndexOf('_') + 1));
+            CoinsUser[] topPlayers = top > 0 && plugin.getLeaderboard() != null ? plugin.getLeaderboard().getTop(top) : new CoinsUser[0];
+            if (top <= 0 || topPlayers.length < top) {
+                return "";
             }
+            CoinsUser user = topPlayers[top - 1];
+            return placeholder.toLowerCase().startsWith("top_name_") ? String.valueOf(user.getName()) : decimalFormat.format(user.getCoins());
         }
         switch (placeholder.toLowerCase()) {
             case "amount":
@@ -88,6 +95,9 @@ public class CoinsPlaceholders extends PlaceholderExpansion {
                 return coinsString;
             case "amount_formatted":
                 return fix(CoinsAPI.getCoins(p.getUniqueId()));
+            case "rank":
+                int rank = plugin.getLeaderboard() != null ? plugin.getLeaderboard().getRank(p.getUniqueId()) : -1;
+                return rank != -1 ? String.valueOf(rank) : "";
             default:
                 break;
         }
@@ -18,14 +18,9 @@
  */
 package com.github.beelzebu.coins.bukkit.utils.placeholders;
 
-import com.github.beelzebu.coins.api.CoinsAPI;
-import com.github.beelzebu.coins.api.Multiplier;
-import com.github.beelzebu.coins.api.MultiplierData;
-import com.github.beelzebu.coins.api.MultiplierType;
 import com.github.beelzebu.coins.bukkit.CoinsBukkitPlugin;
 import com.github.beelzebu.coins.bukkit.utils.CompatUtils;
-import java.util.List;
-import java.util.stream.Collectors;
+import com.github.beelzebu.coins.common.cache.MultiplierIndex;
 import me.clip.placeholderapi.expansion.PlaceholderExpansion;
 import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
@@ -78,30 +73,19 @@ public class MultipliersPlaceholders extends PlaceholderExpansion {
             return "Player needed!";
         }
         try {
-            String server = placeholder.split("_")[1];
-            List<Multiplier> multipliers = CoinsAPI.getMultipliers(server, true).stream()
-                    .filter(multiplier -> multiplier.getData().getType() != MultiplierType.PERSONAL)
-                    .filter(multiplier -> !multiplier.getData().isServerEnabler()).collect(Collectors.toList());
+            MultiplierIndex.ServerSummary summary = plugin.getMultiplierIndex().getSummary(placeholder.split("_")[1]);
             if (placeholder.startsWith("enabler_")) {
-                if (multipliers.isEmpty()) {
+                if (summary.isEmpty()) {
                     return plugin.getString("Multipliers.Placeholders.Enabler.Anyone", CompatUtils.getLocale(p));
                 } else {
-                    String enabler = multipliers.stream().map(Multiplier::getData).map(MultiplierData::getEnablerName).collect(Collectors.joining(", "));
-                    return plugin.getString("Multipliers.Placeholders.Enabler.Message", CompatUtils.getLocale(p)).replaceAll("%enabler%", enabler);
+                    return plugin.getString("Multipliers.Placeholders.Enabler.Message", CompatUtils.getLocale(p)).replaceAll("%enabler%", summary.getEnablers());
                 }
             }
             if (placeholder.startsWith("amount_")) {
-                int multiplyTotal = multipliers.stream().mapToInt(multiplier -> multiplier.getData().getAmount()).sum();
-                return String.valueOf(multiplyTotal);
+                return String.valueOf(summary.getAmount());
             }
             if (placeholder.startsWith("time_")) {
-                Multiplier less = null;
-                for (Multiplier multiplier : multipliers) {
-                    if (less == null || less.getEndTime() < multiplier.getEndTime()) {
-                        less = multiplier;
-                    }
-                }
-                return less != null ? less.getEndTimeFormatted() : "";
+                return summary.getLatest() != null ? summary.getLatest().getEndTimeFormatted() : "";
             }
         } catch (NullPointerException ex) {
             ex.printStackTrace();
@@ -20,6 +20,7 @@ package com.github.beelzebu.coins.bungee;
 
 import com.github.beelzebu.coins.api.config.CoinsConfig;
 import com.github.beelzebu.coins.bungee.listener.CommandListener;
+import com.github.beelzebu.coins.bungee.listener.ServerListener;
 import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
 import net.md_5.bungee.api.ProxyServer;
 import org.jetbrains.annotations.NotNull;
@@ -37,6 +38,7 @@ public class CoinsBungeePlugin extends CommonCoinsPlugin<CoinsBungeeMain> {
     public void enable() {
         super.enable();
         ProxyServer.getInstance().getPluginManager().registerListener(getBootstrap(), new CommandListener(this));
+        ProxyServer.getInstance().getPluginManager().registerListener(getBootstrap(), new ServerListener(this));
     }
 
     @Override
@@ -18,14 +18,19 @@
  */
 package com.github.beelzebu.coins.bungee.listener;
 
-import com.github.beelzebu.coins.api.CoinsAPI;
 import com.github.beelzebu.coins.api.utils.StringUtils;
 import com.github.beelzebu.coins.bungee.CoinsBungeePlugin;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import net.md_5.bungee.api.ProxyServer;
 import net.md_5.bungee.api.chat.TextComponent;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.event.ChatEvent;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.event.EventHandler;
+import net.md_5.bungee.event.EventPriority;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -34,28 +39,52 @@ import org.jetbrains.annotations.NotNull;
 public class CommandListener implements Listener {
 
     private final CoinsBungeePlugin plugin;
+    // commands sent again after their cost was paid, they must not be charged twice
+    private final Map<UUID, String> paid = new ConcurrentHashMap<>();
 
     public CommandListener(CoinsBungeePlugin plugin) {
         this.plugin = plugin;
     }
 
-    @EventHandler
+    @EventHandler(priority = EventPriority.HIGHEST)
     public void onCommand(@NotNull ChatEvent e) {
-        if (e.isCommand() && e.getSender() instanceof ProxiedPlayer) {
+        if (!e.isCancelled() && e.isCommand() && e.getSender() instanceof ProxiedPlayer) {
+            ProxiedPlayer pp = (ProxiedPlayer) e.getSender();
             String msg = e.getMessage().toLowerCase();
-            plugin.getBootstrap().runAsync(() -> {
-                ProxiedPlayer pp = (ProxiedPlayer) e.getSender();
-                if (msg.replaceFirst("/", "").startsWith(plugin.getConfig().getCommand()) || plugin.getConfig().getCommandAliases().contains(msg.split(" ")[0].replaceFirst("/", ""))) {
-                    plugin.debug(pp.getName() + " issued command: " + msg);
+            if (msg.replaceFirst("/", "").startsWith(plugin.getConfig().getCommand()) || plugin.getConfig().getCommandAliases().contains(msg.split(" ")[0].replaceFirst("/", ""))) {
+                plugin.debug(pp.getName() + " issued command: " + msg);
+            }
+            double cost = plugin.getConfig().getDouble("Command Cost." + msg, 0);
+            if (cost == 0 || paid.remove(pp.getUniqueId(), e.getMessage())) {
+                return;
+            }
+            // the event can't wait for the storage, so the command is sent again once the cost is paid, this way it
+            // goes through all the other listeners like the first time
+            e.setCancelled(true);
+            String lang = pp.getLocale() != null ? pp.getLocale().getLanguage() : "";
+            String message = e.getMessage();
+            plugin.getAsyncAPI().takeCoinsAsync(pp.getUniqueId(), cost).whenComplete((balance, ex) -> {
+                if (ex != null) {
+                    Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                    plugin.log("Can't apply the cost of the command " + msg + " for " + pp.getName());
+                    plugin.debug(cause);
+                    pp.sendMessage(TextComponent.fromLegacyText(plugin.getString("Errors.Busy", lang)));
+                    return;
                 }
-                if (plugin.getConfig().getDouble("Command Cost." + msg, 0) != 0) {
-                    if (CoinsAPI.getCoins(pp.getUniqueId()) < plugin.getConfig().getDouble("Command Cost." + msg)) {
-                        e.setCancelled(true);
-                        pp.sendMessage(TextComponent.fromLegacyText(StringUtils.rep(plugin.getMessages(pp.getLocale().getLanguage()).getString("Errors.No Coins"))));
-                    } else {
-                        plugin.debug("Applied command cost for " + pp.getName() + " in command: " + msg);
-                        CoinsAPI.takeCoins(pp.getName(), plugin.getConfig().getDouble("Command Cost." + msg));
-                    }
+                if (!balance.isPresent()) {
+                    pp.sendMessage(TextComponent.fromLegacyText(StringUtils.rep(plugin.getMessages(lang).getString("Errors.No Coins"))));
+                    return;
+                }
+                plugin.debug("Applied command cost for " + pp.getName() + " in command: " + msg);
+                if (!pp.isConnected()) {
+                    return;
+                }
+                // chat doesn't fire ChatEvent again, so it is fired here and proxy commands are dispatched here
+                paid.put(pp.getUniqueId(), message);
+                ChatEvent event = ProxyServer.getInstance().getPluginManager().callEvent(new ChatEvent(pp, pp.getServer(), message));
+                paid.remove(pp.getUniqueId(), message);
+                if (!event.isCancelled() && !ProxyServer.getInstance().getPluginManager().dispatchCommand(pp, message.substring(1))) {
+                    pp.chat(message);
                 }
             });
         }
@@ -0,0 +1,49 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.bungee.listener;
+
+import com.github.beelzebu.coins.bungee.CoinsBungeePlugin;
+import net.md_5.bungee.api.event.PlayerDisconnectEvent;
+import net.md_5.bungee.api.event.ServerSwitchEvent;
+import net.md_5.bungee.api.plugin.Listener;
+import net.md_5.bungee.event.EventHandler;
+import net.md_5.bungee.event.EventPriority;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * @author Beelzebu
+ */
+public class ServerListener implements Listener {
+
+    private final CoinsBungeePlugin plugin;
+
+    public ServerListener(CoinsBungeePlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    @EventHandler(priority = EventPriority.HIGHEST)
+    public void onServerSwitch(@NotNull ServerSwitchEvent e) { // usable multipliers depend on the server
+        plugin.getEffectiveMultipliers().invalidate(e.getPlayer().getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.HIGHEST)
+    public void onDisconnect(@NotNull PlayerDisconnectEvent e) {
+        plugin.getEffectiveMultipliers().invalidate(e.getPlayer().getUniqueId());
+    }
+}
@@ -20,61 +20,134 @@ package com.github.beelzebu.coins.bungee.messaging;
 
 import com.github.beelzebu.coins.api.messaging.ProxyMessaging;
 import com.github.beelzebu.coins.bungee.CoinsBungeePlugin;
-import com.google.common.io.ByteArrayDataInput;
-import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
+import com.github.beelzebu.coins.common.balance.BalanceAuthority;
+import com.github.beelzebu.coins.common.messaging.MessageBatcher;
+import com.github.beelzebu.coins.common.messaging.MessageCodec;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
 import net.md_5.bungee.api.ProxyServer;
-import net.md_5.bungee.api.config.ServerInfo;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.connection.Server;
 import net.md_5.bungee.api.event.PluginMessageEvent;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.api.plugin.Plugin;
 import net.md_5.bungee.event.EventHandler;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Beelzebu
  */
 public final class BungeeMessaging extends ProxyMessaging implements Listener {
 
+    private final CoinsBungeePlugin plugin;
+    // messages are handled in the plugin executor, keeping the order they were received
+    private final Executor messageExecutor;
+    private final MessageCodec codec;
+    private final MessageBatcher batcher;
+    @Nullable
+    private final BalanceAuthority balanceAuthority;
+
     public BungeeMessaging(CoinsBungeePlugin coinsPlugin) {
         super(coinsPlugin);
+        plugin = coinsPlugin;
+        messageExecutor = coinsPlugin.getExecutor().ordered();
+        codec = coinsPlugin.getMessageCodec();
+        batcher = new MessageBatcher(coinsPlugin, super::publishUser, this::sendFrame);
+        balanceAuthority = coinsPlugin.getConfig().getBoolean("Proxy Balances.Enabled", false) ? new BalanceAuthority(coinsPlugin) : null;
     }
 
     @EventHandler
     public void onMessageReceive(@NotNull PluginMessageEvent e) {
+        if (e.getTag().equals(BalanceAuthority.CHANNEL) && balanceAuthority != null) {
+            e.setCancelled(true); // never forward balance messages, players could use them to fake responses
+            if (e.getSender() instanceof Server) {
+                Server server = (Server) e.getSender();
+                balanceAuthority.receive(e.getData(), response -> server.sendData(BalanceAuthority.CHANNEL, response));
+            }
+            return;
+        }
         if (!e.getTag().equals(CHANNEL)) {
             return;
         }
         if (e.getSender() instanceof ProxiedPlayer) {
             return;
         }
-        ByteArrayDataInput in = ByteStreams.newDataInput(e.getData());
-        JsonObject data = coinsPlugin.getGson().fromJson(in.readUTF(), JsonObject.class);
-        handleMessage(data);
+        List<JsonObject> data;
+        try {
+            data = codec.decodeProxy(e.getData());
+        } catch (JsonParseException ex) {
+            coinsPlugin.log("Received an invalid plugin message, make sure all servers use the same plugin version.");
+            coinsPlugin.debug(ex);
+            return;
+        }
+        messageExecutor.execute(() -> data.forEach(this::handle));
+    }
+
+    // the api handles the message, then local multiplier state is updated
+    private void handle(@NotNull JsonObject message) {
+        handleMessage(message);
+        plugin.handleMultiplierMessage(message);
     }
 
     @Override
     public void start() {
         ProxyServer.getInstance().registerChannel(CHANNEL);
         ProxyServer.getInstance().getPluginManager().registerListener((Plugin) coinsPlugin.getBootstrap(), this);
+        if (balanceAuthority != null) {
+            ProxyServer.getInstance().registerChannel(BalanceAuthority.CHANNEL);
+            balanceAuthority.start();
+        }
+        batcher.start();
     }
 
     @Override
     public void stop() {
+        if (balanceAuthority != null) {
+            ProxyServer.getInstance().unregisterChannel(BalanceAuthority.CHANNEL);
+            balanceAuthority.stop();
+        }
+        batcher.stop();
         ProxyServer.getInstance().unregisterChannel(CHANNEL);
         ProxyServer.getInstance().getPluginManager().unregisterListener(this);
     }
 
+    @Override
+    public void publishUser(@NotNull UUID uuid, double coins) {
+        batcher.publishUser(uuid, coins);
+    }
+
     @Override
     protected void sendMessage(String message, boolean wait) {
-        ProxyServer.getInstance().getServers().values().forEach(server -> sendMessage(message, wait, server));
+        if (batcher.collect(message)) {
+            return;
+        }
+        send(codec.encodeProxy(message), wait);
+    }
+
+    // old servers can't read frames, so they are only used with binary messages
+    private void sendFrame(@NotNull List<String> messages) {
+        if (codec.isBinary()) {
+            send(codec.encodeFrame(messages), true);
+        } else {
+            messages.forEach(message -> send(codec.encodeProxy(message), true));
+        }
+    }
+
+    private void send(@NotNull byte[] data, boolean wait) {
+        ProxyServer.getInstance().getServers().values().forEach(server -> server.sendData(CHANNEL, data, wait));
+    }
+
+    @Nullable
+    public BalanceAuthority getBalanceAuthority() {
+        return balanceAuthority;
     }
 
-    private void sendMessage(String message, boolean wait, @NotNull ServerInfo server) {
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeUTF(message);
-        server.sendData(CHANNEL, out.toByteArray(), wait);
+    @NotNull
+    public MessageBatcher getBatcher() {
+        return batcher;
     }
 }
@@ -0,0 +1,142 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.api;
+
+import com.github.beelzebu.coins.api.CoinsAPI;
+import com.github.beelzebu.coins.api.CoinsResponse;
+import com.github.beelzebu.coins.api.CoinsUser;
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import java.util.OptionalDouble;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Non blocking variants of {@link CoinsAPI}, every call is executed in the plugin executor so storage and redis
+ * requests never run in the server thread.
+ *
+ * @author Beelzebu
+ */
+public final class AsyncCoinsAPI {
+
+    @NotNull
+    private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+
+    public AsyncCoinsAPI(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin) {
+        this.plugin = plugin;
+    }
+
+    @NotNull
+    public CompletableFuture<Double> getCoinsAsync(@NotNull UUID uuid) {
+        return supplyAsync(() -> CoinsAPI.getCoins(uuid));
+    }
+
+    @NotNull
+    public CompletableFuture<Double> getCoinsAsync(@NotNull String name) {
+        return supplyAsync(() -> CoinsAPI.getCoins(name));
+    }
+
+    @NotNull
+    public CompletableFuture<String> getCoinsStringAsync(@NotNull UUID uuid) {
+        return supplyAsync(() -> CoinsAPI.getCoinsString(uuid));
+    }
+
+    /**
+     * @see com.github.beelzebu.coins.common.balance.BalanceService#addCoins(UUID, double, boolean)
+     */
+    @NotNull
+    public CompletableFuture<OptionalDouble> addCoinsAsync(@NotNull UUID uuid, double amount, boolean multiply) {
+        return supplyAsync(() -> plugin.getBalanceService().addCoins(uuid, amount, multiply));
+    }
+
+    /**
+     * @see com.github.beelzebu.coins.common.balance.BalanceService#takeCoins(UUID, double)
+     */
+    @NotNull
+    public CompletableFuture<OptionalDouble> takeCoinsAsync(@NotNull UUID uuid, double amount) {
+        return supplyAsync(() -> plugin.getBalanceService().takeCoins(uuid, amount));
+    }
+
+    /**
+     * @see com.github.beelzebu.coins.common.balance.BalanceService#payCoins(UUID, UUID, double)
+     */
+    @NotNull
+    public CompletableFuture<Boolean> payCoinsAsync(@NotNull UUID from, @NotNull UUID to, double amount) {
+        return supplyAsync(() -> plugin.getBalanceService().payCoins(from, to, amount));
+    }
+
+    @NotNull
+    public CompletableFuture<CoinsResponse> setCoinsAsync(@NotNull UUID uuid, double amount) {
+        return supplyAsync(() -> CoinsAPI.setCoins(uuid, amount));
+    }
+
+    @NotNull
+    public CompletableFuture<CoinsResponse> resetCoinsAsync(@NotNull UUID uuid) {
+        return supplyAsync(() -> CoinsAPI.resetCoins(uuid));
+    }
+
+    @NotNull
+    public CompletableFuture<Boolean> isindbAsync(@NotNull UUID uuid) {
+        return supplyAsync(() -> CoinsAPI.isindb(uuid));
+    }
+
+    @NotNull
+    public CompletableFuture<Boolean> isindbAsync(@NotNull String name) {
+        return supplyAsync(() -> CoinsAPI.isindb(name));
+    }
+
+    @NotNull
+    public CompletableFuture<CoinsResponse> createPlayerAsync(@NotNull String name, @NotNull UUID uuid) {
+        return supplyAsync(() -> CoinsAPI.createPlayer(name, uuid));
+    }
+
+    @NotNull
+    public CompletableFuture<CoinsUser[]> getTopPlayersAsync(int top) {
+        return supplyAsync(() -> plugin.getLeaderboard() != null ? plugin.getLeaderboard().getTop(top) : CoinsAPI.getTopPlayers(top));
+    }
+
+    @NotNull
+    public CompletableFuture<Integer> getRankAsync(@NotNull UUID uuid) {
+        return supplyAsync(() -> plugin.getLeaderboard() != null ? plugin.getLeaderboard().getRank(uuid) : -1);
+    }
+
+    /**
+     * Run a task in the same executor used by the API calls.
+     *
+     * @param supplier task to run.
+     * @param <T>      type of the result.
+     * @return future completed with the result of the task, or completed exceptionally if the task failed or the
+     * executor is full.
+     * @see com.github.beelzebu.coins.common.concurrent.CoinsExecutor#supply(Supplier)
+     */
+    @NotNull
+    public <T> CompletableFuture<T> supplyAsync(@NotNull Supplier<T> supplier) {
+        return plugin.getExecutor().supply(supplier);
+    }
+
+    @NotNull
+    public CompletableFuture<Void> runAsync(@NotNull Runnable runnable) {
+        return supplyAsync(() -> {
+            runnable.run();
+            return null;
+        });
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.balance;
+
+import com.github.beelzebu.coins.api.cache.CacheProvider;
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.api.storage.StorageProvider;
+import com.github.beelzebu.coins.common.messaging.MessageCodec;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import com.github.beelzebu.coins.common.storage.CommonSQLDatabase;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Owner of the balances of the whole network when it runs in the proxy. Servers send balance changes as requests, they
+ * are applied to the cache of the proxy and written to the storage in background, so the proxy is the only one writing
+ * balances to the database. Servers never write balances themselves while proxy balances are enabled, and requests are
+ * remembered for a short time by id so a request sent again after a timeout isn't applied twice.
+ *
+ * @author Beelzebu
+ */
+public final class BalanceAuthority {
+
+    public static final String CHANNEL = "coins:balances";
+    private static final int STRIPES = 64;
+    private static final long DEDUPE_WINDOW = TimeUnit.MINUTES.toMillis(1);
+    @NotNull
+    private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+    @NotNull
+    private final MessageCodec codec;
+    private final long interval;
+    // changes to a player are applied while holding the lock of its stripe
+    private final Object[] locks = new Object[STRIPES];
+    // balances changed since the last write to the storage
+    private final Map<UUID, Double> dirty = new ConcurrentHashMap<>();
+    // responses to recent requests by request id
+    private final Map<String, Handled> handled = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failedWrites = new AtomicLong();
+    @Nullable
+    private ScheduledExecutorService writer;
+
+    public BalanceAuthority(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin) {
+        this.plugin = plugin;
+        codec = plugin.getMessageCodec();
+        interval = Math.max(100, plugin.getConfig().getInt("Proxy Balances.Write Interval", 1000));
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public void start() {
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Coins Balance Authority");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(this::write, interval, interval, TimeUnit.MILLISECONDS);
+        writer.scheduleWithFixedDelay(this::expire, DEDUPE_WINDOW, DEDUPE_WINDOW / 4, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the writer and write all the changed balances, must be called before the storage is closed.
+     */
+    public void stop() {
+        if (writer == null) {
+            return;
+        }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+        write();
+        if (!dirty.isEmpty()) {
+            plugin.log(dirty.size() + " balances couldn't be written to the database on shutdown.");
+        }
+    }
+
+    /**
+     * Handle requests received from a server, requests are applied in the plugin executor.
+     *
+     * @param data  plugin message with the requests.
+     * @param reply sends a response to the server that sent the requests.
+     */
+    public void receive(@NotNull byte[] data, @NotNull Consumer<byte[]> reply) {
+        List<JsonObject> messages;
+        try {
+            messages = codec.decodeProxy(data);
+        } catch (JsonParseException ex) {
+            plugin.log("Received an invalid balance request, make sure all servers use the same plugin version.");
+            plugin.debug(ex);
+            return;
+        }
+        if (!plugin.getExecutor().execute(() -> messages.forEach(request -> {
+            JsonObject response = handleOnce(request);
+            if (response != null) {
+                reply.accept(codec.encodeProxy(response.toString()));
+            }
+        }))) {
+            plugin.log("Can't handle " + messages.size() + " balance requests, the executor is full.");
+        }
+    }
+
+    /**
+     * Add coins to a player, the amount may be negative to take coins.
+     *
+     * @param uuid   player to change.
+     * @param amount amount of coins to add.
+     * @return the new balance, or empty if the player doesn't exist or doesn't have enough coins.
+     */
+    @NotNull
+    public OptionalDouble add(@NotNull UUID uuid, double amount) {
+        double oldBalance;
+        double newBalance;
+        synchronized (locks[stripe(uuid)]) {
+            OptionalDouble balance = load(uuid);
+            if (!balance.isPresent() || balance.getAsDouble() + amount < 0) {
+                return OptionalDouble.empty();
+            }
+            oldBalance = balance.getAsDouble();
+            newBalance = oldBalance + amount;
+            set(uuid, newBalance);
+        }
+        changed(uuid, oldBalance, newBalance);
+        return OptionalDouble.of(newBalance);
+    }
+
+    /**
+     * Move coins from one player to another.
+     *
+     * @param from   player paying the coins.
+     * @param to     player receiving the coins.
+     * @param amount amount of coins to pay, must be positive.
+     * @return the new balances of both players, or null if any of them doesn't exist or the payer doesn't have enough
+     * coins.
+     */
+    @Nullable
+    public double[] transfer(@NotNull UUID from, @NotNull UUID to, double amount) {
+        if (amount <= 0 || from.equals(to)) {
+            return null;
+        }
+        // always lock in the same order to avoid deadlocks
+        int fromStripe = stripe(from);
+        int toStripe = stripe(to);
+        double[] balances;
+        synchronized (locks[Math.min(fromStripe, toStripe)]) {
+            synchronized (locks[Math.max(fromStripe, toStripe)]) {
+                OptionalDouble fromBalance = load(from);
+                OptionalDouble toBalance = load(to);
+                if (!fromBalance.isPresent() || !toBalance.isPresent() || fromBalance.getAsDouble() < amount) {
+                    return null;
+                }
+                balances = new double[]{fromBalance.getAsDouble() - amount, toBalance.getAsDouble() + amount};
+                set(from, balances[0]);
+                set(to, balances[1]);
+            }
+        }
+        changed(from, balances[0] + amount, balances[0]);
+        changed(to, balances[1] - amount, balances[1]);
+        return balances;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    public int getPendingWrites() {
+        return dirty.size();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getFailedWrites() {
+        return failedWrites.get();
+    }
+
+    @Nullable
+    private JsonObject handleOnce(@NotNull JsonObject request) {
+        String id = request.has("id") ? request.get("id").getAsString() : null;
+        if (id == null) {
+            return handle(request);
+        }
+        Handled current = new Handled();
+        Handled previous = handled.putIfAbsent(id, current);
+        if (previous != null) {
+            // a retry of a request that was already applied or is being applied, answer with the same response
+            duplicates.incrementAndGet();
+            return previous.response.join();
+        }
+        JsonObject response = null;
+        try {
+            response = handle(request);
+        } finally {
+            current.response.complete(response);
+        }
+        return response;
+    }
+
+    @Nullable
+    private JsonObject handle(@NotNull JsonObject request) {
+        requests.incrementAndGet();
+        JsonObject response = new JsonObject();
+        try {
+            response.addProperty("id", request.get("id").getAsString());
+            UUID uuid = UUID.fromString(request.get("uuid").getAsString());
+            double amount = request.get("amount").getAsDouble();
+            switch (request.get("op").getAsString()) {
+                case "add":
+                    OptionalDouble balance = add(uuid, amount);
+                    response.addProperty("ok", balance.isPresent());
+                    (balance.isPresent() ? balance : load(uuid)).ifPresent(value -> response.addProperty("balance", value));
+                    break;
+                case "pay":
+                    double[] balances = transfer(uuid, UUID.fromString(request.get("to").getAsString()), amount);
+                    response.addProperty("ok", balances != null);
+                    if (balances != null) {
+                        response.addProperty("balance", balances[0]);
+                        response.addProperty("target", balances[1]);
+                    } else {
+                        load(uuid).ifPresent(value -> response.addProperty("balance", value));
+                    }
+                    break;
+                default:
+                    response.addProperty("ok", false);
+            }
+        } catch (RuntimeException ex) { // missing or invalid fields
+            plugin.log("Received an invalid balance request: " + request);
+            plugin.debug(ex);
+            if (!response.has("id")) {
+                return null;
+            }
+            response.addProperty("ok", false);
+        }
+        if (!response.get("ok").getAsBoolean()) {
+            rejected.incrementAndGet();
+        }
+        return response;
+    }
+
+    private int stripe(@NotNull UUID uuid) {
+        return (uuid.hashCode() & Integer.MAX_VALUE) % STRIPES;
+    }
+
+    // the cache of the proxy always has the latest balance, the storage may be behind until the next write
+    @NotNull
+    private OptionalDouble load(@NotNull UUID uuid) {
+        CacheProvider cache = plugin.getCache();
+        OptionalDouble cached = cache != null ? cache.getCoins(uuid) : OptionalDouble.empty();
+        if (cached.isPresent()) {
+            return cached;
+        }
+        Double pending = dirty.get(uuid);
+        if (pending != null) {
+            return OptionalDouble.of(pending);
+        }
+        StorageProvider storage = plugin.getStorageProvider();
+        double balance = storage != null ? storage.getCoins(uuid) : -1;
+        if (balance < 0) {
+            return OptionalDouble.empty();
+        }
+        if (cache != null) {
+            cache.updatePlayer(uuid, balance);
+        }
+        return OptionalDouble.of(balance);
+    }
+
+    private void set(@NotNull UUID uuid, double balance) {
+        if (plugin.getCache() != null) {
+            plugin.getCache().updatePlayer(uuid, balance);
+        }
+        dirty.put(uuid, balance);
+    }
+
+    private void changed(@NotNull UUID uuid, double oldBalance, double newBalance) {
+        if (plugin.getMessagingService() != null) {
+            plugin.getMessagingService().publishUser(uuid, newBalance);
+        }
+        plugin.getBootstrap().callCoinsChangeEvent(uuid, oldBalance, newBalance);
+    }
+
+    private void expire() {
+        long expired = System.currentTimeMillis() - DEDUPE_WINDOW;
+        handled.values().removeIf(value -> value.time < expired);
+    }
+
+    private void write() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        Map<UUID, Double> balances = new HashMap<>(dirty);
+        StorageProvider storage = plugin.getStorageProvider();
+        try {
+            if (storage instanceof CommonSQLDatabase) {
+                ((CommonSQLDatabase) storage).updateBalances(balances);
+            } else if (storage != null) {
+                balances.forEach(storage::setCoins);
+            } else {
+                return;
+            }
+        } catch (SQLException ex) {
+            failedWrites.incrementAndGet();
+            plugin.log("An error has occurred writing " + balances.size() + " balances to the database, will retry in " + interval + "ms.");
+            plugin.debug(ex);
+            return;
+        }
+        // balances changed while writing stay dirty
+        balances.forEach(dirty::remove);
+        written.addAndGet(balances.size());
+    }
+
+    private static final class Handled {
+
+        private final CompletableFuture<JsonObject> response = new CompletableFuture<>();
+        private final long time = System.currentTimeMillis();
+    }
+}
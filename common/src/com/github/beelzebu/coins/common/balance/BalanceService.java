@@ -0,0 +1,295 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.balance;
+
+import com.github.beelzebu.coins.api.CoinsAPI;
+import com.github.beelzebu.coins.api.CoinsResponse;
+import com.github.beelzebu.coins.api.cache.CacheProvider;
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.api.storage.StorageProvider;
+import com.github.beelzebu.coins.common.cache.NearCache;
+import com.github.beelzebu.coins.common.cache.RedisCache;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import com.github.beelzebu.coins.common.storage.CommonSQLDatabase;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Balance operations that are applied as a delta in the storage (or in redis when it is the authoritative store)
+ * instead of reading and writing the whole balance, storage providers that don't support deltas fallback to
+ * {@link CoinsAPI}. When proxy balances are enabled the operations are only applied by the {@link BalanceAuthority} in
+ * the proxy, and fail if the proxy can't be reached. Operations made in the server thread can't wait for the proxy, they
+ * are checked against the cached balance and sent in background.
+ *
+ * @author Beelzebu
+ */
+public final class BalanceService {
+
+    @NotNull
+    private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+    @Nullable
+    private volatile RemoteBalanceClient remote;
+    // coins added or taken in the server thread that the proxy didn't confirm yet
+    private final Map<UUID, Double> unconfirmed = new ConcurrentHashMap<>();
+
+    public BalanceService(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Add coins to a player.
+     *
+     * @param uuid     player to add coins.
+     * @param amount   amount of coins to add, must be positive.
+     * @param multiply if usable multipliers for this player should be applied.
+     * @return the new balance of the player or empty if the player doesn't exist.
+     * @throws RemoteBalanceClient.UnknownResultException if the proxy didn't answer, the change may have been applied.
+     */
+    @NotNull
+    public OptionalDouble addCoins(@NotNull UUID uuid, double amount, boolean multiply) {
+        if (amount < 0) {
+            return OptionalDouble.empty();
+        }
+        double finalAmount = multiply ? amount * getMultiplier(uuid) : amount;
+        RemoteBalanceClient remote = this.remote;
+        if (remote != null) {
+            return remote.canWait() ? fromRemote(uuid, finalAmount, remote.add(uuid, finalAmount)) : addLater(remote, uuid, finalAmount);
+        }
+        RedisCache redisCache = getAuthoritativeCache();
+        CommonSQLDatabase database = getDatabase();
+        if (redisCache == null && database == null) {
+            return fromResponse(uuid, CoinsAPI.addCoins(uuid, amount, multiply));
+        }
+        OptionalDouble balance = redisCache != null ? redisCache.addCoins(uuid, finalAmount) : database.addCoins(uuid, finalAmount);
+        balance.ifPresent(newBalance -> update(uuid, newBalance - finalAmount, newBalance, redisCache == null));
+        return balance;
+    }
+
+    /**
+     * Take coins from a player, this fails if the player doesn't have enough coins.
+     *
+     * @param uuid   player to take coins.
+     * @param amount amount of coins to take, must be positive.
+     * @return the new balance of the player or empty if the player doesn't exist or doesn't have enough coins.
+     * @throws RemoteBalanceClient.UnknownResultException if the proxy didn't answer, the change may have been applied.
+     */
+    @NotNull
+    public OptionalDouble takeCoins(@NotNull UUID uuid, double amount) {
+        if (amount < 0) {
+            return OptionalDouble.empty();
+        }
+        RemoteBalanceClient remote = this.remote;
+        if (remote != null) {
+            return remote.canWait() ? fromRemote(uuid, -amount, remote.add(uuid, -amount)) : addLater(remote, uuid, -amount);
+        }
+        RedisCache redisCache = getAuthoritativeCache();
+        CommonSQLDatabase database = getDatabase();
+        if (redisCache == null && database == null) {
+            return fromResponse(uuid, CoinsAPI.takeCoins(uuid, amount));
+        }
+        OptionalDouble balance = redisCache != null ? redisCache.addCoins(uuid, -amount) : database.addCoins(uuid, -amount);
+        balance.ifPresent(newBalance -> update(uuid, newBalance + amount, newBalance, redisCache == null));
+        return balance;
+    }
+
+    /**
+     * Move coins from one player to another, this fails if the payer doesn't have enough coins.
+     *
+     * @param from   player paying the coins.
+     * @param to     player receiving the coins.
+     * @param amount amount of coins to pay, must be positive.
+     * @return true if the coins were paid.
+     * @throws RemoteBalanceClient.UnknownResultException if the proxy didn't answer, the payment may have been applied.
+     */
+    public boolean payCoins(@NotNull UUID from, @NotNull UUID to, double amount) {
+        if (amount <= 0 || from.equals(to)) {
+            return false;
+        }
+        RemoteBalanceClient remote = this.remote;
+        if (remote != null) {
+            return remote.canWait() ? fromRemote(from, to, amount, remote.transfer(from, to, amount)) : transferLater(remote, from, to, amount);
+        }
+        RedisCache redisCache = getAuthoritativeCache();
+        CommonSQLDatabase database = getDatabase();
+        if (redisCache == null && database == null) {
+            return CoinsAPI.payCoins(from, to, amount).isSuccess();
+        }
+        double[] balances = redisCache != null ? redisCache.transferCoins(from, to, amount) : database.transferCoins(from, to, amount);
+        if (balances == null) {
+            return false;
+        }
+        update(from, balances[0] + amount, balances[0], redisCache == null);
+        update(to, balances[1] - amount, balances[1], redisCache == null);
+        return true;
+    }
+
+    /**
+     * Get the factor used to multiply coins for this player.
+     *
+     * @param uuid player to check.
+     * @return sum of all usable multipliers for this player, or 1 if there are no multipliers.
+     */
+    public int getMultiplier(@NotNull UUID uuid) {
+        return plugin.getEffectiveMultipliers().get(uuid).getFactor();
+    }
+
+    /**
+     * Send balance operations to the proxy, or apply them locally if the client is null.
+     *
+     * @param remote client connected to the proxy.
+     */
+    public void setRemote(@Nullable RemoteBalanceClient remote) {
+        this.remote = remote;
+    }
+
+    @NotNull
+    private OptionalDouble fromRemote(@NotNull UUID uuid, double amount, @NotNull RemoteBalanceClient.Result result) {
+        switch (result.getStatus()) {
+            case APPLIED:
+                updateLocal(uuid, result.getBalance() - amount, result.getBalance());
+                return OptionalDouble.of(result.getBalance());
+            case UNKNOWN:
+                throw new RemoteBalanceClient.UnknownResultException("The proxy didn't confirm if " + amount + " coins were added to " + uuid);
+            case UNAVAILABLE:
+                plugin.log("Can't change the balance of " + uuid + ", the proxy can't be reached.");
+                return OptionalDouble.empty();
+            default:
+                return OptionalDouble.empty();
+        }
+    }
+
+    private boolean fromRemote(@NotNull UUID from, @NotNull UUID to, double amount, @NotNull RemoteBalanceClient.Result result) {
+        switch (result.getStatus()) {
+            case APPLIED:
+                updateLocal(from, result.getBalance() + amount, result.getBalance());
+                updateLocal(to, result.getTarget() - amount, result.getTarget());
+                return true;
+            case UNKNOWN:
+                throw new RemoteBalanceClient.UnknownResultException("The proxy didn't confirm if " + from + " paid " + amount + " coins to " + to);
+            case UNAVAILABLE:
+                plugin.log("Can't pay coins from " + from + " to " + to + ", the proxy can't be reached.");
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    // the balance is checked against the cache, including changes that are still being sent to the proxy, so players
+    // can't spend the same coins twice before the proxy answers
+    @NotNull
+    private OptionalDouble addLater(@NotNull RemoteBalanceClient remote, @NotNull UUID uuid, double amount) {
+        OptionalDouble balance = getExpected(uuid);
+        if (!balance.isPresent() || balance.getAsDouble() + amount < 0) {
+            return OptionalDouble.empty();
+        }
+        unconfirmed.merge(uuid, amount, Double::sum);
+        if (!plugin.getExecutor().execute(() -> {
+            RemoteBalanceClient.Result result = remote.add(uuid, amount);
+            confirm(uuid, -amount);
+            if (result.getStatus() == RemoteBalanceClient.Status.APPLIED) {
+                updateLocal(uuid, result.getBalance() - amount, result.getBalance());
+            } else {
+                plugin.log("A change of " + amount + " coins to " + uuid + " made in the server thread wasn't applied by the proxy: " + result.getStatus());
+            }
+        })) {
+            confirm(uuid, -amount);
+            plugin.log("Can't send a balance change for " + uuid + " to the proxy, the executor is full.");
+            return OptionalDouble.empty();
+        }
+        return OptionalDouble.of(balance.getAsDouble() + amount);
+    }
+
+    private boolean transferLater(@NotNull RemoteBalanceClient remote, @NotNull UUID from, @NotNull UUID to, double amount) {
+        OptionalDouble balance = getExpected(from);
+        if (!balance.isPresent() || !getExpected(to).isPresent() || balance.getAsDouble() < amount) {
+            return false;
+        }
+        unconfirmed.merge(from, -amount, Double::sum);
+        unconfirmed.merge(to, amount, Double::sum);
+        if (!plugin.getExecutor().execute(() -> {
+            RemoteBalanceClient.Result result = remote.transfer(from, to, amount);
+            confirm(from, amount);
+            confirm(to, -amount);
+            if (result.getStatus() == RemoteBalanceClient.Status.APPLIED) {
+                updateLocal(from, result.getBalance() + amount, result.getBalance());
+                updateLocal(to, result.getTarget() - amount, result.getTarget());
+            } else {
+                plugin.log("A payment of " + amount + " coins from " + from + " to " + to + " made in the server thread wasn't applied by the proxy: " + result.getStatus());
+            }
+        })) {
+            confirm(from, amount);
+            confirm(to, -amount);
+            plugin.log("Can't send a payment from " + from + " to the proxy, the executor is full.");
+            return false;
+        }
+        return true;
+    }
+
+    // only players in the cache can be changed without waiting for the proxy
+    @NotNull
+    private OptionalDouble getExpected(@NotNull UUID uuid) {
+        OptionalDouble cached = plugin.getCache() != null ? plugin.getCache().getCoins(uuid) : OptionalDouble.empty();
+        return cached.isPresent() ? OptionalDouble.of(cached.getAsDouble() + unconfirmed.getOrDefault(uuid, 0D)) : cached;
+    }
+
+    private void confirm(@NotNull UUID uuid, double amount) {
+        unconfirmed.computeIfPresent(uuid, (key, value) -> Math.abs(value + amount) < 1e-9 ? null : value + amount);
+    }
+
+    // the proxy already sent the new balance to all servers
+    private void updateLocal(@NotNull UUID uuid, double oldBalance, double newBalance) {
+        if (plugin.getCache() != null) {
+            plugin.getCache().updatePlayer(uuid, newBalance);
+        }
+        plugin.getBootstrap().callCoinsChangeEvent(uuid, oldBalance, newBalance);
+    }
+
+    private void update(@NotNull UUID uuid, double oldBalance, double newBalance, boolean updateCache) {
+        if (updateCache && plugin.getCache() != null) {
+            plugin.getCache().updatePlayer(uuid, newBalance);
+        } else if (plugin.getCache() instanceof NearCache) {
+            ((NearCache) plugin.getCache()).updateLocal(uuid, newBalance);
+        }
+        if (plugin.getMessagingService() != null) {
+            plugin.getMessagingService().publishUser(uuid, newBalance);
+        }
+        plugin.getBootstrap().callCoinsChangeEvent(uuid, oldBalance, newBalance);
+    }
+
+    @NotNull
+    private OptionalDouble fromResponse(@NotNull UUID uuid, @NotNull CoinsResponse response) {
+        return response.isSuccess() ? OptionalDouble.of(CoinsAPI.getCoins(uuid)) : OptionalDouble.empty();
+    }
+
+    @Nullable
+    private RedisCache getAuthoritativeCache() {
+        CacheProvider cache = plugin.getCache() instanceof NearCache ? ((NearCache) plugin.getCache()).getRedisCache() : plugin.getCache();
+        return cache instanceof RedisCache && ((RedisCache) cache).isAuthoritative() ? (RedisCache) cache : null;
+    }
+
+    @Nullable
+    private CommonSQLDatabase getDatabase() {
+        StorageProvider storageProvider = plugin.getStorageProvider();
+        return storageProvider instanceof CommonSQLDatabase ? (CommonSQLDatabase) storageProvider : null;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.balance;
+
+import com.github.beelzebu.coins.api.config.CoinsConfig;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Conversion between balances and the minor units stored when fixed point balances are enabled, a balance of 12.34
+ * with a scale of 2 is stored as 1234.
+ *
+ * @author Beelzebu
+ */
+public final class FixedPoint {
+
+    private static final int MAX_SCALE = 8;
+    private final boolean enabled;
+    private final int scale;
+    private final long factor;
+
+    public FixedPoint(@NotNull CoinsConfig config) {
+        enabled = config.getBoolean("Fixed Point.Enabled", false);
+        scale = Math.max(0, Math.min(MAX_SCALE, config.getInt("Fixed Point.Scale", 2)));
+        long factor = 1;
+        for (int i = 0; i < scale; i++) {
+            factor *= 10;
+        }
+        this.factor = factor;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * @return amount of minor units in one coin.
+     */
+    public long getFactor() {
+        return factor;
+    }
+
+    public long toMinor(double balance) {
+        return Math.round(balance * factor);
+    }
+
+    public double toMajor(long minor) {
+        return (double) minor / factor;
+    }
+
+    /**
+     * Format a balance in the representation used to store it, minor units if fixed point is enabled.
+     *
+     * @param balance balance to format.
+     * @return formatted balance.
+     */
+    @NotNull
+    public String format(double balance) {
+        return enabled ? Long.toString(toMinor(balance)) : Double.toString(balance);
+    }
+
+    /**
+     * Parse a balance formatted with {@link #format(double)}.
+     *
+     * @param balance balance to parse.
+     * @return parsed balance.
+     * @throws NumberFormatException if the balance isn't a valid number.
+     */
+    public double parse(@NotNull String balance) {
+        return enabled ? toMajor(Long.parseLong(balance)) : Double.parseDouble(balance);
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.balance;
+
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.common.messaging.MessageCodec;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Sends balance changes to the {@link BalanceAuthority} running in the proxy and waits for the response. Every request
+ * has an id that is unique for this server start, requests that weren't answered in time are sent again with the same
+ * id so the proxy doesn't apply them twice.
+ *
+ * @author Beelzebu
+ */
+public final class RemoteBalanceClient {
+
+    @NotNull
+    private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+    @NotNull
+    private final Predicate<byte[]> sender;
+    @NotNull
+    private final BooleanSupplier canWait;
+    @NotNull
+    private final MessageCodec codec;
+    private final long timeout;
+    private final int retries;
+    // ids are <server start>:<counter>, the counter alone restarts with the server
+    private final String idPrefix = UUID.randomUUID() + ":";
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<String, CompletableFuture<JsonObject>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong unavailable = new AtomicLong();
+    private final AtomicLong unknown = new AtomicLong();
+
+    /**
+     * @param plugin  plugin instance.
+     * @param sender  sends a request to the proxy, returns false if it can't be sent.
+     * @param canWait false if the current thread is the one that receives the responses, so it can't wait for them.
+     */
+    public RemoteBalanceClient(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin, @NotNull Predicate<byte[]> sender, @NotNull BooleanSupplier canWait) {
+        this.plugin = plugin;
+        this.sender = sender;
+        this.canWait = canWait;
+        codec = plugin.getMessageCodec();
+        timeout = Math.max(100, plugin.getConfig().getInt("Proxy Balances.Timeout", 2000));
+        retries = Math.max(0, plugin.getConfig().getInt("Proxy Balances.Retries", 2));
+    }
+
+    /**
+     * Add coins to a player in the proxy, the amount may be negative to take coins.
+     *
+     * @param uuid   player to change.
+     * @param amount amount of coins to add.
+     * @return result of the change, the balance is the new balance if it was applied.
+     */
+    @NotNull
+    public Result add(@NotNull UUID uuid, double amount) {
+        JsonObject request = new JsonObject();
+        request.addProperty("op", "add");
+        request.addProperty("uuid", uuid.toString());
+        request.addProperty("amount", amount);
+        return request(request);
+    }
+
+    /**
+     * Move coins from one player to another in the proxy.
+     *
+     * @param from   player paying the coins.
+     * @param to     player receiving the coins.
+     * @param amount amount of coins to pay.
+     * @return result of the payment, the balances are the new balances of both players if it was applied.
+     */
+    @NotNull
+    public Result transfer(@NotNull UUID from, @NotNull UUID to, double amount) {
+        JsonObject request = new JsonObject();
+        request.addProperty("op", "pay");
+        request.addProperty("uuid", from.toString());
+        request.addProperty("to", to.toString());
+        request.addProperty("amount", amount);
+        return request(request);
+    }
+
+    /**
+     * Check if the current thread can wait for a response.
+     *
+     * @return false if this is the thread that receives the responses.
+     */
+    public boolean canWait() {
+        return canWait.getAsBoolean();
+    }
+
+    /**
+     * Complete the requests answered in a plugin message from the proxy.
+     *
+     * @param data plugin message with the responses.
+     */
+    public void receive(@NotNull byte[] data) {
+        List<JsonObject> responses;
+        try {
+            responses = codec.decodeProxy(data);
+        } catch (JsonParseException ex) {
+            plugin.log("Received an invalid balance response, make sure all servers use the same plugin version.");
+            plugin.debug(ex);
+            return;
+        }
+        for (JsonObject response : responses) {
+            CompletableFuture<JsonObject> future = response.has("id") ? pending.remove(response.get("id").getAsString()) : null;
+            if (future != null) {
+                future.complete(response);
+            }
+        }
+    }
+
+    /**
+     * Fail all the requests waiting for a response.
+     */
+    public void stop() {
+        pending.values().forEach(future -> future.cancel(false));
+        pending.clear();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getUnavailable() {
+        return unavailable.get();
+    }
+
+    public long getUnknown() {
+        return unknown.get();
+    }
+
+    public int getPending() {
+        return pending.size();
+    }
+
+    @NotNull
+    private Result request(@NotNull JsonObject request) {
+        if (!canWait.getAsBoolean()) {
+            throw new IllegalStateException("Can't wait for a balance response in this thread.");
+        }
+        String id = idPrefix + nextId.incrementAndGet();
+        request.addProperty("id", id);
+        byte[] data = codec.encodeProxy(request.toString());
+        requests.incrementAndGet();
+        try {
+            for (int attempt = 0; attempt <= retries; attempt++) {
+                CompletableFuture<JsonObject> future = new CompletableFuture<>();
+                pending.put(id, future);
+                if (!sender.test(data)) {
+                    pending.remove(id);
+                    if (attempt == 0) { // nothing was sent, so nothing was changed
+                        unavailable.incrementAndGet();
+                        return Result.UNAVAILABLE;
+                    }
+                    break;
+                }
+                try {
+                    return Result.of(future.get(timeout, TimeUnit.MILLISECONDS));
+                } catch (TimeoutException ex) {
+                    timeouts.incrementAndGet();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RuntimeException ex) {
+            plugin.debug(ex);
+        } finally {
+            pending.remove(id);
+        }
+        // the proxy may have applied the change, it sends the new balance to all servers anyway
+        unknown.incrementAndGet();
+        plugin.log("The proxy didn't answer a balance request after " + (retries + 1) + " attempts, the result is unknown: " + request);
+        return Result.UNKNOWN;
+    }
+
+    public enum Status {
+        /**
+         * The change was applied by the proxy.
+         */
+        APPLIED,
+        /**
+         * The proxy refused the change, the player doesn't exist or doesn't have enough coins.
+         */
+        REJECTED,
+        /**
+         * The request couldn't be sent, nothing was changed.
+         */
+        UNAVAILABLE,
+        /**
+         * The request was sent but the proxy didn't answer, the change may or may not have been applied.
+         */
+        UNKNOWN
+    }
+
+    /**
+     * Response of the proxy to a balance request.
+     */
+    public static final class Result {
+
+        private static final Result UNAVAILABLE = new Result(Status.UNAVAILABLE, Double.NaN, Double.NaN);
+        private static final Result UNKNOWN = new Result(Status.UNKNOWN, Double.NaN, Double.NaN);
+        @NotNull
+        private final Status status;
+        private final double balance;
+        private final double target;
+
+        private Result(@NotNull Status status, double balance, double target) {
+            this.status = status;
+            this.balance = balance;
+            this.target = target;
+        }
+
+        @NotNull
+        private static Result of(@NotNull JsonObject response) {
+            return new Result(response.get("ok").getAsBoolean() ? Status.APPLIED : Status.REJECTED,
+                    response.has("balance") ? response.get("balance").getAsDouble() : Double.NaN,
+                    response.has("target") ? response.get("target").getAsDouble() : Double.NaN);
+        }
+
+        @NotNull
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return new balance of the player, or the current balance if the change was rejected, NaN if unknown.
+         */
+        public double getBalance() {
+            return balance;
+        }
+
+        /**
+         * @return new balance of the player receiving a payment, NaN if unknown.
+         */
+        public double getTarget() {
+            return target;
+        }
+    }
+
+    /**
+     * Thrown when the proxy didn't answer a balance change in time, so it is unknown if the change was applied and the
+     * balance must be checked before trying again.
+     */
+    public static final class UnknownResultException extends RuntimeException {
+
+        public UnknownResultException(@NotNull String message) {
+            super(message);
+        }
+    }
+}
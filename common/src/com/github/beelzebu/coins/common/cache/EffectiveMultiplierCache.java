@@ -0,0 +1,141 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.cache;
+
+import com.github.beelzebu.coins.api.CoinsAPI;
+import com.github.beelzebu.coins.api.Multiplier;
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Usable multipliers resolved for every player, so multiplied payouts don't filter every multiplier against the
+ * permissions of the player each time. An entry is resolved again when a multiplier is added or removed, when one of
+ * its multipliers ends or when it is invalidated because the permissions or the server of the player changed.
+ *
+ * @author Beelzebu
+ */
+public final class EffectiveMultiplierCache {
+
+    @NotNull
+    private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+    private final Map<UUID, EffectiveMultiplier> players = new ConcurrentHashMap<>();
+    private final long maxAge;
+    // incremented when other servers change multipliers, added to the version of the index
+    private final AtomicLong remoteVersion = new AtomicLong();
+
+    public EffectiveMultiplierCache(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin) {
+        this.plugin = plugin;
+        // permission plugins don't always tell us when permissions change
+        maxAge = TimeUnit.SECONDS.toMillis(Math.max(1, plugin.getConfig().getInt("Effective Multipliers.Max Age", 60)));
+    }
+
+    /**
+     * Get the usable multipliers of a player.
+     *
+     * @param uuid player to lookup.
+     * @return resolved multipliers for the player.
+     */
+    @NotNull
+    public EffectiveMultiplier get(@NotNull UUID uuid) {
+        long version = plugin.getMultiplierIndex().getVersion() + remoteVersion.get();
+        long now = System.currentTimeMillis();
+        EffectiveMultiplier effective = players.get(uuid);
+        if (effective == null || effective.version != version || now >= effective.validUntil) {
+            effective = resolve(version, now, CoinsAPI.getUsableMultipliers(uuid));
+            players.put(uuid, effective);
+        }
+        return effective;
+    }
+
+    public void invalidate(@NotNull UUID uuid) {
+        players.remove(uuid);
+    }
+
+    public void invalidateAll() {
+        players.clear();
+    }
+
+    /**
+     * Resolve every player again because another server changed a multiplier, even if the local index didn't change.
+     */
+    public void bumpVersion() {
+        remoteVersion.incrementAndGet();
+    }
+
+    @NotNull
+    private EffectiveMultiplier resolve(long version, long now, @NotNull Collection<Multiplier> multipliers) {
+        int amount = 0;
+        long validUntil = now + maxAge;
+        for (Multiplier multiplier : multipliers) {
+            amount += multiplier.getData().getAmount();
+            if (multiplier.getEndTime() > now) {
+                validUntil = Math.min(validUntil, multiplier.getEndTime());
+            }
+        }
+        String enablers = multipliers.stream().map(multiplier -> multiplier.getData().getEnablerName()).filter(Objects::nonNull).collect(Collectors.joining(", "));
+        return new EffectiveMultiplier(amount, enablers, version, validUntil);
+    }
+
+    public static final class EffectiveMultiplier {
+
+        private final int amount;
+        @NotNull
+        private final String enablers;
+        private final long version;
+        private final long validUntil;
+
+        private EffectiveMultiplier(int amount, @NotNull String enablers, long version, long validUntil) {
+            this.amount = amount;
+            this.enablers = enablers;
+            this.version = version;
+            this.validUntil = validUntil;
+        }
+
+        /**
+         * @return sum of the amount of all usable multipliers.
+         */
+        public int getAmount() {
+            return amount;
+        }
+
+        /**
+         * @return factor used to multiply coins, at least 1.
+         */
+        public int getFactor() {
+            return Math.max(1, amount);
+        }
+
+        /**
+         * @return names of the players that enabled the usable multipliers separated by commas.
+         */
+        @NotNull
+        public String getEnablers() {
+            return enablers;
+        }
+    }
+}
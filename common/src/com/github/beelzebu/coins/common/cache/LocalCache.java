@@ -26,62 +26,69 @@ import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
 import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
-import com.google.common.collect.Lists;
 import com.google.gson.JsonParseException;
-import com.google.gson.JsonSyntaxException;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.OptionalDouble;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Beelzebu
  */
 public final class LocalCache implements CacheProvider {
 
+    private static final long MISSING = Long.MIN_VALUE;
     @NotNull
     private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
-    private final Cache<UUID, Double> players = Caffeine.newBuilder().expireAfterWrite(10, TimeUnit.MINUTES).build();
-    private final Cache<Integer, Multiplier> multipliers = Caffeine.newBuilder().build();
+    @Nullable
+    private final Cache<UUID, Double> players;
+    @Nullable
+    private final PrimitiveBalanceMap primitivePlayers;
     @NotNull
-    private final File multipliersFile;
+    private final MultiplierIndex multipliers;
+    @NotNull
+    private final MultiplierJournal journal;
+    // journal writes are done in the background but in the same order as the changes
+    @NotNull
+    private final Executor journalExecutor;
     @NotNull
     private final MultiplierPoller multiplierPoller;
 
     public LocalCache(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin) {
         this.plugin = plugin;
-        multipliersFile = new File(plugin.getBootstrap().getDataFolder(), "multipliers.dat");
+        if (plugin.getConfig().getBoolean("Local Cache.Primitive Balances", false)) {
+            players = null;
+            primitivePlayers = new PrimitiveBalanceMap(TimeUnit.MINUTES.toMillis(10));
+        } else {
+            players = Caffeine.newBuilder().expireAfterWrite(10, TimeUnit.MINUTES).build();
+            primitivePlayers = null;
+        }
+        multipliers = plugin.getMultiplierIndex();
+        journal = new MultiplierJournal(plugin, new File(plugin.getBootstrap().getDataFolder(), "multipliers.journal"));
+        journalExecutor = plugin.getExecutor().ordered();
         multiplierPoller = new MultiplierPoller(plugin);
     }
 
     @Override
     public void start() {
         try {
-            if (!multipliersFile.exists()) {
-                multipliersFile.createNewFile();
-            }
-            Iterator<String> lines = Files.readAllLines(multipliersFile.toPath()).iterator();
-            while (lines.hasNext()) {
-                String line = lines.next();
-                try {
-                    plugin.getCache().addMultiplier(Multiplier.fromJson(line));
-                } catch (JsonParseException ignore) { // Invalid line
-                    plugin.debug(line + " isn't a valid multiplier in json format.");
-                    lines.remove();
+            for (Multiplier multiplier : journal.open()) {
+                if (multiplier.getServer().equals(plugin.getMultipliersConfig().getServerName())) {
+                    index(multiplier);
                 }
             }
-            Files.write(multipliersFile.toPath(), Lists.newArrayList(lines));
+            migrateLegacyFile();
         } catch (IOException ex) {
             plugin.log("An error has occurred loading multipliers from local storage.");
             plugin.debug(ex);
@@ -90,12 +97,24 @@ public final class LocalCache implements CacheProvider {
 
     @Override
     public void stop() {
-        players.invalidateAll();
-        multipliers.invalidateAll();
+        journal.close();
+        if (primitivePlayers != null) {
+            primitivePlayers.clear();
+        } else {
+            players.invalidateAll();
+        }
+        multipliers.clear();
     }
 
     @Override
     public OptionalDouble getCoins(@NotNull UUID uuid) {
+        if (primitivePlayers != null) {
+            long coins = primitivePlayers.get(uuid, MISSING);
+            if (coins == MISSING) {
+                return OptionalDouble.empty();
+            }
+            return OptionalDouble.of(plugin.getFixedPoint().isEnabled() ? plugin.getFixedPoint().toMajor(coins) : Double.longBitsToDouble(coins));
+        }
         Double coins = players.getIfPresent(uuid);
         if (coins != null) {
             return OptionalDouble.of(coins);
@@ -107,7 +126,12 @@ public final class LocalCache implements CacheProvider {
     public void updatePlayer(@NotNull UUID uuid, double coins) {
         if (plugin.getBootstrap().isOnline(uuid)) { // only update data if player is online
             CoinsAPI.getPlugin().debug("Updated local data for: " + uuid + " (" + plugin.getName(uuid, false) + ")");
-            players.put(uuid, coins);
+            if (primitivePlayers != null) {
+                // adding 0.0 turns -0.0 into 0.0, its bits would be the same as MISSING
+                primitivePlayers.put(uuid, plugin.getFixedPoint().isEnabled() ? plugin.getFixedPoint().toMinor(coins) : Double.doubleToRawLongBits(coins + 0.0));
+            } else {
+                players.put(uuid, coins);
+            }
         } else { // remove player from cache if is offline
             removePlayer(uuid);
         }
@@ -115,75 +139,47 @@ public final class LocalCache implements CacheProvider {
 
     @Override
     public void removePlayer(@NotNull UUID uuid) {
-        players.invalidate(uuid);
+        if (primitivePlayers != null) {
+            primitivePlayers.remove(uuid);
+        } else {
+            players.invalidate(uuid);
+        }
     }
 
     @NotNull
     @Override
     public Optional<Multiplier> getMultiplier(int id) {
-        return multipliers.asMap().values().stream().filter(multiplier -> multiplier.getId() == id).findFirst();
+        return multipliers.get(id);
     }
 
     @Override
     public void addMultiplier(@NotNull Multiplier multiplier) {
-        plugin.getBootstrap().runAsync(() -> {
-            synchronized (multipliersFile) {
-                if (!multiplier.getServer().equals(plugin.getMultipliersConfig().getServerName())) {
-                    return;
-                }
-                // put the multiplier in the cache
-                multipliers.put(multiplier.getId(), multiplier);
-                // store it in a local storage to load them again without querying the database if the server is restarted
-                try {
-                    if (!multipliersFile.exists()) {
-                        multipliersFile.createNewFile();
-                    }
-                    Iterator<String> lines = Files.readAllLines(multipliersFile.toPath()).iterator();
-                    boolean exists = false;
-                    // check if the multiplier was already stored in this server
-                    while (lines.hasNext()) {
-                        String line = lines.next();
-                        if (Objects.requireNonNull(Multiplier.fromJson(line)).getId() == multiplier.getId()) {
-                            exists = true;
-                            plugin.debug("Trying to add an existent multiplier: " + line);
-                            break;
-                        }
-                    }
-                    if (!exists) {
-                        try {
-                            Files.write(multipliersFile.toPath(), Collections.singletonList(multiplier.toJson().toString() + "\n"), StandardOpenOption.APPEND);
-                        } catch (IOException ex) {
-                            plugin.log("An error has occurred saving a multiplier in the local storage.");
-                            plugin.debug(ex);
-                        }
-                    }
-                } catch (IOException ex) {
-                    plugin.log("An error has occurred saving a multiplier in the local storage.");
-                    plugin.debug(ex);
-                }
+        if (!multiplier.getServer().equals(plugin.getMultipliersConfig().getServerName())) {
+            return;
+        }
+        // put the multiplier in the index and schedule its expiry
+        index(multiplier);
+        // store it in a local storage to load them again without querying the database if the server is restarted
+        journalExecutor.execute(() -> {
+            try {
+                journal.add(multiplier);
+            } catch (IOException ex) {
+                plugin.log("An error has occurred saving a multiplier in the local storage.");
+                plugin.debug(ex);
             }
         });
     }
 
     @Override
     public void deleteMultiplier(int id) {
-        plugin.getBootstrap().runAsync(() -> {
-            synchronized (multipliersFile) {
-                try { // remove it from local multiplier storage
-                    Iterator<String> lines = Files.readAllLines(multipliersFile.toPath()).iterator();
-                    while (lines.hasNext()) {
-                        if (Objects.requireNonNull(Multiplier.fromJson(lines.next())).getId() == id) {
-                            multipliers.invalidate(id);
-                            lines.remove();
-                            break;
-                        }
-                    }
-                    Files.write(multipliersFile.toPath(), Lists.newArrayList(lines));
-                } catch (@NotNull IOException | NullPointerException | JsonSyntaxException ex) {
-                    plugin.log("An error has occurred removing a multiplier from local storage.");
-                    plugin.debug(ex);
-                }
-                multipliers.invalidate(id);
+        multipliers.remove(id);
+        plugin.getMultiplierScheduler().cancel(id);
+        journalExecutor.execute(() -> {
+            try { // remove it from local multiplier storage
+                journal.remove(id);
+            } catch (IOException ex) {
+                plugin.log("An error has occurred removing a multiplier from local storage.");
+                plugin.debug(ex);
             }
         });
     }
@@ -191,13 +187,13 @@ public final class LocalCache implements CacheProvider {
     @NotNull
     @Override
     public Set<Multiplier> getMultipliers() {
-        return new HashSet<>(multipliers.asMap().values());
+        return multipliers.getAll();
     }
 
     @NotNull
     @Override
     public Collection<UUID> getPlayers() {
-        return new HashSet<>(players.asMap().keySet());
+        return primitivePlayers != null ? primitivePlayers.keys() : new HashSet<>(players.asMap().keySet());
     }
 
     @NotNull
@@ -211,4 +207,33 @@ public final class LocalCache implements CacheProvider {
     public MultiplierPoller getMultiplierPoller() {
         return multiplierPoller;
     }
+
+    private void index(@NotNull Multiplier multiplier) {
+        multipliers.add(multiplier);
+        plugin.getMultiplierScheduler().schedule(multiplier);
+    }
+
+    // multipliers were stored as json lines before the journal
+    private void migrateLegacyFile() throws IOException {
+        File legacyFile = new File(plugin.getBootstrap().getDataFolder(), "multipliers.dat");
+        if (!legacyFile.exists()) {
+            return;
+        }
+        for (String line : Files.readAllLines(legacyFile.toPath())) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                Multiplier multiplier = Objects.requireNonNull(Multiplier.fromJson(line));
+                journal.add(multiplier);
+                if (multiplier.getServer().equals(plugin.getMultipliersConfig().getServerName())) {
+                    index(multiplier);
+                }
+            } catch (JsonParseException | NullPointerException ex) { // Invalid line
+                plugin.debug(line + " isn't a valid multiplier in json format.");
+            }
+        }
+        Files.move(legacyFile.toPath(), new File(legacyFile.getParentFile(), "multipliers.dat.old").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        plugin.log("Multipliers were moved from multipliers.dat to the new multipliers journal.");
+    }
 }
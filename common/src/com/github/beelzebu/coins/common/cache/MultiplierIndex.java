@@ -0,0 +1,292 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.cache;
+
+import com.github.beelzebu.coins.api.Multiplier;
+import com.github.beelzebu.coins.api.MultiplierData;
+import com.github.beelzebu.coins.api.MultiplierType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Multipliers known by this server indexed by id, server, type and enabler, with precomputed totals for every server
+ * that are only recalculated when a multiplier is added, removed or expires.
+ *
+ * @author Beelzebu
+ */
+public final class MultiplierIndex {
+
+    private final Map<Integer, Multiplier> byId = new ConcurrentHashMap<>();
+    private final Map<String, Set<Integer>> byServer = new ConcurrentHashMap<>();
+    private final Map<MultiplierType, Set<Integer>> byType = new EnumMap<>(MultiplierType.class);
+    private final Map<UUID, Set<Integer>> byEnabler = new ConcurrentHashMap<>();
+    private final Map<String, ServerSummary> summaries = new ConcurrentHashMap<>();
+    // incremented every time the indexed multipliers change
+    private volatile long version;
+
+    public MultiplierIndex() {
+        for (MultiplierType type : MultiplierType.values()) {
+            byType.put(type, ConcurrentHashMap.newKeySet());
+        }
+    }
+
+    public synchronized void add(@NotNull Multiplier multiplier) {
+        Multiplier old = byId.put(multiplier.getId(), multiplier);
+        if (old != null) {
+            unindex(old);
+        }
+        index(multiplier);
+        summarize(key(multiplier.getServer()));
+        version++;
+    }
+
+    public synchronized void remove(int id) {
+        Multiplier multiplier = byId.remove(id);
+        if (multiplier != null) {
+            unindex(multiplier);
+            summarize(key(multiplier.getServer()));
+            version++;
+        }
+    }
+
+    /**
+     * Replace all multipliers in this index, used when the multipliers are read again from an external cache.
+     *
+     * @param multipliers multipliers that are currently active.
+     */
+    public synchronized void replaceAll(@NotNull Collection<Multiplier> multipliers) {
+        if (multipliers.size() == byId.size() && multipliers.stream().allMatch(multiplier -> {
+            Multiplier current = byId.get(multiplier.getId());
+            return current != null && current.getEndTime() == multiplier.getEndTime();
+        })) {
+            return; // nothing changed
+        }
+        clear();
+        for (Multiplier multiplier : multipliers) {
+            Multiplier old = byId.put(multiplier.getId(), multiplier);
+            if (old != null) {
+                unindex(old);
+            }
+            index(multiplier);
+        }
+        byServer.keySet().forEach(this::summarize);
+    }
+
+    public synchronized void clear() {
+        byId.clear();
+        byServer.clear();
+        byType.values().forEach(Set::clear);
+        byEnabler.clear();
+        summaries.clear();
+        version++;
+    }
+
+    /**
+     * @return a number that changes every time a multiplier is added or removed from this index.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    @NotNull
+    public Optional<Multiplier> get(int id) {
+        return Optional.ofNullable(byId.get(id));
+    }
+
+    @NotNull
+    public Set<Multiplier> getAll() {
+        return new HashSet<>(byId.values());
+    }
+
+    @NotNull
+    public Set<Multiplier> getByServer(@NotNull String server) {
+        return resolve(byServer.get(key(server)));
+    }
+
+    @NotNull
+    public Set<Multiplier> getByType(@NotNull MultiplierType type) {
+        return resolve(byType.get(type));
+    }
+
+    @NotNull
+    public Set<Multiplier> getByEnabler(@NotNull UUID enabler) {
+        return resolve(byEnabler.get(enabler));
+    }
+
+    /**
+     * Get the totals of the active server multipliers (not personal and not enabled by the server) for a server.
+     *
+     * @param server server to lookup.
+     * @return summary for the server, empty if there are no active multipliers.
+     */
+    @NotNull
+    public ServerSummary getSummary(@NotNull String server) {
+        String key = key(server);
+        ServerSummary summary = summaries.get(key);
+        if (summary == null) {
+            return ServerSummary.EMPTY;
+        }
+        if (System.currentTimeMillis() >= summary.nextExpiry) { // a multiplier started or expired since the last time
+            synchronized (this) {
+                summary = summarize(key);
+            }
+        }
+        return summary;
+    }
+
+    private void index(@NotNull Multiplier multiplier) {
+        byServer.computeIfAbsent(key(multiplier.getServer()), k -> ConcurrentHashMap.newKeySet()).add(multiplier.getId());
+        byType.get(multiplier.getData().getType()).add(multiplier.getId());
+        if (multiplier.getData().getEnablerUUID() != null) {
+            byEnabler.computeIfAbsent(multiplier.getData().getEnablerUUID(), k -> ConcurrentHashMap.newKeySet()).add(multiplier.getId());
+        }
+    }
+
+    private void unindex(@NotNull Multiplier multiplier) {
+        Set<Integer> server = byServer.get(key(multiplier.getServer()));
+        if (server != null) {
+            server.remove(multiplier.getId());
+        }
+        byType.get(multiplier.getData().getType()).remove(multiplier.getId());
+        if (multiplier.getData().getEnablerUUID() != null) {
+            Set<Integer> enabler = byEnabler.get(multiplier.getData().getEnablerUUID());
+            if (enabler != null) {
+                enabler.remove(multiplier.getId());
+                if (enabler.isEmpty()) {
+                    byEnabler.remove(multiplier.getData().getEnablerUUID());
+                }
+            }
+        }
+    }
+
+    @NotNull
+    private ServerSummary summarize(@NotNull String server) {
+        long now = System.currentTimeMillis();
+        int amount = 0;
+        long nextExpiry = Long.MAX_VALUE;
+        Multiplier latest = null;
+        List<String> enablers = new ArrayList<>();
+        for (Multiplier multiplier : getByServer(server)) {
+            MultiplierData data = multiplier.getData();
+            if (data.getType() == MultiplierType.PERSONAL || data.isServerEnabler() || multiplier.getEndTime() <= now) {
+                continue;
+            }
+            long start = multiplier.getEndTime() - TimeUnit.MINUTES.toMillis(data.getMinutes());
+            if (start > now) { // queued behind another multiplier, summarize again when it starts
+                nextExpiry = Math.min(nextExpiry, start);
+                continue;
+            }
+            amount += data.getAmount();
+            nextExpiry = Math.min(nextExpiry, multiplier.getEndTime());
+            if (latest == null || latest.getEndTime() < multiplier.getEndTime()) {
+                latest = multiplier;
+            }
+            if (data.getEnablerName() != null) {
+                enablers.add(data.getEnablerName());
+            }
+        }
+        ServerSummary summary;
+        if (latest != null) {
+            summary = new ServerSummary(amount, latest, String.join(", ", enablers), nextExpiry);
+        } else if (nextExpiry != Long.MAX_VALUE) { // nothing active yet, but a queued multiplier will start
+            summary = new ServerSummary(0, null, "", nextExpiry);
+        } else {
+            summary = ServerSummary.EMPTY;
+        }
+        if (summary == ServerSummary.EMPTY) {
+            summaries.remove(server);
+        } else {
+            summaries.put(server, summary);
+        }
+        return summary;
+    }
+
+    @NotNull
+    private Set<Multiplier> resolve(@Nullable Set<Integer> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptySet();
+        }
+        return ids.stream().map(byId::get).filter(Objects::nonNull).collect(Collectors.toSet());
+    }
+
+    @NotNull
+    private static String key(@NotNull String server) {
+        return server.toLowerCase(Locale.ROOT);
+    }
+
+    public static final class ServerSummary {
+
+        static final ServerSummary EMPTY = new ServerSummary(0, null, "", Long.MAX_VALUE);
+        private final int amount;
+        @Nullable
+        private final Multiplier latest;
+        @NotNull
+        private final String enablers;
+        private final long nextExpiry;
+
+        private ServerSummary(int amount, @Nullable Multiplier latest, @NotNull String enablers, long nextExpiry) {
+            this.amount = amount;
+            this.latest = latest;
+            this.enablers = enablers;
+            this.nextExpiry = nextExpiry;
+        }
+
+        /**
+         * @return sum of the amount of all active multipliers.
+         */
+        public int getAmount() {
+            return amount;
+        }
+
+        /**
+         * @return the active multiplier that will end last, or null if there are no active multipliers.
+         */
+        @Nullable
+        public Multiplier getLatest() {
+            return latest;
+        }
+
+        /**
+         * @return names of the players that enabled the active multipliers separated by commas.
+         */
+        @NotNull
+        public String getEnablers() {
+            return enablers;
+        }
+
+        public boolean isEmpty() {
+            return latest == null;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.cache;
+
+import com.github.beelzebu.coins.api.Multiplier;
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import com.google.gson.JsonParseException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Append only journal of added and removed multipliers. Every record is a type byte followed by the multiplier id and,
+ * for added multipliers, the length prefixed json. Old records are compacted when most of the journal is dead.
+ *
+ * @author Beelzebu
+ */
+final class MultiplierJournal {
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+    private static final int COMPACT_MIN_RECORDS = 64;
+    private static final double COMPACT_DEAD_RATIO = 0.5;
+    @NotNull
+    private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+    @NotNull
+    private final File file;
+    // id -> json of the multipliers that are still alive in the journal
+    private final Map<Integer, byte[]> live = new LinkedHashMap<>();
+    private int records;
+    // bytes of complete records in the file
+    private long length;
+    @Nullable
+    private DataOutputStream out;
+    private boolean compacting;
+
+    MultiplierJournal(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin, @NotNull File file) {
+        this.plugin = plugin;
+        this.file = file;
+    }
+
+    /**
+     * Read the whole journal and open it to append new records.
+     *
+     * @return multipliers that weren't removed, in the order they were added.
+     * @throws IOException if the journal can't be read or opened.
+     */
+    @NotNull
+    synchronized List<Multiplier> open() throws IOException {
+        live.clear();
+        records = 0;
+        long valid = 0;
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    try {
+                        byte type = in.readByte();
+                        int id = in.readInt();
+                        if (type == ADD) {
+                            int length = in.readInt();
+                            if (length < 0 || length > MAX_RECORD_SIZE) {
+                                throw new IOException("Invalid record length " + length);
+                            }
+                            byte[] json = new byte[length];
+                            in.readFully(json);
+                            live.put(id, json);
+                            valid += 9 + length;
+                        } else if (type == REMOVE) {
+                            live.remove(id);
+                            valid += 5;
+                        } else {
+                            throw new IOException("Invalid record type " + type);
+                        }
+                        records++;
+                    } catch (EOFException ex) {
+                        break;
+                    }
+                }
+            } catch (IOException ex) {
+                plugin.log("The multipliers journal is corrupt after " + records + " records, the rest will be discarded.");
+                plugin.debug(ex);
+            }
+            if (valid < file.length()) { // a record was partially written, remove it so new records are readable
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(valid);
+                }
+            }
+        }
+        length = valid;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        List<Multiplier> multipliers = new ArrayList<>(live.size());
+        for (byte[] json : live.values()) {
+            try {
+                multipliers.add(Objects.requireNonNull(Multiplier.fromJson(new String(json, StandardCharsets.UTF_8))));
+            } catch (JsonParseException | NullPointerException ex) {
+                plugin.debug(new String(json, StandardCharsets.UTF_8) + " isn't a valid multiplier in json format.");
+            }
+        }
+        return multipliers;
+    }
+
+    synchronized void add(@NotNull Multiplier multiplier) throws IOException {
+        if (live.containsKey(multiplier.getId())) {
+            plugin.debug("Trying to add an existent multiplier: " + multiplier.getId());
+            return;
+        }
+        byte[] json = multiplier.toJson().toString().getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(9 + json.length);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(ADD);
+        record.writeInt(multiplier.getId());
+        record.writeInt(json.length);
+        record.write(json);
+        append(bytes.toByteArray());
+        live.put(multiplier.getId(), json);
+        records++;
+    }
+
+    synchronized void remove(int id) throws IOException {
+        if (!live.containsKey(id)) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(5);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(REMOVE);
+        record.writeInt(id);
+        append(bytes.toByteArray());
+        live.remove(id);
+        records++;
+        if (!compacting && records >= COMPACT_MIN_RECORDS && 1 - (double) live.size() / records > COMPACT_DEAD_RATIO) {
+            compacting = true;
+            if (!plugin.getExecutor().execute(this::compact)) {
+                compacting = false;
+            }
+        }
+    }
+
+    synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException ex) {
+            plugin.log("An error has occurred closing the multipliers journal.");
+            plugin.debug(ex);
+        }
+        out = null;
+    }
+
+    /**
+     * Write only the live records to a new file and replace the journal with it.
+     */
+    synchronized void compact() {
+        compacting = false;
+        if (out == null) {
+            return;
+        }
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            long compacted = 0;
+            try (DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                for (Map.Entry<Integer, byte[]> entry : live.entrySet()) {
+                    tmpOut.writeByte(ADD);
+                    tmpOut.writeInt(entry.getKey());
+                    tmpOut.writeInt(entry.getValue().length);
+                    tmpOut.write(entry.getValue());
+                    compacted += 9 + entry.getValue().length;
+                }
+            }
+            out.close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            plugin.debug("Compacted multipliers journal from " + records + " to " + live.size() + " records.");
+            records = live.size();
+            length = compacted;
+        } catch (IOException ex) {
+            plugin.log("An error has occurred compacting the multipliers journal.");
+            plugin.debug(ex);
+        } finally {
+            closeQuietly(out); // may still be open if the temporary file couldn't be written
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            } catch (IOException ex) {
+                plugin.log("An error has occurred opening the multipliers journal.");
+                plugin.debug(ex);
+                out = null;
+            }
+        }
+    }
+
+    private void append(@NotNull byte[] record) throws IOException {
+        DataOutputStream out = getOut();
+        try {
+            out.write(record);
+            out.flush();
+        } catch (IOException ex) {
+            truncate();
+            throw ex;
+        }
+        length += record.length;
+    }
+
+    // remove a record that was partially written, records appended after it wouldn't be readable
+    private void truncate() {
+        closeQuietly(out);
+        out = null;
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(length);
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        } catch (IOException ex) {
+            plugin.log("An error has occurred repairing the multipliers journal, it will be repaired on the next start.");
+            plugin.debug(ex);
+        }
+    }
+
+    private static void closeQuietly(@Nullable DataOutputStream out) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException ignore) { // the buffered bytes are discarded
+        }
+    }
+
+    @NotNull
+    private DataOutputStream getOut() throws IOException {
+        if (out == null) {
+            throw new IOException("Multipliers journal is closed");
+        }
+        return out;
+    }
+}
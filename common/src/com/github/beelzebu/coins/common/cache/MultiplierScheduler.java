@@ -0,0 +1,277 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.cache;
+
+import com.github.beelzebu.coins.api.Multiplier;
+import com.github.beelzebu.coins.api.cache.CacheProvider;
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Fires multiplier transitions when they are due using a hierarchical timing wheel, a queued multiplier fires the
+ * enable event when it starts and every multiplier is removed from the cache when it ends. Adding, cancelling and
+ * advancing timers doesn't depend on the amount of multipliers.
+ *
+ * @author Beelzebu
+ */
+public final class MultiplierScheduler {
+
+    // every level has 64 buckets, the span of a bucket is the span of a full rotation of the previous level
+    private static final int BUCKETS = 64;
+    private static final int[] SHIFTS = {7, 13, 19, 25, 31}; // ~128ms, ~8s, ~9m, ~9h and ~25d per bucket
+    private static final long TICK = 1L << SHIFTS[0];
+    @NotNull
+    private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+    private final Timer[][] wheel = new Timer[SHIFTS.length][BUCKETS];
+    private final Map<Integer, Timer> starts = new HashMap<>();
+    private final Map<Integer, Timer> ends = new HashMap<>();
+    private long time = System.currentTimeMillis();
+    private volatile long lastLag;
+    private volatile long maxLag;
+    @Nullable
+    private Thread thread;
+
+    public MultiplierScheduler(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin) {
+        this.plugin = plugin;
+        for (Timer[] level : wheel) {
+            for (int i = 0; i < BUCKETS; i++) {
+                level[i] = Timer.sentinel();
+            }
+        }
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this::run, "Coins Multiplier Timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = this.thread;
+            this.thread = null;
+            starts.values().forEach(Timer::unlink);
+            ends.values().forEach(Timer::unlink);
+            starts.clear();
+            ends.clear();
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Schedule the transitions of a multiplier, scheduling a multiplier again only moves its timers if the end time
+     * changed. A multiplier that already ended is removed right away.
+     *
+     * @param multiplier multiplier to schedule.
+     */
+    public void schedule(@NotNull Multiplier multiplier) {
+        Timer due = addTimers(multiplier);
+        if (due != null) {
+            fire(due);
+        }
+    }
+
+    // returns the end timer if it is already due, it would be behind the cursor of the wheel
+    @Nullable
+    private synchronized Timer addTimers(@NotNull Multiplier multiplier) {
+        long end = multiplier.getEndTime();
+        if (end <= 0) { // not enabled
+            return null;
+        }
+        Timer endTimer = ends.get(multiplier.getId());
+        if (endTimer != null && endTimer.deadline == end) {
+            return null;
+        }
+        cancel(multiplier.getId());
+        endTimer = new Timer(multiplier, true, end);
+        if (end <= System.currentTimeMillis()) {
+            return endTimer;
+        }
+        long start = end - TimeUnit.MINUTES.toMillis(multiplier.getData().getMinutes());
+        if (start > System.currentTimeMillis()) { // queued behind another multiplier
+            Timer startTimer = new Timer(multiplier, false, start);
+            starts.put(multiplier.getId(), startTimer);
+            add(startTimer);
+        }
+        ends.put(multiplier.getId(), endTimer);
+        add(endTimer);
+        return null;
+    }
+
+    public synchronized void cancel(int id) {
+        Timer timer = starts.remove(id);
+        if (timer != null) {
+            timer.unlink();
+        }
+        timer = ends.remove(id);
+        if (timer != null) {
+            timer.unlink();
+        }
+    }
+
+    /**
+     * @return amount of start and end timers waiting to fire.
+     */
+    public synchronized int getPendingTimers() {
+        return starts.size() + ends.size();
+    }
+
+    /**
+     * @return milliseconds between the deadline and the execution of the last timer that fired.
+     */
+    public long getLastLag() {
+        return lastLag;
+    }
+
+    /**
+     * @return maximum milliseconds between the deadline and the execution of a timer.
+     */
+    public long getMaxLag() {
+        return maxLag;
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(TICK - (System.currentTimeMillis() & (TICK - 1))); // wake up at the next bucket boundary
+            } catch (InterruptedException ex) {
+                return;
+            }
+            for (Timer timer : advance(System.currentTimeMillis())) {
+                fire(timer);
+            }
+        }
+    }
+
+    @NotNull
+    private synchronized List<Timer> advance(long now) {
+        List<Timer> due = new ArrayList<>();
+        long previous = time;
+        time = now;
+        for (int level = 0; level < SHIFTS.length; level++) {
+            long previousTicks = previous >>> SHIFTS[level];
+            long currentTicks = now >>> SHIFTS[level];
+            if (currentTicks - previousTicks <= 0) {
+                break; // higher levels didn't move either
+            }
+            int steps = (int) Math.min(currentTicks - previousTicks + 1, BUCKETS);
+            for (int i = 0; i < steps; i++) {
+                Timer sentinel = wheel[level][(int) ((previousTicks + i) & (BUCKETS - 1))];
+                Timer timer = sentinel.next;
+                sentinel.prev = sentinel.next = sentinel;
+                while (timer != sentinel) {
+                    Timer next = timer.next;
+                    timer.prev = timer.next = null;
+                    if (timer.deadline <= now) {
+                        (timer.end ? ends : starts).remove(timer.multiplier.getId(), timer);
+                        due.add(timer);
+                    } else { // cascade to a lower level
+                        add(timer);
+                    }
+                    timer = next;
+                }
+            }
+        }
+        return due;
+    }
+
+    private void add(@NotNull Timer timer) {
+        long delay = timer.deadline - time;
+        int level = 0;
+        while (level < SHIFTS.length - 1 && delay >= 1L << SHIFTS[level + 1]) {
+            level++;
+        }
+        // timers beyond the last level wait in the last bucket of the rotation and are cascaded again
+        long ticks = level == SHIFTS.length - 1 && delay >= (long) BUCKETS << SHIFTS[level] ? (time >>> SHIFTS[level]) - 1 : timer.deadline >>> SHIFTS[level];
+        Timer sentinel = wheel[level][(int) (ticks & (BUCKETS - 1))];
+        timer.next = sentinel;
+        timer.prev = sentinel.prev;
+        sentinel.prev.next = timer;
+        sentinel.prev = timer;
+    }
+
+    private void fire(@NotNull Timer timer) {
+        long lag = Math.max(0, System.currentTimeMillis() - timer.deadline);
+        lastLag = lag;
+        maxLag = Math.max(maxLag, lag);
+        if (timer.end) {
+            if (!plugin.getExecutor().execute(() -> {
+                CacheProvider cache = plugin.getCache();
+                if (cache instanceof NearCache) {
+                    cache = ((NearCache) cache).getRedisCache();
+                }
+                if (cache instanceof RedisCache) { // other servers may have removed or extended it already
+                    ((RedisCache) cache).expireMultiplier(timer.multiplier.getId());
+                } else if (cache != null) {
+                    cache.deleteMultiplier(timer.multiplier.getId());
+                }
+            })) {
+                plugin.debug("Couldn't remove expired multiplier " + timer.multiplier.getId() + " from cache.");
+            }
+        } else {
+            plugin.getBootstrap().callMultiplierEnableEvent(timer.multiplier);
+        }
+    }
+
+    private static final class Timer {
+
+        @Nullable
+        private final Multiplier multiplier;
+        private final boolean end;
+        private final long deadline;
+        @Nullable
+        private Timer prev;
+        @Nullable
+        private Timer next;
+
+        private Timer(@Nullable Multiplier multiplier, boolean end, long deadline) {
+            this.multiplier = multiplier;
+            this.end = end;
+            this.deadline = deadline;
+        }
+
+        @NotNull
+        static Timer sentinel() {
+            Timer sentinel = new Timer(null, false, 0);
+            sentinel.prev = sentinel.next = sentinel;
+            return sentinel;
+        }
+
+        void unlink() {
+            if (prev != null && next != null) {
+                prev.next = next;
+                next.prev = prev;
+            }
+            prev = next = null;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.cache;
+
+import com.github.beelzebu.coins.api.storage.StorageProvider;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import com.github.beelzebu.coins.common.storage.CommonSQLDatabase;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Resolves names and uuids of offline players, results are kept in a bounded LRU cache for both directions. Names that
+ * aren't in the database are remembered for a short time, names changed in other servers are seen when the entry
+ * expires, and concurrent lookups for the same key share one query.
+ *
+ * @author Beelzebu
+ */
+public final class NameResolver {
+
+    @NotNull
+    private final CommonCoinsPlugin<?> plugin;
+    private final int maxSize;
+    private final long negativeMillis;
+    private final long positiveMillis;
+    // both maps are guarded by this object
+    private final Map<String, Entry> byName;
+    private final Map<UUID, Entry> byUuid;
+    private final Map<String, CompletableFuture<UUID>> pendingNames = new ConcurrentHashMap<>();
+    private final Map<UUID, CompletableFuture<String>> pendingUuids = new ConcurrentHashMap<>();
+
+    public NameResolver(@NotNull CommonCoinsPlugin<?> plugin) {
+        this.plugin = plugin;
+        maxSize = Math.max(16, plugin.getConfig().getInt("Name Cache.Size", 10000));
+        negativeMillis = TimeUnit.SECONDS.toMillis(Math.max(0, plugin.getConfig().getInt("Name Cache.Unknown Names", 30)));
+        positiveMillis = TimeUnit.SECONDS.toMillis(Math.max(1, plugin.getConfig().getInt("Name Cache.Expire", 600)));
+        byName = new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= maxSize) {
+                    return false;
+                }
+                if (eldest.getValue().uuid != null) {
+                    byUuid.remove(eldest.getValue().uuid, eldest.getValue());
+                }
+                return true;
+            }
+        };
+        byUuid = new LinkedHashMap<UUID, Entry>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Entry> eldest) {
+                if (size() <= maxSize) {
+                    return false;
+                }
+                byName.remove(eldest.getValue().key, eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Get the uuid of a player from the cache or the database.
+     *
+     * @param name name of the player, case is ignored.
+     * @return uuid of the player or null if there is no player with that name.
+     */
+    @Nullable
+    public UUID getUniqueId(@NotNull String name) {
+        String key = name.toLowerCase(Locale.ROOT);
+        synchronized (this) {
+            Entry entry = getCached(key, System.currentTimeMillis());
+            if (entry != null) {
+                return entry.uuid;
+            }
+        }
+        CompletableFuture<UUID> future = new CompletableFuture<>();
+        CompletableFuture<UUID> running = pendingNames.putIfAbsent(key, future);
+        if (running != null) {
+            return join(running);
+        }
+        try {
+            Map<String, UUID> found = loadUniqueIds(Collections.singletonList(key));
+            UUID uuid = found != null ? found.get(key) : null;
+            if (found != null) {
+                cache(key, uuid, null);
+            }
+            future.complete(uuid);
+            return uuid;
+        } catch (RuntimeException ex) {
+            future.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            pendingNames.remove(key, future);
+        }
+    }
+
+    /**
+     * Get the uuids of many players, names that aren't cached are resolved with a single query.
+     *
+     * @param names names of the players, case is ignored.
+     * @return uuids by lowercase name, names not found aren't included.
+     */
+    @NotNull
+    public Map<String, UUID> getUniqueIds(@NotNull Collection<String> names) {
+        Map<String, UUID> uuids = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (String name : names) {
+                String key = name.toLowerCase(Locale.ROOT);
+                Entry entry = getCached(key, now);
+                if (entry == null) {
+                    missing.add(key);
+                } else if (entry.uuid != null) {
+                    uuids.put(key, entry.uuid);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return uuids;
+        }
+        Map<String, UUID> found = loadUniqueIds(missing);
+        if (found != null) {
+            for (String key : missing) {
+                cache(key, found.get(key), null);
+            }
+            uuids.putAll(found);
+        }
+        return uuids;
+    }
+
+    /**
+     * Get the name of a player from the cache or the database.
+     *
+     * @param uuid uuid of the player.
+     * @return name of the player or null if the player isn't in the database.
+     */
+    @Nullable
+    public String getName(@NotNull UUID uuid) {
+        synchronized (this) {
+            Entry entry = byUuid.get(uuid);
+            if (entry != null && System.currentTimeMillis() >= entry.expiresAt) {
+                remove(entry);
+            } else if (entry != null && entry.name != null) {
+                return entry.name;
+            }
+        }
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> running = pendingUuids.putIfAbsent(uuid, future);
+        if (running != null) {
+            return join(running);
+        }
+        try {
+            String name = loadName(uuid);
+            if (name != null) {
+                cache(name.toLowerCase(Locale.ROOT), uuid, name);
+            }
+            future.complete(name);
+            return name;
+        } catch (RuntimeException ex) {
+            future.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            pendingUuids.remove(uuid, future);
+        }
+    }
+
+    /**
+     * Update the name of a player, called when a player is created or joins with a new name.
+     *
+     * @param uuid uuid of the player.
+     * @param name current name of the player.
+     */
+    public void update(@NotNull UUID uuid, @NotNull String name) {
+        cache(name.toLowerCase(Locale.ROOT), uuid, name);
+    }
+
+    public synchronized void invalidateAll() {
+        byName.clear();
+        byUuid.clear();
+    }
+
+    public synchronized int size() {
+        return byName.size();
+    }
+
+    // must hold the lock
+    @Nullable
+    private Entry getCached(@NotNull String key, long now) {
+        Entry entry = byName.get(key);
+        if (entry != null && now >= entry.expiresAt) {
+            remove(entry);
+            return null;
+        }
+        return entry;
+    }
+
+    // must hold the lock
+    private void remove(@NotNull Entry entry) {
+        byName.remove(entry.key, entry);
+        if (entry.uuid != null) {
+            byUuid.remove(entry.uuid, entry);
+        }
+    }
+
+    private synchronized void cache(@NotNull String key, @Nullable UUID uuid, @Nullable String name) {
+        if (uuid == null) {
+            if (negativeMillis > 0) {
+                Entry old = byName.put(key, new Entry(key, null, null, System.currentTimeMillis() + negativeMillis));
+                if (old != null && old.uuid != null) {
+                    byUuid.remove(old.uuid, old);
+                }
+            }
+            return;
+        }
+        if (name == null) { // looked up by name, keep the exact name if we already have it
+            Entry current = byUuid.get(uuid);
+            name = current != null && current.key.equals(key) ? current.name : null;
+        }
+        Entry entry = new Entry(key, uuid, name, System.currentTimeMillis() + positiveMillis);
+        Entry oldByUuid = byUuid.put(uuid, entry);
+        if (oldByUuid != null && !oldByUuid.key.equals(key)) { // player changed name
+            byName.remove(oldByUuid.key, oldByUuid);
+        }
+        Entry oldByName = byName.put(key, entry);
+        if (oldByName != null && oldByName.uuid != null && !oldByName.uuid.equals(uuid)) { // name is used by someone else now
+            byUuid.remove(oldByName.uuid, oldByName);
+        }
+    }
+
+    @Nullable
+    private Map<String, UUID> loadUniqueIds(@NotNull List<String> keys) {
+        StorageProvider storageProvider = plugin.getStorageProvider();
+        if (storageProvider == null) {
+            return null;
+        }
+        if (storageProvider instanceof CommonSQLDatabase) {
+            try {
+                return ((CommonSQLDatabase) storageProvider).getUniqueIds(keys);
+            } catch (SQLException ex) {
+                plugin.log("An error has occurred looking up the uuids of " + keys.size() + " players.");
+                plugin.debug(ex);
+                return null;
+            }
+        }
+        Map<String, UUID> uuids = new HashMap<>();
+        for (String key : keys) {
+            UUID uuid = storageProvider.getUUID(key);
+            if (uuid != null) {
+                uuids.put(key, uuid);
+            }
+        }
+        return uuids;
+    }
+
+    @Nullable
+    private String loadName(@NotNull UUID uuid) {
+        StorageProvider storageProvider = plugin.getStorageProvider();
+        if (storageProvider == null) {
+            return null;
+        }
+        if (storageProvider instanceof CommonSQLDatabase) {
+            try {
+                return ((CommonSQLDatabase) storageProvider).getNames(Collections.singletonList(uuid)).get(uuid);
+            } catch (SQLException ex) {
+                plugin.log("An error has occurred looking up the name of " + uuid + ".");
+                plugin.debug(ex);
+                return null;
+            }
+        }
+        return storageProvider.getName(uuid);
+    }
+
+    @Nullable
+    private static <V> V join(@NotNull CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            return null; // the thread that ran the lookup already reported the error
+        }
+    }
+
+    private static final class Entry {
+
+        @NotNull
+        private final String key;
+        @Nullable
+        private final UUID uuid;
+        @Nullable
+        private final String name; // null until the exact name is known
+        private final long expiresAt;
+
+        private Entry(@NotNull String key, @Nullable UUID uuid, @Nullable String name, long expiresAt) {
+            this.key = key;
+            this.uuid = uuid;
+            this.name = name;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
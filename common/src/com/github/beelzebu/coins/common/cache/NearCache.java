@@ -0,0 +1,252 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.cache;
+
+import com.github.beelzebu.coins.api.Multiplier;
+import com.github.beelzebu.coins.api.cache.CacheProvider;
+import com.github.beelzebu.coins.api.cache.CacheType;
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.common.messaging.RedisMessaging;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import com.github.beelzebu.coins.common.utils.RedisManager;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Keeps recently read balances in memory in front of {@link RedisCache}, entries are invalidated on every server when
+ * a balance changes and never live longer than the configured staleness.
+ *
+ * @author Beelzebu
+ */
+public final class NearCache implements CacheProvider {
+
+    public static final String INVALIDATION_CHANNEL = "coins-invalidation";
+    private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+    private final RedisCache redisCache;
+    private final RedisManager redisManager;
+    private final Cache<UUID, Double> players;
+    private final String serverId = UUID.randomUUID().toString();
+    @Nullable
+    private InvalidationListener listener;
+
+    public NearCache(CommonCoinsPlugin<? extends CoinsBootstrap> plugin, RedisCache redisCache, RedisManager redisManager) {
+        this.plugin = plugin;
+        this.redisCache = redisCache;
+        this.redisManager = redisManager;
+        players = Caffeine.newBuilder()
+                .maximumSize(Math.max(100, plugin.getConfig().getInt("Redis.Near Cache.Max Size", 10000)))
+                .expireAfterWrite(Math.max(100, plugin.getConfig().getInt("Redis.Near Cache.Max Staleness", 5000)), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    @Override
+    public void start() {
+        redisCache.start();
+        // redis messaging already listens to the invalidation channel, otherwise we need our own subscription
+        if (!(plugin.getMessagingService() instanceof RedisMessaging)) {
+            listener = new InvalidationListener();
+            Thread thread = new Thread(listener, "Coins Near Cache Invalidation");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (listener != null) {
+            listener.poison();
+            listener = null;
+        }
+        players.invalidateAll();
+        redisCache.stop();
+    }
+
+    @Override
+    public OptionalDouble getCoins(@NotNull UUID uuid) {
+        Double coins = players.getIfPresent(uuid);
+        if (coins != null) {
+            return OptionalDouble.of(coins);
+        }
+        OptionalDouble remote = redisCache.getCoins(uuid);
+        remote.ifPresent(balance -> players.put(uuid, balance));
+        return remote;
+    }
+
+    @Override
+    public void updatePlayer(@NotNull UUID uuid, double coins) {
+        redisCache.updatePlayer(uuid, coins);
+        updateLocal(uuid, coins);
+    }
+
+    /**
+     * Update only the local copy of a balance that was already changed in redis and notify other servers.
+     *
+     * @param uuid  player that changed.
+     * @param coins new balance.
+     */
+    public void updateLocal(@NotNull UUID uuid, double coins) {
+        players.put(uuid, coins);
+        publishInvalidation(uuid);
+    }
+
+    @Override
+    public void removePlayer(@NotNull UUID uuid) {
+        redisCache.removePlayer(uuid);
+        players.invalidate(uuid);
+        publishInvalidation(uuid);
+    }
+
+    @Override
+    public Optional<Multiplier> getMultiplier(int id) {
+        return redisCache.getMultiplier(id);
+    }
+
+    @Override
+    public void addMultiplier(@NotNull Multiplier multiplier) {
+        redisCache.addMultiplier(multiplier);
+    }
+
+    @Override
+    public void deleteMultiplier(int id) {
+        redisCache.deleteMultiplier(id);
+    }
+
+    @NotNull
+    @Override
+    public Set<Multiplier> getMultipliers() {
+        return redisCache.getMultipliers();
+    }
+
+    @NotNull
+    @Override
+    public Collection<UUID> getPlayers() {
+        return redisCache.getPlayers();
+    }
+
+    @NotNull
+    @Override
+    public CacheType getCacheType() {
+        return CacheType.REDIS;
+    }
+
+    @NotNull
+    @Override
+    public MultiplierPoller getMultiplierPoller() {
+        return redisCache.getMultiplierPoller();
+    }
+
+    @NotNull
+    public RedisCache getRedisCache() {
+        return redisCache;
+    }
+
+    public long getHitCount() {
+        return players.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return players.stats().missCount();
+    }
+
+    public double getHitRate() {
+        return players.stats().hitRate();
+    }
+
+    /**
+     * Drop every balance cached in this server, used when invalidations may have been missed.
+     */
+    public void invalidateAll() {
+        players.invalidateAll();
+    }
+
+    /**
+     * Handle a message received in {@link #INVALIDATION_CHANNEL}.
+     *
+     * @param message message received.
+     */
+    public void handleInvalidation(@NotNull String message) {
+        int split = message.indexOf(':');
+        if (split == -1 || message.substring(0, split).equals(serverId)) {
+            return;
+        }
+        try {
+            players.invalidate(UUID.fromString(message.substring(split + 1)));
+        } catch (IllegalArgumentException ex) {
+            plugin.debug("Invalid near cache invalidation message: " + message);
+        }
+    }
+
+    private void publishInvalidation(@NotNull UUID uuid) {
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            jedis.publish(INVALIDATION_CHANNEL, serverId + ":" + uuid);
+        } catch (JedisException ex) {
+            plugin.log("An error has occurred publishing cache invalidation for '" + uuid + "'.");
+            plugin.debug(ex);
+        }
+    }
+
+    private final class InvalidationListener extends JedisPubSub implements Runnable {
+
+        private volatile boolean running = true;
+
+        @Override
+        public void run() {
+            while (running) {
+                try (Jedis jedis = redisManager.getPool().getResource()) {
+                    jedis.subscribe(this, INVALIDATION_CHANNEL);
+                } catch (Exception ex) {
+                    if (!running) {
+                        return;
+                    }
+                    plugin.log("Near cache invalidation subscription lost, attempting to recover.");
+                    invalidateAll(); // we may have missed invalidations
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ignore) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onMessage(String channel, String message) {
+            handleInvalidation(message);
+        }
+
+        void poison() {
+            running = false;
+            if (isSubscribed()) {
+                unsubscribe();
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.cache;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Open addressing hash map from UUID to balance that stores everything in primitive arrays, lookups and updates don't
+ * allocate any object. Balances are stored as longs, either minor units or the bits of a double depending on the
+ * caller. Entries expire after the given time since they were written.
+ *
+ * @author Beelzebu
+ */
+final class PrimitiveBalanceMap {
+
+    private static final int MIN_CAPACITY = 64;
+    private final long expireMillis;
+    private final StampedLock lock = new StampedLock();
+    private long[] most;
+    private long[] least;
+    private long[] balances;
+    // 0 means the slot is empty
+    private long[] writeTimes;
+    private int size;
+
+    PrimitiveBalanceMap(long expireMillis) {
+        this.expireMillis = expireMillis;
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Get the balance for a player.
+     *
+     * @param uuid         player to lookup.
+     * @param defaultValue value returned if the player isn't in the map or the entry expired.
+     * @return the balance of the player or the default value.
+     */
+    long get(@NotNull UUID uuid, long defaultValue) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        long stamp = lock.readLock();
+        try {
+            int slot = find(msb, lsb);
+            if (slot == -1 || isExpired(slot, System.currentTimeMillis())) {
+                return defaultValue;
+            }
+            return balances[slot];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    void put(@NotNull UUID uuid, long balance) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        long stamp = lock.writeLock();
+        try {
+            long now = System.currentTimeMillis();
+            int slot = find(msb, lsb);
+            if (slot == -1) {
+                if ((size + 1) * 2 > writeTimes.length) { // keep load factor under 0.5
+                    removeExpired(now);
+                    if ((size + 1) * 2 > writeTimes.length) {
+                        rehash(writeTimes.length * 2);
+                    }
+                }
+                slot = mix(msb, lsb) & (writeTimes.length - 1);
+                while (writeTimes[slot] != 0) {
+                    slot = (slot + 1) & (writeTimes.length - 1);
+                }
+                most[slot] = msb;
+                least[slot] = lsb;
+                size++;
+            }
+            balances[slot] = balance;
+            writeTimes[slot] = now;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void remove(@NotNull UUID uuid) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            if (slot != -1) {
+                delete(slot);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @NotNull
+    Set<UUID> keys() {
+        Set<UUID> keys = new HashSet<>();
+        long stamp = lock.readLock();
+        try {
+            long now = System.currentTimeMillis();
+            for (int slot = 0; slot < writeTimes.length; slot++) {
+                if (writeTimes[slot] != 0 && !isExpired(slot, now)) {
+                    keys.add(new UUID(most[slot], least[slot]));
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return keys;
+    }
+
+    int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    void clear() {
+        long stamp = lock.writeLock();
+        try {
+            allocate(MIN_CAPACITY);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private int find(long msb, long lsb) {
+        int mask = writeTimes.length - 1;
+        int slot = mix(msb, lsb) & mask;
+        while (writeTimes[slot] != 0) {
+            if (most[slot] == msb && least[slot] == lsb) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean isExpired(int slot, long now) {
+        return now - writeTimes[slot] >= expireMillis;
+    }
+
+    // backward shift deletion, keeps probe sequences intact without tombstones
+    private void delete(int slot) {
+        int mask = writeTimes.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (writeTimes[next] != 0) {
+            int ideal = mix(most[next], least[next]) & mask;
+            // move the entry if the hole is between its ideal slot and its current slot
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                most[hole] = most[next];
+                least[hole] = least[next];
+                balances[hole] = balances[next];
+                writeTimes[hole] = writeTimes[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        writeTimes[hole] = 0;
+        size--;
+    }
+
+    private void removeExpired(long now) {
+        int slot = 0;
+        while (slot < writeTimes.length) {
+            if (writeTimes[slot] != 0 && isExpired(slot, now)) {
+                delete(slot); // an entry may be shifted into this slot, so check it again
+            } else {
+                slot++;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldMost = most;
+        long[] oldLeast = least;
+        long[] oldBalances = balances;
+        long[] oldWriteTimes = writeTimes;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldWriteTimes.length; i++) {
+            if (oldWriteTimes[i] == 0) {
+                continue;
+            }
+            int slot = mix(oldMost[i], oldLeast[i]) & mask;
+            while (writeTimes[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            most[slot] = oldMost[i];
+            least[slot] = oldLeast[i];
+            balances[slot] = oldBalances[i];
+            writeTimes[slot] = oldWriteTimes[i];
+            size++;
+        }
+    }
+
+    private void allocate(int capacity) {
+        most = new long[capacity];
+        least = new long[capacity];
+        balances = new long[capacity];
+        writeTimes = new long[capacity];
+        size = 0;
+    }
+
+    private static int mix(long msb, long lsb) {
+        long h = msb ^ Long.rotateLeft(lsb, 32);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
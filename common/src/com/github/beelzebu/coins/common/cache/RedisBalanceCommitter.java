@@ -0,0 +1,259 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.cache;
+
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import com.github.beelzebu.coins.common.storage.CommonSQLDatabase;
+import com.github.beelzebu.coins.common.storage.CommonSQLDatabase.StaleFenceException;
+import com.github.beelzebu.coins.common.utils.RedisManager;
+import java.sql.SQLException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jetbrains.annotations.NotNull;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.StreamEntry;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.StreamPendingEntry;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.params.SetParams;
+
+/**
+ * Persists balances changed in redis to the database, only one server in the network holds the lock and commits the
+ * balance stream at any time.
+ *
+ * @author Beelzebu
+ */
+public final class RedisBalanceCommitter implements Runnable {
+
+    static final String STREAM_KEY = "coins:balance-stream";
+    private static final String GROUP = "coins-committer";
+    private static final String LOCK_KEY = "coins:balance-committer";
+    private static final String FENCE_KEY = "coins:balance-committer-fence";
+    private static final String RENEW_SCRIPT = "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('PEXPIRE', KEYS[1], ARGV[2]) end return 0";
+    // the counter may be behind the database if redis lost it, new tokens must be newer than the last committed one
+    private static final String RAISE_FENCE_SCRIPT = "if tonumber(redis.call('GET', KEYS[1]) or '0') < tonumber(ARGV[1]) then redis.call('SET', KEYS[1], ARGV[1]) end return 0";
+    private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+    private final RedisManager redisManager;
+    private final String owner = UUID.randomUUID().toString();
+    private final String consumer = "committer-" + owner;
+    private final long interval;
+    private final int batchSize;
+    private final AtomicLong committed = new AtomicLong();
+    private volatile boolean running;
+    private volatile boolean lockHolder;
+    private volatile long fence;
+    private Thread thread;
+
+    RedisBalanceCommitter(CommonCoinsPlugin<? extends CoinsBootstrap> plugin, RedisManager redisManager) {
+        this.plugin = plugin;
+        this.redisManager = redisManager;
+        interval = Math.max(100, plugin.getConfig().getInt("Redis.Authoritative Balances.Commit Interval", 1000));
+        batchSize = Math.max(1, plugin.getConfig().getInt("Redis.Authoritative Balances.Commit Batch Size", 500));
+    }
+
+    void start() {
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            jedis.xgroupCreate(STREAM_KEY, GROUP, new StreamEntryID(), true);
+        } catch (JedisDataException ex) {
+            if (ex.getMessage() == null || !ex.getMessage().startsWith("BUSYGROUP")) {
+                throw ex;
+            }
+        }
+        running = true;
+        thread = new Thread(this, "Coins Redis Balance Committer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join(interval * 5);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) { // draining now would race the batch it is writing
+                plugin.log("Redis balance committer didn't stop in time, pending balances will be written by the next server holding the lock.");
+                thread = null;
+                return;
+            }
+            thread = null;
+        }
+        if (lockHolder) { // write everything that is left before the storage is closed
+            try {
+                drain(new StreamEntryID());
+                drain(StreamEntryID.UNRECEIVED_ENTRY);
+                try (Jedis jedis = redisManager.getPool().getResource()) {
+                    jedis.xgroupDelConsumer(STREAM_KEY, GROUP, consumer); // nothing is pending for it anymore
+                }
+            } catch (JedisException | SQLException ex) {
+                plugin.log("An error has occurred while writing balances from redis on shutdown, they will be written by the next server holding the lock.");
+                plugin.debug(ex);
+            }
+            try (Jedis jedis = redisManager.getPool().getResource()) {
+                jedis.eval("if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end return 0", Collections.singletonList(LOCK_KEY), Collections.singletonList(owner));
+            } catch (JedisException ignore) {
+            }
+            lockHolder = false;
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean replayPending = true;
+        while (running) {
+            try {
+                if (!acquireLock()) {
+                    replayPending = true;
+                    Thread.sleep(interval);
+                    continue;
+                }
+                if (replayPending) { // entries read by the last lock holder that weren't acknowledged
+                    claimPending();
+                    replayPending = commit(new StreamEntryID(), 0) > 0;
+                } else {
+                    commit(StreamEntryID.UNRECEIVED_ENTRY, Math.min(interval, 1000));
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (StaleFenceException ex) {
+                plugin.log("Lost the redis balance committer lock while writing, the batch was discarded.");
+                plugin.debug(ex);
+                lockHolder = false;
+                replayPending = true;
+                try (Jedis jedis = redisManager.getPool().getResource()) {
+                    jedis.eval(RAISE_FENCE_SCRIPT, Collections.singletonList(FENCE_KEY), Collections.singletonList(String.valueOf(ex.getStored())));
+                } catch (JedisException ignore) {
+                }
+            } catch (JedisException | SQLException ex) {
+                plugin.log("An error has occurred while writing balances from redis to the database, will retry in " + interval + "ms.");
+                plugin.debug(ex);
+                replayPending = true;
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException ignore) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public boolean isLockHolder() {
+        return lockHolder;
+    }
+
+    public long getCommitted() {
+        return committed.get();
+    }
+
+    private void drain(@NotNull StreamEntryID from) throws SQLException {
+        int read;
+        do {
+            read = commit(from, 0);
+        } while (read > 0);
+    }
+
+    private boolean acquireLock() {
+        long lockMillis = interval * 10;
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            if (lockHolder) {
+                Object renewed = jedis.eval(RENEW_SCRIPT, Collections.singletonList(LOCK_KEY), Arrays.asList(owner, String.valueOf(lockMillis)));
+                lockHolder = renewed instanceof Long && (Long) renewed == 1;
+            }
+            if (!lockHolder && "OK".equals(jedis.set(LOCK_KEY, owner, SetParams.setParams().nx().px(lockMillis)))) {
+                fence = jedis.incr(FENCE_KEY);
+                lockHolder = true;
+            }
+        }
+        return lockHolder;
+    }
+
+    // every server reads as its own consumer, so entries read by a previous lock holder must be moved to this one
+    private void claimPending() {
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            StreamEntryID start = null;
+            List<StreamPendingEntry> pending;
+            do {
+                pending = jedis.xpending(STREAM_KEY, GROUP, start, null, batchSize, null);
+                List<StreamEntryID> claim = new ArrayList<>();
+                for (StreamPendingEntry entry : pending) {
+                    if (!consumer.equals(entry.getConsumerName())) {
+                        claim.add(entry.getID());
+                    }
+                    start = new StreamEntryID(entry.getID().getTime(), entry.getID().getSequence() + 1);
+                }
+                if (!claim.isEmpty()) {
+                    jedis.xclaim(STREAM_KEY, GROUP, consumer, 0, 0, 0, false, claim.toArray(new StreamEntryID[0]));
+                }
+            } while (pending.size() >= batchSize);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private int commit(@NotNull StreamEntryID from, long block) throws SQLException {
+        if (!(plugin.getStorageProvider() instanceof CommonSQLDatabase)) {
+            return 0;
+        }
+        List<Map.Entry<String, List<StreamEntry>>> read;
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            read = jedis.xreadGroup(GROUP, consumer, batchSize, block, false, new AbstractMap.SimpleImmutableEntry<>(STREAM_KEY, from));
+        }
+        if (read == null || read.isEmpty() || read.get(0).getValue().isEmpty()) {
+            return 0;
+        }
+        List<StreamEntry> entries = read.get(0).getValue();
+        Map<UUID, Double> balances = new LinkedHashMap<>();
+        Map<UUID, Integer> counts = new HashMap<>();
+        List<StreamEntryID> ids = new ArrayList<>(entries.size());
+        for (StreamEntry entry : entries) {
+            ids.add(entry.getID());
+            try {
+                // entries are in the order they were applied, so the last one for each player wins
+                UUID uuid = UUID.fromString(entry.getFields().get("uuid"));
+                balances.put(uuid, plugin.getFixedPoint().parse(entry.getFields().get("balance")));
+                counts.merge(uuid, 1, Integer::sum);
+            } catch (IllegalArgumentException | NullPointerException ex) {
+                plugin.log("Ignoring invalid balance entry " + entry);
+            }
+        }
+        if (!balances.isEmpty()) {
+            ((CommonSQLDatabase) plugin.getStorageProvider()).updateBalances(balances, fence);
+        }
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            StreamEntryID[] idArray = ids.toArray(new StreamEntryID[0]);
+            jedis.xack(STREAM_KEY, GROUP, idArray);
+            jedis.xdel(STREAM_KEY, idArray);
+            RedisCache.releasePending(jedis, counts);
+        }
+        committed.addAndGet(balances.size());
+        return entries.size();
+    }
+}
@@ -22,23 +22,34 @@ import com.github.beelzebu.coins.api.Multiplier;
 import com.github.beelzebu.coins.api.cache.CacheProvider;
 import com.github.beelzebu.coins.api.cache.CacheType;
 import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.common.balance.FixedPoint;
+import com.github.beelzebu.coins.common.leaderboard.RedisLeaderboard;
 import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
 import com.github.beelzebu.coins.common.utils.RedisManager;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.OptionalDouble;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.ScanParams;
 import redis.clients.jedis.ScanResult;
 import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.params.ZAddParams;
 
 /**
  * @author Beelzebu
@@ -47,28 +58,182 @@ public final class RedisCache implements CacheProvider {
 
     private static final String COINS_KEY_PREFIX = "coins:";
     private static final String MULTIPLIER_KEY_PREFIX = "multiplier:";
+    // id -> multiplier json
+    private static final String MULTIPLIERS_KEY = "coins:multipliers";
+    // id scored by the time in millis when the multiplier expires
+    private static final String MULTIPLIERS_EXPIRY_KEY = "coins:multipliers:expiry";
+    // uuid scored by the time in millis when the cached balance expires
+    private static final String PLAYERS_KEY = "coins:players";
+    // uuid -> amount of entries in the balance stream that weren't written to the database yet
+    private static final String PENDING_KEY = "coins:balance-pending";
+    // "copied" once the keys of older versions were copied, "deleted" once they were removed
+    private static final String MIGRATION_KEY = "coins:legacy-migration";
+    private static final int SCAN_COUNT = 500;
     private static final int CACHE_SECONDS = 1800;
+    // INCRBYFLOAT for double balances and INCRBY for fixed point balances, leaderboard scores are always in coins
+    private static final RedisScript ADD_SCRIPT = new RedisScript(addScript("INCRBYFLOAT"));
+    private static final RedisScript ADD_FIXED_SCRIPT = new RedisScript(addScript("INCRBY"));
+    private static final RedisScript TRANSFER_SCRIPT = new RedisScript(transferScript("INCRBYFLOAT"));
+    private static final RedisScript TRANSFER_FIXED_SCRIPT = new RedisScript(transferScript("INCRBY"));
+    // KEYS: balance, stream, players, leaderboard, pending ARGV: balance, uuid, stream max length, expire millis, minor units per coin
+    private static final RedisScript SET_SCRIPT = new RedisScript(
+            "if redis.call('XLEN', KEYS[2]) >= tonumber(ARGV[3]) then return 'backlog' end " +
+                    "redis.replicate_commands() " +
+                    "redis.call('SET', KEYS[1], ARGV[1]) " +
+                    "redis.call('XADD', KEYS[2], '*', 'uuid', ARGV[2], 'balance', ARGV[1]) " +
+                    "redis.call('HINCRBY', KEYS[5], ARGV[2], 1) " +
+                    "redis.call('ZADD', KEYS[3], ARGV[4], ARGV[2]) " +
+                    "redis.call('ZADD', KEYS[4], tonumber(ARGV[1]) / tonumber(ARGV[5]), ARGV[2]) " +
+                    "return 1");
+    // KEYS: pending, players ARGV: ttl, expire millis, then pairs of uuid and committed entries
+    private static final RedisScript RELEASE_SCRIPT = new RedisScript(
+            "for i = 3, #ARGV, 2 do " +
+                    "local left = redis.call('HINCRBY', KEYS[1], ARGV[i], -tonumber(ARGV[i + 1])) " +
+                    "if left <= 0 then " +
+                    "redis.call('HDEL', KEYS[1], ARGV[i]) " +
+                    "redis.call('EXPIRE', '" + COINS_KEY_PREFIX + "' .. ARGV[i], ARGV[1]) " +
+                    "redis.call('ZADD', KEYS[2], ARGV[2], ARGV[i]) " +
+                    "end " +
+                    "end " +
+                    "return 1");
+    // KEYS: multipliers, expiry ARGV: id, now
+    private static final RedisScript EXPIRE_MULTIPLIER_SCRIPT = new RedisScript(
+            "local expiry = redis.call('ZSCORE', KEYS[2], ARGV[1]) " +
+                    "if expiry and tonumber(expiry) > tonumber(ARGV[2]) then return 0 end " +
+                    "redis.call('HDEL', KEYS[1], ARGV[1]) " +
+                    "redis.call('ZREM', KEYS[2], ARGV[1]) " +
+                    "return 1");
     private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
     private final RedisManager redisManager;
+    // local copy of the multipliers in redis, used for lookups that happen often like placeholders
+    @NotNull
+    private final MultiplierIndex multiplierIndex;
     @NotNull
     private final MultiplierPoller multiplierPoller;
+    private final boolean authoritative;
+    private final String streamMaxLength;
+    // older versions read every multiplier from its own key
+    private final boolean legacyKeys;
+    @Nullable
+    private RedisBalanceCommitter committer;
+    @Nullable
+    private ScheduledExecutorService refresher;
 
     public RedisCache(CommonCoinsPlugin<? extends CoinsBootstrap> coinsPlugin, RedisManager redisManager) {
         plugin = coinsPlugin;
         this.redisManager = redisManager;
+        multiplierIndex = plugin.getMultiplierIndex();
         multiplierPoller = new MultiplierPoller(plugin);
+        authoritative = plugin.getConfig().getBoolean("Redis.Authoritative Balances.Enabled", false);
+        streamMaxLength = String.valueOf(Math.max(1000, plugin.getConfig().getInt("Redis.Authoritative Balances.Stream Max Length", 100000)));
+        legacyKeys = plugin.getConfig().getBoolean("Redis.Legacy Keys", true);
     }
 
     @Override
     public void start() {
+        migrateLegacyKeys();
+        getMultipliers(); // fill the multiplier index
+        // other servers change multipliers in redis, messages refresh them sooner but can be lost
+        int refresh = plugin.getConfig().getInt("Redis.Multiplier Refresh", 30);
+        if (refresh > 0) {
+            refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "Coins Multiplier Refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refresher.scheduleWithFixedDelay(this::getMultipliers, refresh, refresh, TimeUnit.SECONDS);
+        }
+        if (authoritative) {
+            committer = new RedisBalanceCommitter(plugin, redisManager);
+            committer.start();
+            plugin.log("Redis is the authoritative store for balances, changes will be written to the database in background.");
+        }
     }
 
     @Override
     public void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+        if (committer != null) {
+            committer.stop();
+            committer = null;
+        }
+        multiplierIndex.clear();
+    }
+
+    /**
+     * Add the given amount to the balance of a player in redis, checking that the balance doesn't go below zero. If
+     * the player isn't in redis the balance is loaded from the database first.
+     *
+     * @param uuid   player to update.
+     * @param amount amount to add, may be negative.
+     * @return the new balance, or empty if the player doesn't exist or doesn't have enough coins.
+     */
+    @NotNull
+    public OptionalDouble addCoins(@NotNull UUID uuid, double amount) {
+        FixedPoint fixedPoint = plugin.getFixedPoint();
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            for (int attempt = 0; attempt < 2; attempt++) {
+                Object result = (fixedPoint.isEnabled() ? ADD_FIXED_SCRIPT : ADD_SCRIPT).eval(jedis, Arrays.asList(COINS_KEY_PREFIX + uuid, RedisBalanceCommitter.STREAM_KEY, PLAYERS_KEY, RedisLeaderboard.LEADERBOARD_KEY, PENDING_KEY), Arrays.asList(fixedPoint.format(amount), uuid.toString(), streamMaxLength, expireAt(), scoreDivisor()));
+                if (isBacklogged(result)) {
+                    return OptionalDouble.empty();
+                }
+                if (!"missing".equals(result)) {
+                    return "insufficient".equals(result) ? OptionalDouble.empty() : OptionalDouble.of(getBalance(result));
+                }
+                if (!loadPlayer(jedis, uuid)) {
+                    return OptionalDouble.empty();
+                }
+            }
+        } catch (JedisException ex) {
+            plugin.log("An error has occurred updating coins for '" + uuid + "' in redis.");
+            plugin.debug(ex);
+        }
+        return OptionalDouble.empty();
+    }
+
+    /**
+     * Move coins between two players in a single script.
+     *
+     * @param from   player paying the coins.
+     * @param to     player receiving the coins.
+     * @param amount amount of coins to move.
+     * @return new balances of both players in the same order as the parameters, or null if nothing changed.
+     */
+    @Nullable
+    public double[] transferCoins(@NotNull UUID from, @NotNull UUID to, double amount) {
+        FixedPoint fixedPoint = plugin.getFixedPoint();
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            for (int attempt = 0; attempt < 2; attempt++) {
+                Object result = (fixedPoint.isEnabled() ? TRANSFER_FIXED_SCRIPT : TRANSFER_SCRIPT).eval(jedis, Arrays.asList(COINS_KEY_PREFIX + from, COINS_KEY_PREFIX + to, RedisBalanceCommitter.STREAM_KEY, PLAYERS_KEY, RedisLeaderboard.LEADERBOARD_KEY, PENDING_KEY), Arrays.asList(fixedPoint.format(amount), from.toString(), to.toString(), streamMaxLength, expireAt(), scoreDivisor(), negate(fixedPoint.format(amount))));
+                if (result instanceof List) {
+                    List<?> balances = (List<?>) result;
+                    return new double[]{getBalance(balances.get(0)), getBalance(balances.get(1))};
+                }
+                if (isBacklogged(result) || !"missing".equals(result) || !loadPlayer(jedis, from) || !loadPlayer(jedis, to)) {
+                    return null;
+                }
+            }
+        } catch (JedisException ex) {
+            plugin.log("An error has occurred moving coins from '" + from + "' to '" + to + "' in redis.");
+            plugin.debug(ex);
+        }
+        return null;
+    }
+
+    public boolean isAuthoritative() {
+        return authoritative;
+    }
+
+    @Nullable
+    public RedisBalanceCommitter getCommitter() {
+        return committer;
     }
 
     @Override
-    public synchronized OptionalDouble getCoins(@NotNull UUID uuid) {
+    public OptionalDouble getCoins(@NotNull UUID uuid) {
         Objects.requireNonNull(uuid, "uuid can't be null");
         try (Jedis jedis = redisManager.getPool().getResource()) {
             return getDouble(jedis.get(COINS_KEY_PREFIX + uuid));
@@ -85,11 +250,18 @@ public final class RedisCache implements CacheProvider {
     }
 
     @Override
-    public synchronized void updatePlayer(@NotNull UUID uuid, double coins) {
+    public void updatePlayer(@NotNull UUID uuid, double coins) {
         Objects.requireNonNull(uuid, "UUID can't be null");
         plugin.debug("Setting coins for '" + uuid + "' to '" + coins + "' in redis.");
         try (Jedis jedis = redisManager.getPool().getResource()) {
-            jedis.setex(COINS_KEY_PREFIX + uuid, CACHE_SECONDS, Double.toString(coins));
+            if (authoritative) {
+                isBacklogged(SET_SCRIPT.eval(jedis, Arrays.asList(COINS_KEY_PREFIX + uuid, RedisBalanceCommitter.STREAM_KEY, PLAYERS_KEY, RedisLeaderboard.LEADERBOARD_KEY, PENDING_KEY), Arrays.asList(plugin.getFixedPoint().format(coins), uuid.toString(), streamMaxLength, expireAt(), scoreDivisor())));
+            } else {
+                Pipeline pipeline = jedis.pipelined();
+                pipeline.setex(COINS_KEY_PREFIX + uuid, CACHE_SECONDS, plugin.getFixedPoint().format(coins));
+                pipeline.zadd(PLAYERS_KEY, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(CACHE_SECONDS), uuid.toString());
+                pipeline.sync();
+            }
         } catch (JedisException ex) {
             plugin.log("An error has occurred adding user '" + uuid + "' to cache.");
             plugin.debug(ex);
@@ -97,10 +269,16 @@ public final class RedisCache implements CacheProvider {
     }
 
     @Override
-    public synchronized void removePlayer(@NotNull UUID uuid) {
+    public void removePlayer(@NotNull UUID uuid) {
+        if (authoritative) { // balance may not be in the database yet, let it expire
+            return;
+        }
         plugin.log("Removing '" + uuid + "' from redis.");
         try (Jedis jedis = redisManager.getPool().getResource()) {
-            jedis.del(COINS_KEY_PREFIX + uuid);
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.del(COINS_KEY_PREFIX + uuid);
+            pipeline.zrem(PLAYERS_KEY, uuid.toString());
+            pipeline.sync();
         } catch (JedisException ex) {
             plugin.log("An error has occurred removing user '" + uuid + "' from redis.");
             plugin.debug(ex);
@@ -108,9 +286,9 @@ public final class RedisCache implements CacheProvider {
     }
 
     @Override
-    public synchronized Optional<Multiplier> getMultiplier(int id) {
+    public Optional<Multiplier> getMultiplier(int id) {
         try (Jedis jedis = redisManager.getPool().getResource()) {
-            return Optional.ofNullable(getMultiplier(jedis, String.valueOf(id)));
+            return readMultiplier(jedis, id);
         } catch (JedisException ex) {
             plugin.log("An error has occurred getting multiplier with id '" + id + "' from redis cache.");
             plugin.debug(ex);
@@ -118,16 +296,31 @@ public final class RedisCache implements CacheProvider {
         return Optional.empty();
     }
 
-    @Nullable
-    private synchronized Multiplier getMultiplier(@NotNull Jedis jedis, String id) {
-        String multiplierString = jedis.get(MULTIPLIER_KEY_PREFIX + id);
-        return multiplierString != null ? Multiplier.fromJson(multiplierString) : null;
+    @NotNull
+    private Optional<Multiplier> readMultiplier(@NotNull Jedis jedis, int id) {
+        Pipeline pipeline = jedis.pipelined();
+        Response<String> json = pipeline.hget(MULTIPLIERS_KEY, String.valueOf(id));
+        Response<Double> expiry = pipeline.zscore(MULTIPLIERS_EXPIRY_KEY, String.valueOf(id));
+        pipeline.sync();
+        if (json.get() != null && (expiry.get() == null || expiry.get() > System.currentTimeMillis())) {
+            return Optional.ofNullable(Multiplier.fromJson(json.get()));
+        }
+        return Optional.empty();
     }
 
     @Override
-    public synchronized void addMultiplier(@NotNull Multiplier multiplier) {
+    public void addMultiplier(@NotNull Multiplier multiplier) {
         try (Jedis jedis = redisManager.getPool().getResource()) {
-            jedis.setex(MULTIPLIER_KEY_PREFIX + multiplier.getId(), (int) TimeUnit.MINUTES.toSeconds(multiplier.getData().getMinutes()), multiplier.toJson().toString());
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.hset(MULTIPLIERS_KEY, String.valueOf(multiplier.getId()), multiplier.toJson().toString());
+            pipeline.zadd(MULTIPLIERS_EXPIRY_KEY, getExpiry(multiplier), String.valueOf(multiplier.getId()));
+            long ttl = getExpiry(multiplier) - System.currentTimeMillis();
+            if (legacyKeys && ttl > 0) {
+                pipeline.psetex(MULTIPLIER_KEY_PREFIX + multiplier.getId(), ttl, multiplier.toJson().toString());
+            }
+            pipeline.sync();
+            multiplierIndex.add(multiplier);
+            plugin.getMultiplierScheduler().schedule(multiplier);
         } catch (JedisException ex) {
             plugin.log("An error has occurred adding multiplier '" + multiplier.toJson() + "' to cache.");
             plugin.debug(ex);
@@ -135,31 +328,93 @@ public final class RedisCache implements CacheProvider {
     }
 
     @Override
-    public synchronized void deleteMultiplier(int id) {
+    public void deleteMultiplier(int id) {
         try (Jedis jedis = redisManager.getPool().getResource()) {
-            jedis.del(MULTIPLIER_KEY_PREFIX + id);
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.hdel(MULTIPLIERS_KEY, String.valueOf(id));
+            pipeline.zrem(MULTIPLIERS_EXPIRY_KEY, String.valueOf(id));
+            if (legacyKeys) {
+                pipeline.del(MULTIPLIER_KEY_PREFIX + id);
+            }
+            pipeline.sync();
+            multiplierIndex.remove(id);
+            plugin.getMultiplierScheduler().cancel(id);
         } catch (JedisException ex) {
             plugin.log("An error has occurred removing multiplier with id '" + id + "' from cache.");
             plugin.debug(ex);
         }
     }
 
+    /**
+     * Remove a multiplier that ended, unless another server already extended it.
+     *
+     * @param id multiplier to remove.
+     */
+    public void expireMultiplier(int id) {
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            Object removed = EXPIRE_MULTIPLIER_SCRIPT.eval(jedis, Arrays.asList(MULTIPLIERS_KEY, MULTIPLIERS_EXPIRY_KEY), Arrays.asList(String.valueOf(id), String.valueOf(System.currentTimeMillis())));
+            if (Objects.equals(removed, 1L)) {
+                if (legacyKeys) {
+                    jedis.del(MULTIPLIER_KEY_PREFIX + id);
+                }
+                multiplierIndex.remove(id);
+                plugin.getMultiplierScheduler().cancel(id);
+            } else {
+                getMultiplier(id).filter(multiplier -> multiplier.getEndTime() > System.currentTimeMillis()).ifPresent(multiplier -> { // keep the local copy in sync with the new end time
+                    multiplierIndex.add(multiplier);
+                    plugin.getMultiplierScheduler().schedule(multiplier);
+                });
+            }
+        } catch (JedisException ex) {
+            plugin.log("An error has occurred removing expired multiplier with id '" + id + "' from cache.");
+            plugin.debug(ex);
+        }
+    }
+
+    /**
+     * Read a multiplier again from redis after another server changed it, removing it from this server if it doesn't
+     * exist anymore.
+     *
+     * @param id multiplier to refresh.
+     */
+    public void refreshMultiplier(int id) {
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            Optional<Multiplier> multiplier = readMultiplier(jedis, id);
+            if (multiplier.isPresent()) {
+                multiplierIndex.add(multiplier.get());
+                plugin.getMultiplierScheduler().schedule(multiplier.get());
+            } else {
+                multiplierIndex.remove(id);
+                plugin.getMultiplierScheduler().cancel(id);
+            }
+        } catch (JedisException ex) { // the timer will refresh it later
+            plugin.log("An error has occurred refreshing multiplier with id '" + id + "' from redis cache.");
+            plugin.debug(ex);
+        }
+    }
+
     @NotNull
     @Override
-    public synchronized Set<Multiplier> getMultipliers() {
+    public Set<Multiplier> getMultipliers() {
         Set<Multiplier> multipliers = new HashSet<>();
         try (Jedis jedis = redisManager.getPool().getResource()) {
-            String cursor = ScanParams.SCAN_POINTER_START;
-            ScanResult<String> scan = jedis.scan(cursor, new ScanParams().match(MULTIPLIER_KEY_PREFIX + "*").count(Integer.MAX_VALUE));
-            do {
-                scan.getResult().forEach(key -> {
-                    Multiplier multiplier = getMultiplier(jedis, key.split(":")[1]);
-                    if (multiplier != null) {
-                        multipliers.add(multiplier);
-                    }
-                });
-                scan = jedis.scan(cursor, new ScanParams().match(MULTIPLIER_KEY_PREFIX + "*").count(Integer.MAX_VALUE));
-            } while (!Objects.equals(cursor = scan.getCursor(), ScanParams.SCAN_POINTER_START));
+            long now = System.currentTimeMillis();
+            Pipeline pipeline = jedis.pipelined();
+            Response<Map<String, String>> all = pipeline.hgetAll(MULTIPLIERS_KEY);
+            Response<Set<String>> expired = pipeline.zrangeByScore(MULTIPLIERS_EXPIRY_KEY, Double.NEGATIVE_INFINITY, now);
+            pipeline.sync();
+            Map<String, String> json = all.get();
+            if (!expired.get().isEmpty()) {
+                String[] ids = expired.get().toArray(new String[0]);
+                json.keySet().removeAll(expired.get());
+                pipeline = jedis.pipelined();
+                pipeline.hdel(MULTIPLIERS_KEY, ids);
+                pipeline.zremrangeByScore(MULTIPLIERS_EXPIRY_KEY, Double.NEGATIVE_INFINITY, now);
+                pipeline.sync();
+            }
+            json.values().stream().map(Multiplier::fromJson).filter(Objects::nonNull).forEach(multipliers::add);
+            multiplierIndex.replaceAll(multipliers);
+            multipliers.forEach(plugin.getMultiplierScheduler()::schedule);
         } catch (JedisException ex) {
             plugin.log("An error has occurred getting all multipliers from cache.");
             plugin.debug(ex);
@@ -169,15 +424,19 @@ public final class RedisCache implements CacheProvider {
 
     @NotNull
     @Override
-    public synchronized Collection<UUID> getPlayers() {
+    public Collection<UUID> getPlayers() {
         Set<UUID> players = new HashSet<>();
         try (Jedis jedis = redisManager.getPool().getResource()) {
-            String cursor = ScanParams.SCAN_POINTER_START;
-            ScanResult<String> scan = jedis.scan(cursor, new ScanParams().match(COINS_KEY_PREFIX + "*").count(Integer.MAX_VALUE));
-            do {
-                players.addAll(scan.getResult().stream().map(key -> UUID.fromString(key.split(":")[1])).collect(Collectors.toSet()));
-                scan = jedis.scan(cursor, new ScanParams().match(COINS_KEY_PREFIX + "*").count(Integer.MAX_VALUE));
-            } while (!Objects.equals(cursor = scan.getCursor(), ScanParams.SCAN_POINTER_START));
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.zremrangeByScore(PLAYERS_KEY, Double.NEGATIVE_INFINITY, System.currentTimeMillis());
+            Response<Set<String>> members = pipeline.zrange(PLAYERS_KEY, 0, -1);
+            pipeline.sync();
+            for (String member : members.get()) {
+                try {
+                    players.add(UUID.fromString(member));
+                } catch (IllegalArgumentException ignore) {
+                }
+            }
         } catch (JedisException ex) {
             plugin.log("An error has occurred getting all players from cache.");
             plugin.debug(ex);
@@ -191,17 +450,208 @@ public final class RedisCache implements CacheProvider {
         return CacheType.REDIS;
     }
 
+    // the expiry score is the same end time used to schedule the multiplier locally
+    private long getExpiry(@NotNull Multiplier multiplier) {
+        return multiplier.getEndTime() > 0 ? multiplier.getEndTime() : System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(multiplier.getData().getMinutes());
+    }
+
     @NotNull
     @Override
     public MultiplierPoller getMultiplierPoller() {
         return multiplierPoller;
     }
 
+    // load the balance from the database without overwriting a balance that was set in the meantime
+    private boolean loadPlayer(@NotNull Jedis jedis, @NotNull UUID uuid) {
+        if (!plugin.getStorageProvider().isindb(uuid)) {
+            return false;
+        }
+        Pipeline pipeline = jedis.pipelined();
+        pipeline.set(COINS_KEY_PREFIX + uuid, plugin.getFixedPoint().format(plugin.getStorageProvider().getCoins(uuid)), SetParams.setParams().nx().ex(CACHE_SECONDS));
+        pipeline.zadd(PLAYERS_KEY, Double.parseDouble(expireAt()), uuid.toString());
+        pipeline.sync();
+        return true;
+    }
+
+    /**
+     * Let the balances of players expire once all their entries in the stream were written to the database.
+     *
+     * @param jedis     connection to use.
+     * @param committed amount of entries written for every player.
+     */
+    static void releasePending(@NotNull Jedis jedis, @NotNull Map<UUID, Integer> committed) {
+        if (committed.isEmpty()) {
+            return;
+        }
+        List<String> args = new ArrayList<>(2 + committed.size() * 2);
+        args.add(String.valueOf(CACHE_SECONDS));
+        args.add(String.valueOf(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(CACHE_SECONDS)));
+        committed.forEach((uuid, entries) -> {
+            args.add(uuid.toString());
+            args.add(String.valueOf(entries));
+        });
+        RELEASE_SCRIPT.eval(jedis, Arrays.asList(PENDING_KEY, PLAYERS_KEY), args);
+    }
+
+    // changes are rejected instead of trimming entries that weren't written to the database
+    private boolean isBacklogged(@Nullable Object result) {
+        if (!"backlog".equals(result)) {
+            return false;
+        }
+        plugin.log("Balance change rejected, there are " + streamMaxLength + " changes in redis waiting to be written to the database. Check that the database is reachable.");
+        return true;
+    }
+
+    // INCRBY replies with an integer, INCRBYFLOAT with a string
+    private double getBalance(@NotNull Object reply) {
+        return reply instanceof Long ? plugin.getFixedPoint().toMajor((Long) reply) : plugin.getFixedPoint().parse((String) reply);
+    }
+
+    @NotNull
+    private String scoreDivisor() {
+        return plugin.getFixedPoint().isEnabled() ? String.valueOf(plugin.getFixedPoint().getFactor()) : "1";
+    }
+
+    @NotNull
+    private String expireAt() {
+        return String.valueOf(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(CACHE_SECONDS));
+    }
+
+    /**
+     * Older versions stored every multiplier in its own key and players were found scanning the whole keyspace, copy
+     * them to the hash and sorted sets used now. Keys are read in bounded batches to avoid blocking redis. This only
+     * runs once for the network, the old multiplier keys are kept until legacy keys are disabled in the config because
+     * servers that weren't updated still read them.
+     */
+    private void migrateLegacyKeys() {
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            String state = jedis.get(MIGRATION_KEY);
+            if (legacyKeys ? state != null : "deleted".equals(state)) {
+                return;
+            }
+            int migrated = 0;
+            ScanParams multiplierParams = new ScanParams().match(MULTIPLIER_KEY_PREFIX + "*").count(SCAN_COUNT);
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                ScanResult<String> scan = jedis.scan(cursor, multiplierParams);
+                cursor = scan.getCursor();
+                List<String> keys = scan.getResult();
+                if (keys.isEmpty()) {
+                    continue;
+                }
+                List<String> values = jedis.mget(keys.toArray(new String[0]));
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<Long>> ttls = new ArrayList<>(keys.size());
+                keys.forEach(key -> ttls.add(pipeline.pttl(key)));
+                pipeline.sync();
+                Pipeline write = jedis.pipelined();
+                for (int i = 0; i < keys.size(); i++) {
+                    String id = keys.get(i).substring(MULTIPLIER_KEY_PREFIX.length());
+                    // don't replace multipliers that updated servers already changed
+                    if (values.get(i) != null && ttls.get(i).get() > 0) {
+                        write.hsetnx(MULTIPLIERS_KEY, id, values.get(i));
+                        write.zadd(MULTIPLIERS_EXPIRY_KEY, System.currentTimeMillis() + ttls.get(i).get(), id, ZAddParams.zAddParams().nx());
+                        migrated++;
+                    }
+                    if (!legacyKeys) {
+                        write.del(keys.get(i));
+                    }
+                }
+                write.sync();
+            } while (!Objects.equals(cursor, ScanParams.SCAN_POINTER_START));
+            if (state == null) {
+                migratePlayers(jedis);
+            }
+            jedis.set(MIGRATION_KEY, legacyKeys ? "copied" : "deleted");
+            if (migrated > 0) {
+                plugin.log("Migrated " + migrated + " multipliers to the new redis format.");
+            }
+            if (!legacyKeys) {
+                plugin.log("Removed the multiplier keys used by older versions from redis.");
+            }
+        } catch (JedisException ex) {
+            plugin.log("An error has occurred migrating old redis keys.");
+            plugin.debug(ex);
+        }
+    }
+
+    // the balance keys didn't change, only the set of cached players is new
+    private void migratePlayers(@NotNull Jedis jedis) {
+        ScanParams playerParams = new ScanParams().match(COINS_KEY_PREFIX + "*-*-*-*-*").count(SCAN_COUNT);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            ScanResult<String> scan = jedis.scan(cursor, playerParams);
+            cursor = scan.getCursor();
+            List<String> keys = scan.getResult();
+            if (keys.isEmpty()) {
+                continue;
+            }
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<Long>> ttls = new ArrayList<>(keys.size());
+            keys.forEach(key -> ttls.add(pipeline.pttl(key)));
+            pipeline.sync();
+            Pipeline write = jedis.pipelined();
+            for (int i = 0; i < keys.size(); i++) {
+                if (ttls.get(i).get() > 0) {
+                    write.zadd(PLAYERS_KEY, System.currentTimeMillis() + ttls.get(i).get(), keys.get(i).substring(COINS_KEY_PREFIX.length()), ZAddParams.zAddParams().nx());
+                }
+            }
+            write.sync();
+        } while (!Objects.equals(cursor, ScanParams.SCAN_POINTER_START));
+    }
+
     private OptionalDouble getDouble(@NotNull String string) {
         try {
-            return OptionalDouble.of(Double.parseDouble(string));
+            return OptionalDouble.of(plugin.getFixedPoint().parse(string));
         } catch (@NotNull NumberFormatException | NullPointerException ignore) {
         }
         return OptionalDouble.empty();
     }
+
+    // KEYS: balance, stream, players, leaderboard, pending ARGV: amount, uuid, stream max length, expire millis, minor units per coin
+    // the balance doesn't expire until its entries in the stream are written to the database, see releasePending
+    @NotNull
+    private static String addScript(@NotNull String increment) {
+        return "local balance = redis.call('GET', KEYS[1]) " +
+                "if not balance then return 'missing' end " +
+                "if tonumber(balance) + tonumber(ARGV[1]) < 0 then return 'insufficient' end " +
+                "if redis.call('XLEN', KEYS[2]) >= tonumber(ARGV[3]) then return 'backlog' end " +
+                "redis.replicate_commands() " +
+                "local new = redis.call('" + increment + "', KEYS[1], ARGV[1]) " +
+                "redis.call('PERSIST', KEYS[1]) " +
+                "redis.call('XADD', KEYS[2], '*', 'uuid', ARGV[2], 'balance', new) " +
+                "redis.call('HINCRBY', KEYS[5], ARGV[2], 1) " +
+                "redis.call('ZADD', KEYS[3], ARGV[4], ARGV[2]) " +
+                "redis.call('ZADD', KEYS[4], tonumber(new) / tonumber(ARGV[5]), ARGV[2]) " +
+                "return new";
+    }
+
+    // negating the formatted amount debits exactly what is credited, rounding -amount could differ by one minor unit
+    @NotNull
+    private static String negate(@NotNull String amount) {
+        return amount.startsWith("-") ? amount.substring(1) : "-" + amount;
+    }
+
+    // KEYS: from balance, to balance, stream, players, leaderboard, pending ARGV: amount, from uuid, to uuid, stream max length, expire millis, minor units per coin, negated amount
+    // the negated amount is formatted in java, lua would format large numbers with an exponent that INCRBY rejects
+    @NotNull
+    private static String transferScript(@NotNull String increment) {
+        return "local from = redis.call('GET', KEYS[1]) " +
+                "local to = redis.call('GET', KEYS[2]) " +
+                "if not from or not to then return 'missing' end " +
+                "if tonumber(from) - tonumber(ARGV[1]) < 0 then return 'insufficient' end " +
+                "if redis.call('XLEN', KEYS[3]) + 1 >= tonumber(ARGV[4]) then return 'backlog' end " +
+                "redis.replicate_commands() " +
+                "local newFrom = redis.call('" + increment + "', KEYS[1], ARGV[7]) " +
+                "local newTo = redis.call('" + increment + "', KEYS[2], ARGV[1]) " +
+                "redis.call('PERSIST', KEYS[1]) " +
+                "redis.call('PERSIST', KEYS[2]) " +
+                "redis.call('XADD', KEYS[3], '*', 'uuid', ARGV[2], 'balance', newFrom) " +
+                "redis.call('XADD', KEYS[3], '*', 'uuid', ARGV[3], 'balance', newTo) " +
+                "redis.call('HINCRBY', KEYS[6], ARGV[2], 1) " +
+                "redis.call('HINCRBY', KEYS[6], ARGV[3], 1) " +
+                "redis.call('ZADD', KEYS[4], ARGV[5], ARGV[2], ARGV[5], ARGV[3]) " +
+                "redis.call('ZADD', KEYS[5], tonumber(newFrom) / tonumber(ARGV[6]), ARGV[2], tonumber(newTo) / tonumber(ARGV[6]), ARGV[3]) " +
+                "return {newFrom, newTo}";
+    }
 }
@@ -0,0 +1,281 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.concurrent;
+
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.api.storage.StorageType;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Executor owned by the plugin for storage and redis work, it doesn't share threads with other plugins and limits the
+ * amount of pending tasks. Platform threads are sized to the connection pool, or virtual threads are used when the
+ * server runs on Java 21 or newer and they're enabled in the config.
+ *
+ * @author Beelzebu
+ */
+public final class CoinsExecutor {
+
+    @NotNull
+    private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    @Nullable
+    private volatile ExecutorService service;
+    // limits queued and running tasks when virtual threads are used, platform threads use a bounded queue
+    @Nullable
+    private Semaphore permits;
+    private boolean virtual;
+    private int threads;
+
+    public CoinsExecutor(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin) {
+        this.plugin = plugin;
+    }
+
+    public void start() {
+        int queueSize = Math.max(1, plugin.getConfig().getInt("Executor.Queue Size", 1000));
+        threads = plugin.getConfig().getInt("Executor.Threads", 0);
+        if (threads <= 0) { // a thread per connection, more threads would just wait for a connection
+            threads = Objects.equals(plugin.getConfig().getStorageType(), StorageType.SQLITE) ? 4 : Math.max(2, plugin.getConfig().getInt("MySQL.Connection Pool", 8));
+        }
+        ExecutorService virtualService = plugin.getConfig().getBoolean("Executor.Virtual Threads", false) ? newVirtualExecutor() : null;
+        if (virtualService != null) {
+            virtual = true;
+            permits = new Semaphore(queueSize + threads);
+            service = virtualService;
+            plugin.log("Using virtual threads for storage tasks.");
+            return;
+        }
+        virtual = false;
+        permits = null;
+        AtomicInteger count = new AtomicInteger();
+        service = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread thread = new Thread(r, "Coins Worker #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stop accepting tasks and wait for the pending tasks to finish.
+     */
+    public void stop() {
+        ExecutorService service = this.service;
+        if (service == null) {
+            return;
+        }
+        this.service = null;
+        service.shutdown();
+        try {
+            if (!service.awaitTermination(Math.max(1, plugin.getConfig().getInt("Executor.Shutdown Timeout", 10)), TimeUnit.SECONDS)) {
+                plugin.log("Some tasks didn't finish in time, " + service.shutdownNow().size() + " pending tasks were discarded.");
+            }
+        } catch (InterruptedException ex) {
+            service.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Execute a task in this executor.
+     *
+     * @param task task to execute.
+     * @return true if the task was accepted, false if the executor is full or stopped.
+     */
+    public boolean execute(@NotNull Runnable task) {
+        ExecutorService service = this.service;
+        if (service == null) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        Semaphore permits = this.permits;
+        if (permits != null && !permits.tryAcquire()) {
+            rejected.incrementAndGet();
+            plugin.debug("Rejected a task because the executor is full.");
+            return false;
+        }
+        try {
+            service.execute(() -> {
+                try {
+                    task.run();
+                    completed.incrementAndGet();
+                } catch (RuntimeException ex) {
+                    failed.incrementAndGet();
+                    plugin.log("An error has occurred running a task.");
+                    plugin.debug(ex);
+                } finally {
+                    if (permits != null) {
+                        permits.release();
+                    }
+                }
+            });
+            submitted.incrementAndGet();
+            return true;
+        } catch (RejectedExecutionException ex) {
+            if (permits != null) {
+                permits.release();
+            }
+            rejected.incrementAndGet();
+            plugin.debug("Rejected a task because the executor is full.");
+            return false;
+        }
+    }
+
+    /**
+     * Execute a task and get its result.
+     *
+     * @param supplier task to execute.
+     * @param <T>      type of the result.
+     * @return future completed with the result, or completed exceptionally if the task failed or was rejected.
+     */
+    @NotNull
+    public <T> CompletableFuture<T> supply(@NotNull Supplier<T> supplier) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        boolean accepted = execute(() -> {
+            try {
+                future.complete(supplier.get());
+            } catch (Throwable ex) { // errors too, callers waiting on the future would hang forever
+                future.completeExceptionally(ex);
+                throw ex;
+            }
+        });
+        if (!accepted) {
+            future.completeExceptionally(new RejectedExecutionException("Coins executor is full or stopped"));
+        }
+        return future;
+    }
+
+    /**
+     * Create an executor that runs tasks one by one in submission order using the threads of this executor.
+     *
+     * @return a new ordered executor.
+     */
+    @NotNull
+    public Executor ordered() {
+        return new OrderedExecutor();
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getQueueDepth() {
+        ExecutorService service = this.service;
+        return service instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) service).getQueue().size() : 0;
+    }
+
+    public int getActive() {
+        ExecutorService service = this.service;
+        if (service instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) service).getActiveCount();
+        }
+        return (int) Math.max(0, submitted.get() - completed.get() - failed.get());
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Nullable
+    private ExecutorService newVirtualExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            plugin.log("Virtual threads are enabled in the config but they require Java 21 or newer, using platform threads.");
+            return null;
+        }
+    }
+
+    private final class OrderedExecutor implements Executor {
+
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean running;
+
+        @Override
+        public void execute(@NotNull Runnable task) {
+            synchronized (tasks) {
+                tasks.add(task);
+                if (running) {
+                    return;
+                }
+                running = true;
+            }
+            if (!CoinsExecutor.this.execute(this::drain)) {
+                // never drop tasks, the caller runs them in order instead
+                drain();
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable task;
+                synchronized (tasks) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    failed.incrementAndGet();
+                    plugin.log("An error has occurred running a task.");
+                    plugin.debug(ex);
+                }
+            }
+        }
+    }
+}
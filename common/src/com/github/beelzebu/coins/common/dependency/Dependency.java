@@ -31,7 +31,7 @@ public enum Dependency {
     CAFFEINE("com{}github{}ben-manes{}caffeine", "caffeine", "2.6.2", Relocation.of("caffeine", "com{}github{}benmanes{}caffeine")),
     MARIADB_DRIVER("org{}mariadb{}jdbc", "mariadb-java-client", "2.2.3", Relocation.of("mariadb", "org{}mariadb{}jdbc")),
     MYSQL_DRIVER("mysql", "mysql-connector-java", "5.1.46", Relocation.of("mysql", "com{}mysql")),
-    SQLITE_DRIVER("org.xerial", "sqlite-jdbc", "3.21.0"),
+    SQLITE_DRIVER("org.xerial", "sqlite-jdbc", "3.36.0.3"),
     HIKARI("com{}zaxxer", "HikariCP", "3.2.0", Relocation.of("hikari", "com{}zaxxer{}hikari")),
     SLF4J_SIMPLE("org.slf4j", "slf4j-simple", "1.7.25"),
     SLF4J_API("org.slf4j", "slf4j-api", "1.7.25"),
@@ -19,14 +19,21 @@
 package com.github.beelzebu.coins.common.importer;
 
 import com.github.beelzebu.coins.api.CoinsAPI;
+import com.github.beelzebu.coins.api.CoinsUser;
 import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
 import com.github.beelzebu.coins.api.storage.StorageType;
-import com.github.beelzebu.coins.api.storage.sql.SQLDatabase;
 import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import com.github.beelzebu.coins.common.storage.CommonSQLDatabase;
 import com.github.beelzebu.coins.common.storage.MySQL;
 import com.github.beelzebu.coins.common.storage.SQLite;
-import java.util.Map;
-import java.util.UUID;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -34,6 +41,8 @@ import org.jetbrains.annotations.NotNull;
  */
 public class ImportManager {
 
+    private static final int BATCH_SIZE = 1000;
+    private static final long REPORT_INTERVAL = 5000;
     private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
     private final Importer importer;
 
@@ -51,59 +60,120 @@ public class ImportManager {
     }
 
     public void importFromStorage(@NotNull StorageType storage) {
+        CommonSQLDatabase source;
         switch (storage) {
             case MYSQL:
-                if (plugin.getStorageProvider().getStorageType().equals(StorageType.MYSQL)) {
-                    plugin.log("You can't migrate information from the same storageProvider that you are using.");
-                    return;
-                }
-                SQLDatabase mysql = new MySQL(plugin);
-                mysql.setup();
-                Map<String, Double> mysqlData = mysql.getAllPlayers();
-                if (!mysqlData.isEmpty()) {
-                    plugin.log("Starting the migration from MySQL, this may take a moment.");
-                    copy(mysqlData);
-                } else {
-                    plugin.log("There are no users to migrate in the storageProvider.");
-                }
-                mysql.shutdown();
+                source = new MySQL(plugin);
                 break;
             case SQLITE:
-                if (plugin.getStorageProvider().getStorageType().equals(StorageType.SQLITE)) {
-                    plugin.log("You can't migrate information from the same storageProvider that you are using.");
-                    return;
-                }
-                SQLDatabase sqlite = new SQLite(plugin);
-                sqlite.setup();
-                Map<String, Double> sqliteData = sqlite.getAllPlayers();
-                if (!sqliteData.isEmpty()) {
-                    plugin.log("Starting the migration from SQLite, this may take a moment.");
-                    copy(sqliteData);
-                } else {
-                    plugin.log("There are no users to migrate in the storageProvider.");
-                }
-                sqlite.shutdown();
+                source = new SQLite(plugin);
                 break;
             default:
-                break;
+                return;
+        }
+        if (plugin.getStorageProvider().getStorageType().equals(storage)) {
+            plugin.log("You can't migrate information from the same storageProvider that you are using.");
+            return;
+        }
+        if (!source.openReadOnly()) {
+            plugin.log("Can't open " + storage + " to import from it, check its settings in the config.");
+            return;
+        }
+        try {
+            if (plugin.getStorageProvider() instanceof CommonSQLDatabase) {
+                migrate(source, (CommonSQLDatabase) plugin.getStorageProvider(), storage);
+            } else {
+                copy(source);
+            }
+        } finally {
+            source.shutdown();
         }
     }
 
-    private void copy(@NotNull Map<String, Double> data) {
-        data.forEach((key, value) -> {
-            String name = null;
-            UUID uuid = null;
-            try {
-                name = key.split(",")[0];
-                uuid = UUID.fromString(key.split(",")[1]);
-                double balance = value;
-                CoinsAPI.createPlayer(name, uuid, balance);
-                plugin.debug("Migrated the data for: " + uuid);
-            } catch (Exception ex) {
-                plugin.log("An error has occurred while migrating the data for: " + name + " (" + uuid + ")");
-                plugin.debug(ex);
+    // players are read in chunks ordered by id, the id of the last chunk written is saved so the migration can be
+    // resumed, players that already exist in the current storage are skipped. Ids are only valid for the same source
+    // database, so the checkpoint is saved per host and database
+    private void migrate(@NotNull CommonSQLDatabase source, @NotNull CommonSQLDatabase target, @NotNull StorageType storage) {
+        String location = source.getLocation().toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9.-]+", "_");
+        File checkpoint = new File(plugin.getBootstrap().getDataFolder(), "migration-" + storage.toString().toLowerCase(Locale.ROOT) + "-" + location + ".checkpoint");
+        long lastId = readCheckpoint(checkpoint);
+        long read = 0;
+        long inserted = 0;
+        try {
+            long total = source.countPlayers(lastId);
+            if (total == 0) {
+                plugin.log("There are no users to migrate in the storageProvider.");
+                checkpoint.delete();
+                return;
+            }
+            if (lastId > 0) {
+                plugin.log("Resuming the migration from " + storage + ", " + total + " users left.");
+            } else {
+                plugin.log("Starting the migration of " + total + " users from " + storage + ", this may take a moment.");
+            }
+            List<CoinsUser> batch = new ArrayList<>(BATCH_SIZE);
+            long lastReport = System.currentTimeMillis();
+            while (true) {
+                batch.clear();
+                long next = source.readPlayers(lastId, BATCH_SIZE, batch::add);
+                if (next == lastId) {
+                    break;
+                }
+                inserted += target.insertPlayers(batch);
+                read += batch.size();
+                lastId = next;
+                writeCheckpoint(checkpoint, lastId);
+                if (System.currentTimeMillis() - lastReport >= REPORT_INTERVAL) {
+                    lastReport = System.currentTimeMillis();
+                    plugin.log("Migrated " + read + " of " + total + " users (" + Math.min(100, read * 100 / total) + "%).");
+                }
             }
-        });
+        } catch (SQLException ex) {
+            plugin.log("An error has occurred while migrating the data after " + read + " users, run the command again to resume the migration.");
+            plugin.debug(ex);
+            return;
+        }
+        checkpoint.delete();
+        plugin.log("The migration was completed, " + inserted + " users were migrated and " + (read - inserted) + " already existed.");
+    }
+
+    private long readCheckpoint(@NotNull File checkpoint) {
+        if (!checkpoint.exists()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(checkpoint.toPath()), StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException ex) {
+            plugin.log("Can't read " + checkpoint.getName() + ", the migration will start from the first user.");
+            plugin.debug(ex);
+            return 0;
+        }
+    }
+
+    private void writeCheckpoint(@NotNull File checkpoint, long lastId) {
+        try {
+            Files.write(checkpoint.toPath(), String.valueOf(lastId).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            plugin.debug(ex);
+        }
+    }
+
+    private void copy(@NotNull CommonSQLDatabase source) {
+        try {
+            source.forEachPlayer(user -> {
+                try {
+                    CoinsAPI.createPlayer(user.getName(), user.getUniqueId(), user.getCoins());
+                    plugin.debug("Migrated the data for: " + user.getUniqueId());
+                } catch (Exception ex) {
+                    plugin.log("An error has occurred while migrating the data for: " + user.getName() + " (" + user.getUniqueId() + ")");
+                    plugin.debug(ex);
+                }
+            });
+        } catch (SQLException ex) {
+            plugin.log("An error has occurred while reading the users to migrate.");
+            plugin.debug(ex);
+            return;
+        }
         plugin.log("The migration was completed, check the plugin logs for more information.");
     }
 }
@@ -0,0 +1,220 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.importer;
+
+import com.github.beelzebu.coins.api.CoinsAPI;
+import com.github.beelzebu.coins.api.CoinsUser;
+import com.github.beelzebu.coins.api.cache.CacheProvider;
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import com.github.beelzebu.coins.common.storage.CommonSQLDatabase;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Writes the players read by an importer in batches. Players are partitioned by uuid between a few worker threads, so
+ * the reader doesn't wait for the database and the same player is always written by the same worker. Imported
+ * balances are added to the balance of players that already exist.
+ *
+ * @author Beelzebu
+ */
+public final class ImportPipeline {
+
+    private static final int BATCH_SIZE = 500;
+    private static final int QUEUE_SIZE = 5000;
+    private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+    private static final CoinsUser END = new CoinsUser(new UUID(0, 0), "", 0);
+    @NotNull
+    private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+    @NotNull
+    private final String source;
+    @Nullable
+    private final CommonSQLDatabase database;
+    private final List<BlockingQueue<CoinsUser>> partitions = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    // players in the cache must be loaded again from the database
+    private final Set<UUID> cached;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong lastReport = new AtomicLong();
+    private final long start = System.currentTimeMillis();
+
+    /**
+     * Start the workers for a new import.
+     *
+     * @param plugin plugin instance.
+     * @param source name of the plugin that is being imported, used in logs.
+     */
+    public ImportPipeline(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin, @NotNull String source) {
+        this.plugin = plugin;
+        this.source = source;
+        database = plugin.getStorageProvider() instanceof CommonSQLDatabase ? (CommonSQLDatabase) plugin.getStorageProvider() : null;
+        CacheProvider cache = plugin.getCache();
+        cached = cache != null ? new HashSet<>(cache.getPlayers()) : Collections.emptySet();
+        lastReport.set(start);
+        int threads = database != null ? Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())) : 1;
+        for (int i = 0; i < threads; i++) {
+            BlockingQueue<CoinsUser> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+            Thread worker = new Thread(() -> work(queue), "Coins Importer #" + i);
+            worker.setDaemon(true);
+            partitions.add(queue);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queue a player to be imported, waits if the workers are behind the reader.
+     *
+     * @param uuid    uuid of the player.
+     * @param name    name of the player, used if the player doesn't exist yet.
+     * @param balance balance to add to the player.
+     */
+    public void add(@NotNull UUID uuid, @NotNull String name, double balance) {
+        try {
+            partitions.get((uuid.hashCode() & Integer.MAX_VALUE) % partitions.size()).put(new CoinsUser(uuid, name, balance));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait until all queued players were written and log the result.
+     */
+    public void finish() {
+        for (BlockingQueue<CoinsUser> queue : partitions) {
+            try {
+                queue.put(END);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        long time = Math.max(1, System.currentTimeMillis() - start);
+        plugin.log("Imported " + written.get() + " users from " + source + " in " + time / 1000 + "s (" + written.get() * 1000 / time + " users/s)" + (failed.get() > 0 ? ", " + failed.get() + " users couldn't be imported, check the plugin logs for more information." : "."));
+    }
+
+    private void work(@NotNull BlockingQueue<CoinsUser> queue) {
+        List<CoinsUser> batch = new ArrayList<>(BATCH_SIZE);
+        boolean end = false;
+        while (!end) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            queue.drainTo(batch, BATCH_SIZE - 1);
+            if (batch.get(batch.size() - 1) == END) { // nothing is queued after the end
+                batch.remove(batch.size() - 1);
+                end = true;
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    write(batch);
+                } catch (RuntimeException ex) { // a bad batch must not stop this worker
+                    plugin.log("An error has occurred importing " + batch.size() + " users from " + source + ".");
+                    plugin.debug(ex);
+                    failed.addAndGet(batch.size());
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(@NotNull List<CoinsUser> batch) {
+        // the same player may appear more than once in a source
+        Map<UUID, CoinsUser> users = new LinkedHashMap<>();
+        for (CoinsUser user : batch) {
+            users.merge(user.getUniqueId(), user, (old, add) -> new CoinsUser(old.getUniqueId(), old.getName(), old.getCoins() + add.getCoins()));
+        }
+        if (database != null) {
+            try {
+                database.upsertPlayers(users.values());
+                written.addAndGet(batch.size());
+            } catch (SQLException | RuntimeException ex) {
+                plugin.log("An error has occurred importing " + users.size() + " users from " + source + ".");
+                plugin.debug(ex);
+                failed.addAndGet(batch.size());
+            }
+        } else {
+            users.values().forEach(this::writeSingle);
+        }
+        try {
+            refreshCache(users.keySet());
+        } catch (RuntimeException ex) { // users were already written
+            plugin.log("An error has occurred refreshing the cache for " + users.size() + " imported users.");
+            plugin.debug(ex);
+        }
+        long now = System.currentTimeMillis();
+        long last = lastReport.get();
+        if (now - last >= REPORT_INTERVAL && lastReport.compareAndSet(last, now)) {
+            plugin.log("Imported " + written.get() + " users from " + source + " (" + written.get() * 1000 / Math.max(1, now - start) + " users/s).");
+        }
+    }
+
+    private void writeSingle(@NotNull CoinsUser user) {
+        try {
+            if (CoinsAPI.isindb(user.getUniqueId())) {
+                CoinsAPI.addCoins(user.getUniqueId(), user.getCoins(), false);
+            } else {
+                CoinsAPI.createPlayer(user.getName(), user.getUniqueId(), user.getCoins());
+            }
+            written.incrementAndGet();
+        } catch (Exception ex) {
+            plugin.log("There is an error migrating data for: '" + user.getUniqueId() + "' (" + user.getName() + "), check logs for more information.");
+            plugin.debug(ex);
+            failed.incrementAndGet();
+        }
+    }
+
+    private void refreshCache(@NotNull Collection<UUID> uuids) {
+        CacheProvider cache = plugin.getCache();
+        if (cache == null || database == null) { // the api already updated the cache
+            return;
+        }
+        for (UUID uuid : uuids) {
+            if (cached.contains(uuid)) {
+                cache.removePlayer(uuid);
+            }
+        }
+    }
+}
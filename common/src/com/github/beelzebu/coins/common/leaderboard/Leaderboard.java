@@ -0,0 +1,82 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.leaderboard;
+
+import com.github.beelzebu.coins.api.CoinsUser;
+import java.util.UUID;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Index of players ordered by balance, updated every time a balance is written so top lookups don't need to query
+ * the storage. Players with the same balance are ordered by uuid from highest to lowest in every implementation, that
+ * is the order of members with the same score in a redis sorted set read in reverse.
+ *
+ * @author Beelzebu
+ */
+public interface Leaderboard {
+
+    void start();
+
+    void stop();
+
+    /**
+     * Update the balance of a player in the index.
+     *
+     * @param uuid    player that changed.
+     * @param balance new balance.
+     */
+    void update(@NotNull UUID uuid, double balance);
+
+    /**
+     * Update the name shown for a player in the index.
+     *
+     * @param uuid player that changed.
+     * @param name new name, ignored if null.
+     */
+    void updateName(@NotNull UUID uuid, @Nullable String name);
+
+    /**
+     * Get the players with the highest balance.
+     *
+     * @param top max amount of players to get.
+     * @return players ordered by balance, may contain less players than requested.
+     */
+    @NotNull
+    CoinsUser[] getTop(int top);
+
+    /**
+     * Get the position of a player in the leaderboard.
+     *
+     * @param uuid player to lookup.
+     * @return position of the player starting from 1, or -1 if the player isn't in the leaderboard.
+     */
+    int getRank(@NotNull UUID uuid);
+
+    /**
+     * Get the players next to a player in the leaderboard.
+     *
+     * @param uuid   player to lookup.
+     * @param radius amount of players to get before and after the player.
+     * @return players ordered by balance, including the given player, or an empty array if the player isn't in the
+     * leaderboard.
+     */
+    @NotNull
+    CoinsUser[] getPlayersAround(@NotNull UUID uuid, int radius);
+}
@@ -0,0 +1,199 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.leaderboard;
+
+import com.github.beelzebu.coins.api.CoinsUser;
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import com.github.beelzebu.coins.common.storage.CommonSQLDatabase;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Leaderboard kept in memory, it is loaded from the database on startup and reloaded periodically to get changes
+ * made by other servers.
+ *
+ * @author Beelzebu
+ */
+public final class LocalLeaderboard implements Leaderboard {
+
+    @NotNull
+    private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+    @NotNull
+    private final CommonSQLDatabase database;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<UUID, Double> balances = new HashMap<>();
+    private final Map<UUID, String> names = new ConcurrentHashMap<>();
+    private final RankTree tree = new RankTree();
+    private ScheduledExecutorService loader;
+
+    public LocalLeaderboard(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin, @NotNull CommonSQLDatabase database) {
+        this.plugin = plugin;
+        this.database = database;
+    }
+
+    @Override
+    public void start() {
+        loader = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Coins Leaderboard");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long refresh = Math.max(1, plugin.getConfig().getInt("Leaderboard.Refresh Interval", 10));
+        loader.scheduleWithFixedDelay(this::load, 0, refresh, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void stop() {
+        if (loader != null) {
+            loader.shutdownNow();
+            loader = null;
+        }
+        lock.writeLock().lock();
+        try {
+            balances.clear();
+            tree.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        names.clear();
+    }
+
+    @Override
+    public void update(@NotNull UUID uuid, double balance) {
+        lock.writeLock().lock();
+        try {
+            Double old = balances.put(uuid, balance);
+            if (old != null) {
+                tree.remove(uuid, old);
+            }
+            tree.insert(uuid, balance);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void updateName(@NotNull UUID uuid, @Nullable String name) {
+        if (name != null) {
+            names.put(uuid, name);
+        }
+    }
+
+    @NotNull
+    @Override
+    public CoinsUser[] getTop(int top) {
+        List<RankTree.Node> nodes;
+        lock.readLock().lock();
+        try {
+            nodes = getRange(0, top);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return toUsers(nodes);
+    }
+
+    @Override
+    public int getRank(@NotNull UUID uuid) {
+        lock.readLock().lock();
+        try {
+            Double balance = balances.get(uuid);
+            return balance == null ? -1 : tree.indexOf(uuid, balance) + 1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @NotNull
+    @Override
+    public CoinsUser[] getPlayersAround(@NotNull UUID uuid, int radius) {
+        List<RankTree.Node> nodes;
+        lock.readLock().lock();
+        try {
+            Double balance = balances.get(uuid);
+            if (balance == null) {
+                return new CoinsUser[0];
+            }
+            int index = tree.indexOf(uuid, balance);
+            int from = Math.max(0, index - Math.max(0, radius));
+            nodes = getRange(from, index + Math.max(0, radius) + 1 - from);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return toUsers(nodes);
+    }
+
+    // must be called holding the read lock
+    @NotNull
+    private List<RankTree.Node> getRange(int from, int amount) {
+        int to = Math.min(from + amount, tree.size());
+        List<RankTree.Node> nodes = new ArrayList<>(Math.max(0, to - from));
+        for (int i = from; i < to; i++) {
+            nodes.add(tree.get(i));
+        }
+        return nodes;
+    }
+
+    @NotNull
+    private CoinsUser[] toUsers(@NotNull List<RankTree.Node> nodes) {
+        CoinsUser[] users = new CoinsUser[nodes.size()];
+        for (int i = 0; i < users.length; i++) {
+            RankTree.Node node = nodes.get(i);
+            users[i] = new CoinsUser(node.uuid, getName(node.uuid), node.balance);
+        }
+        return users;
+    }
+
+    @Nullable
+    private String getName(@NotNull UUID uuid) {
+        String name = names.get(uuid);
+        if (name == null && (name = plugin.getName(uuid, false)) != null) {
+            names.put(uuid, name);
+        }
+        return name;
+    }
+
+    private void load() {
+        try {
+            long start = System.currentTimeMillis();
+            int[] count = {0};
+            database.forEachPlayer(user -> {
+                updateName(user.getUniqueId(), user.getName());
+                update(user.getUniqueId(), user.getCoins());
+                count[0]++;
+            });
+            plugin.debug("Loaded " + count[0] + " players in the leaderboard in " + (System.currentTimeMillis() - start) + "ms.");
+        } catch (SQLException ex) {
+            plugin.log("An error has occurred loading the leaderboard from the database.");
+            plugin.debug(ex);
+        }
+    }
+}
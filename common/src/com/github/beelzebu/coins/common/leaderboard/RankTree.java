@@ -0,0 +1,214 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.leaderboard;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Treap ordered by balance (highest first) where every node knows the size of its subtree, so the entry at any
+ * position can be found in O(log n). This class isn't thread safe.
+ *
+ * @author Beelzebu
+ */
+final class RankTree {
+
+    @Nullable
+    private Node root;
+    // reused by split to return both halves
+    private final Node[] halves = new Node[2];
+
+    int size() {
+        return size(root);
+    }
+
+    void insert(@NotNull UUID uuid, double balance) {
+        root = insert(root, new Node(uuid, balance));
+    }
+
+    void remove(@NotNull UUID uuid, double balance) {
+        root = remove(root, uuid, balance);
+    }
+
+    /**
+     * Get the position of a player.
+     *
+     * @param uuid    player to lookup.
+     * @param balance current balance of the player in this tree.
+     * @return position starting from 0, or -1 if the player isn't in the tree.
+     */
+    int indexOf(@NotNull UUID uuid, double balance) {
+        int index = 0;
+        Node node = root;
+        while (node != null) {
+            int compare = compare(node, uuid, balance);
+            if (compare == 0) {
+                return index + size(node.left);
+            }
+            if (compare < 0) {
+                index += size(node.left) + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the player at the given position.
+     *
+     * @param index position starting from 0 for the player with the highest balance.
+     * @return the node at the given position or null if the index is out of bounds.
+     */
+    @Nullable
+    Node get(int index) {
+        Node node = root;
+        while (node != null) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index > leftSize) {
+                index -= leftSize + 1;
+                node = node.right;
+            } else {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    void clear() {
+        root = null;
+    }
+
+    private Node insert(@Nullable Node node, @NotNull Node inserted) {
+        if (node == null) {
+            return inserted;
+        }
+        if (inserted.priority > node.priority) {
+            split(node, inserted.uuid, inserted.balance);
+            inserted.left = halves[0];
+            inserted.right = halves[1];
+            inserted.update();
+            return inserted;
+        }
+        if (compare(node, inserted.uuid, inserted.balance) < 0) {
+            node.right = insert(node.right, inserted);
+        } else {
+            node.left = insert(node.left, inserted);
+        }
+        node.update();
+        return node;
+    }
+
+    @Nullable
+    private Node remove(@Nullable Node node, @NotNull UUID uuid, double balance) {
+        if (node == null) {
+            return null;
+        }
+        int compare = compare(node, uuid, balance);
+        if (compare == 0) {
+            return merge(node.left, node.right);
+        }
+        if (compare < 0) {
+            node.right = remove(node.right, uuid, balance);
+        } else {
+            node.left = remove(node.left, uuid, balance);
+        }
+        node.update();
+        return node;
+    }
+
+    // split the tree in nodes ordered before the key (halves[0]) and the rest (halves[1])
+    private void split(@Nullable Node node, @NotNull UUID uuid, double balance) {
+        if (node == null) {
+            halves[0] = halves[1] = null;
+            return;
+        }
+        if (compare(node, uuid, balance) < 0) {
+            split(node.right, uuid, balance);
+            node.right = halves[0];
+            node.update();
+            halves[0] = node;
+        } else {
+            split(node.left, uuid, balance);
+            node.left = halves[1];
+            node.update();
+            halves[1] = node;
+        }
+    }
+
+    @Nullable
+    private Node merge(@Nullable Node left, @Nullable Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            left.update();
+            return left;
+        }
+        right.left = merge(left, right.left);
+        right.update();
+        return right;
+    }
+
+    // negative if the node goes before the key, ties are ordered by the uuid as text from highest to lowest like
+    // the other leaderboards, unsigned comparison gives the same order as the text
+    static int compare(@NotNull Node node, @NotNull UUID uuid, double balance) {
+        int compare = Double.compare(balance, node.balance);
+        if (compare != 0) {
+            return compare;
+        }
+        compare = Long.compareUnsigned(uuid.getMostSignificantBits(), node.uuid.getMostSignificantBits());
+        return compare != 0 ? compare : Long.compareUnsigned(uuid.getLeastSignificantBits(), node.uuid.getLeastSignificantBits());
+    }
+
+    static int size(@Nullable Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    static final class Node {
+
+        @NotNull
+        final UUID uuid;
+        final double balance;
+        private final int priority = ThreadLocalRandom.current().nextInt();
+        private int size = 1;
+        @Nullable
+        private Node left;
+        @Nullable
+        private Node right;
+
+        private Node(@NotNull UUID uuid, double balance) {
+            this.uuid = uuid;
+            this.balance = balance;
+        }
+
+        private void update() {
+            size = 1 + size(left) + size(right);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.leaderboard;
+
+import com.github.beelzebu.coins.api.CoinsUser;
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import com.github.beelzebu.coins.common.storage.CommonSQLDatabase;
+import com.github.beelzebu.coins.common.utils.RedisManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.params.ZAddParams;
+
+/**
+ * Leaderboard stored in a redis sorted set and shared by all servers.
+ *
+ * @author Beelzebu
+ */
+public final class RedisLeaderboard implements Leaderboard {
+
+    // uuid scored by balance
+    public static final String LEADERBOARD_KEY = "coins:leaderboard";
+    // uuid -> name
+    private static final String NAMES_KEY = "coins:leaderboard:names";
+    private static final String LOADING_KEY = "coins:leaderboard:loading";
+    private static final int LOAD_BATCH_SIZE = 1000;
+    @NotNull
+    private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+    @NotNull
+    private final RedisManager redisManager;
+    @NotNull
+    private final CommonSQLDatabase database;
+
+    public RedisLeaderboard(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin, @NotNull RedisManager redisManager, @NotNull CommonSQLDatabase database) {
+        this.plugin = plugin;
+        this.redisManager = redisManager;
+        this.database = database;
+    }
+
+    @Override
+    public void start() {
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            // only one server loads the leaderboard, the others will see the entries as they are added
+            if (jedis.exists(LEADERBOARD_KEY) || !"OK".equals(jedis.set(LOADING_KEY, "1", SetParams.setParams().nx().ex(300)))) {
+                return;
+            }
+        } catch (JedisException ex) {
+            plugin.log("An error has occurred checking the leaderboard in redis.");
+            plugin.debug(ex);
+            return;
+        }
+        plugin.getExecutor().execute(this::load);
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void update(@NotNull UUID uuid, double balance) {
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            jedis.zadd(LEADERBOARD_KEY, balance, uuid.toString());
+        } catch (JedisException ex) {
+            plugin.log("An error has occurred updating the leaderboard for " + uuid);
+            plugin.debug(ex);
+        }
+    }
+
+    @Override
+    public void updateName(@NotNull UUID uuid, @Nullable String name) {
+        if (name == null) {
+            return;
+        }
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            jedis.hset(NAMES_KEY, uuid.toString(), name);
+        } catch (JedisException ex) {
+            plugin.log("An error has occurred updating the leaderboard name for " + uuid);
+            plugin.debug(ex);
+        }
+    }
+
+    @NotNull
+    @Override
+    public CoinsUser[] getTop(int top) {
+        if (top <= 0) {
+            return new CoinsUser[0];
+        }
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            return toUsers(jedis, jedis.zrevrangeWithScores(LEADERBOARD_KEY, 0, top - 1));
+        } catch (JedisException ex) {
+            plugin.log("An error has occurred getting the leaderboard from redis.");
+            plugin.debug(ex);
+            return new CoinsUser[0];
+        }
+    }
+
+    @Override
+    public int getRank(@NotNull UUID uuid) {
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            Long rank = jedis.zrevrank(LEADERBOARD_KEY, uuid.toString());
+            return rank == null ? -1 : rank.intValue() + 1;
+        } catch (JedisException ex) {
+            plugin.log("An error has occurred getting the rank of " + uuid + " from redis.");
+            plugin.debug(ex);
+            return -1;
+        }
+    }
+
+    @NotNull
+    @Override
+    public CoinsUser[] getPlayersAround(@NotNull UUID uuid, int radius) {
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            Long rank = jedis.zrevrank(LEADERBOARD_KEY, uuid.toString());
+            if (rank == null) {
+                return new CoinsUser[0];
+            }
+            return toUsers(jedis, jedis.zrevrangeWithScores(LEADERBOARD_KEY, Math.max(0, rank - Math.max(0, radius)), rank + Math.max(0, radius)));
+        } catch (JedisException ex) {
+            plugin.log("An error has occurred getting players around " + uuid + " from redis.");
+            plugin.debug(ex);
+            return new CoinsUser[0];
+        }
+    }
+
+    @NotNull
+    private CoinsUser[] toUsers(@NotNull Jedis jedis, @NotNull Set<Tuple> tuples) {
+        if (tuples.isEmpty()) {
+            return new CoinsUser[0];
+        }
+        List<Tuple> entries = new ArrayList<>(tuples);
+        String[] uuids = new String[entries.size()];
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = entries.get(i).getElement();
+        }
+        List<String> names = jedis.hmget(NAMES_KEY, uuids);
+        List<CoinsUser> users = new ArrayList<>(uuids.length);
+        for (int i = 0; i < uuids.length; i++) {
+            UUID uuid;
+            try {
+                uuid = UUID.fromString(uuids[i]);
+            } catch (IllegalArgumentException ex) {
+                continue;
+            }
+            String name = names.get(i);
+            if (name == null && (name = plugin.getName(uuid, false)) != null) {
+                jedis.hset(NAMES_KEY, uuids[i], name);
+            }
+            users.add(new CoinsUser(uuid, name, entries.get(i).getScore()));
+        }
+        return users.toArray(new CoinsUser[0]);
+    }
+
+    private void load() {
+        long start = System.currentTimeMillis();
+        Map<String, Double> balances = new HashMap<>();
+        Map<String, String> names = new HashMap<>();
+        int[] count = {0};
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            database.forEachPlayer(user -> {
+                balances.put(user.getUniqueId().toString(), user.getCoins());
+                if (user.getName() != null) {
+                    names.put(user.getUniqueId().toString(), user.getName());
+                }
+                if (balances.size() >= LOAD_BATCH_SIZE) {
+                    count[0] += write(jedis, balances, names);
+                }
+            });
+            count[0] += write(jedis, balances, names);
+            jedis.del(LOADING_KEY);
+            plugin.debug("Loaded " + count[0] + " players in the redis leaderboard in " + (System.currentTimeMillis() - start) + "ms.");
+        } catch (SQLException ex) {
+            plugin.log("An error has occurred loading the leaderboard from the database.");
+            plugin.debug(ex);
+        } catch (JedisException ex) {
+            plugin.log("An error has occurred loading the leaderboard in redis.");
+            plugin.debug(ex);
+        }
+    }
+
+    private int write(@NotNull Jedis jedis, @NotNull Map<String, Double> balances, @NotNull Map<String, String> names) {
+        int size = balances.size();
+        if (size == 0) {
+            return 0;
+        }
+        Pipeline pipeline = jedis.pipelined();
+        // NX so balances updated while loading are not overwritten with the stored ones
+        pipeline.zadd(LEADERBOARD_KEY, balances, ZAddParams.zAddParams().nx());
+        if (!names.isEmpty()) {
+            pipeline.hset(NAMES_KEY, names);
+        }
+        pipeline.sync();
+        balances.clear();
+        names.clear();
+        return size;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.leaderboard;
+
+import com.github.beelzebu.coins.api.CoinsUser;
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.api.storage.StorageProvider;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import com.github.beelzebu.coins.common.storage.CommonSQLDatabase;
+import java.util.UUID;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Leaderboard used when the index is disabled, every lookup is a query to the storage.
+ *
+ * @author Beelzebu
+ */
+public final class StorageLeaderboard implements Leaderboard {
+
+    @NotNull
+    private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+
+    public StorageLeaderboard(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void update(@NotNull UUID uuid, double balance) {
+    }
+
+    @Override
+    public void updateName(@NotNull UUID uuid, @Nullable String name) {
+    }
+
+    @NotNull
+    @Override
+    public CoinsUser[] getTop(int top) {
+        CoinsUser[] users = plugin.getStorageProvider().getTopPlayers(top);
+        return users != null ? users : new CoinsUser[0];
+    }
+
+    @Override
+    public int getRank(@NotNull UUID uuid) {
+        StorageProvider storageProvider = plugin.getStorageProvider();
+        return storageProvider instanceof CommonSQLDatabase ? ((CommonSQLDatabase) storageProvider).getRank(uuid) : -1;
+    }
+
+    @NotNull
+    @Override
+    public CoinsUser[] getPlayersAround(@NotNull UUID uuid, int radius) {
+        StorageProvider storageProvider = plugin.getStorageProvider();
+        int rank = getRank(uuid);
+        if (rank == -1) {
+            return new CoinsUser[0];
+        }
+        int from = Math.max(0, rank - 1 - Math.max(0, radius));
+        return ((CommonSQLDatabase) storageProvider).getPlayers(from, rank + Math.max(0, radius) - from);
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.messaging;
+
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Coalesces balance updates before they are sent to other servers, only the latest balance of every player in the
+ * window is sent. Messages created while flushing are collected and sent together in frames that fit in a plugin message.
+ *
+ * @author Beelzebu
+ */
+public final class MessageBatcher {
+
+    @NotNull
+    private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+    @NotNull
+    private final Publisher publisher;
+    @NotNull
+    private final Consumer<List<String>> frameSender;
+    private final long window;
+    private final int maxSize;
+    private final int maxFrameBytes;
+    // guarded by this
+    private Map<UUID, Double> pending = new LinkedHashMap<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+    @Nullable
+    private volatile Thread collector;
+    @Nullable
+    private List<String> collected;
+    @Nullable
+    private ScheduledExecutorService flusher;
+
+    /**
+     * @param plugin      plugin instance.
+     * @param publisher   sends a balance update, the messages it sends are collected in the current frame.
+     * @param frameSender sends all the messages collected in a flush.
+     */
+    public MessageBatcher(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin, @NotNull Publisher publisher, @NotNull Consumer<List<String>> frameSender) {
+        this.plugin = plugin;
+        this.publisher = publisher;
+        this.frameSender = frameSender;
+        window = Math.max(0, plugin.getConfig().getInt("Messaging Batch.Window", 50));
+        maxSize = Math.max(1, plugin.getConfig().getInt("Messaging Batch.Max Size", 200));
+        // bukkit refuses plugin messages bigger than 32766 bytes, leave room for the frame header
+        maxFrameBytes = Math.max(1024, plugin.getConfig().getInt("Messaging Batch.Max Frame Bytes", 30000));
+    }
+
+    public void start() {
+        if (window == 0) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Coins Message Batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, window, window, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the flusher thread and send every pending update.
+     */
+    public void stop() {
+        if (flusher == null) {
+            return;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flusher = null;
+        flush();
+    }
+
+    /**
+     * Queue a balance update, replacing any update for the same player that wasn't sent yet.
+     *
+     * @param uuid    player that changed.
+     * @param balance new balance of the player.
+     */
+    public void publishUser(@NotNull UUID uuid, double balance) {
+        received.incrementAndGet();
+        ScheduledExecutorService flusher = this.flusher;
+        if (flusher == null) {
+            sent.incrementAndGet();
+            publisher.publish(uuid, balance);
+            return;
+        }
+        int size;
+        synchronized (this) {
+            pending.put(uuid, balance);
+            size = pending.size();
+        }
+        if (size >= maxSize && flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flush);
+            } catch (Exception ex) { // flusher was stopped, stop() sends this update
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    /**
+     * Collect a message if it was created by a flush.
+     *
+     * @param message message that is going to be sent.
+     * @return true if the message will be sent with the current frame.
+     */
+    public boolean collect(@NotNull String message) {
+        if (Thread.currentThread() != collector) {
+            return false;
+        }
+        assert collected != null;
+        collected.add(message);
+        return true;
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getFrames() {
+        return frames.get();
+    }
+
+    /**
+     * @return updates that weren't sent because a newer balance for the same player replaced them.
+     */
+    public long getSaved() {
+        return received.get() - sent.get();
+    }
+
+    // only called by the flusher thread, or by stop() after the flusher was stopped
+    private void flush() {
+        flushRequested.set(false);
+        Map<UUID, Double> updates;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            updates = pending;
+            pending = new LinkedHashMap<>();
+        }
+        List<String> messages = new ArrayList<>(updates.size());
+        collected = messages;
+        collector = Thread.currentThread();
+        try {
+            updates.forEach((uuid, balance) -> {
+                try {
+                    publisher.publish(uuid, balance);
+                } catch (Exception ex) {
+                    plugin.log("An error has occurred sending the balance of " + uuid + " to other servers.");
+                    plugin.debug(ex);
+                }
+            });
+        } finally {
+            collector = null;
+            collected = null;
+        }
+        sent.addAndGet(updates.size());
+        MessageCodec codec = plugin.getMessageCodec();
+        int from = 0;
+        int bytes = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            int length = size(codec, messages.get(i));
+            if (i > from && bytes + length > maxFrameBytes) {
+                sendFrame(messages.subList(from, i));
+                from = i;
+                bytes = 0;
+            }
+            bytes += length;
+        }
+        if (from < messages.size()) {
+            sendFrame(messages.subList(from, messages.size()));
+        }
+    }
+
+    private void sendFrame(@NotNull List<String> messages) {
+        frames.incrementAndGet();
+        try {
+            frameSender.accept(new ArrayList<>(messages));
+        } catch (Exception ex) {
+            plugin.log("An error has occurred sending " + messages.size() + " messages to other servers.");
+            plugin.debug(ex);
+        }
+    }
+
+    // frames are only sent in the binary format, the frame header is smaller than the header of every message
+    private static int size(@NotNull MessageCodec codec, @NotNull String message) {
+        if (codec.isBinary()) {
+            try {
+                return codec.encode(message).length;
+            } catch (Exception ignore) { // the sender will report it
+            }
+        }
+        int length = message.length();
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c >= 0x800) {
+                length += 2;
+            } else if (c >= 0x80) {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    @FunctionalInterface
+    public interface Publisher {
+
+        void publish(@NotNull UUID uuid, double balance);
+    }
+}
@@ -0,0 +1,723 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.messaging;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.internal.LazilyParsedNumber;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Binary encoding for messaging payloads. Every value starts with a type tag, uuids are written as two longs, integers
+ * as variable length longs and decimals as doubles. Payloads start with a magic number and a version, anything else is
+ * read as json so servers using the old format can still talk to each other. Balance updates and multiplier updates have
+ * fixed layouts since version 2, payloads that don't use them are still written as version 1.
+ *
+ * @author Beelzebu
+ */
+public final class MessageCodec {
+
+    public static final int VERSION = 2;
+    private static final int GENERIC_VERSION = 1;
+    private static final byte MAGIC_1 = (byte) 0xC0;
+    private static final byte MAGIC_2 = (byte) 0xDE;
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte STRING = 5;
+    private static final byte UUID = 6;
+    private static final byte OBJECT = 7;
+    private static final byte ARRAY = 8;
+    private static final byte END = 9;
+    // numbers that don't fit in a long or a double are kept as text
+    private static final byte NUMBER = 10;
+    // several messages sent together
+    private static final byte FRAME = 11;
+    // fixed layouts, since version 2
+    private static final byte USER_UPDATE = 12;
+    private static final byte MULTIPLIER_UPDATE = 13;
+    private static final String USER_UPDATE_TYPE = "USER_UPDATE";
+    // keys of the multiplier record written as a single byte
+    private static final String[] MULTIPLIER_KEYS = {"id", "server", "type", "amount", "minutes", "endtime", "enabled", "queue", "enabler", "enableruuid", "serverEnabler", "data"};
+    private static final ThreadLocal<Output> OUTPUT = ThreadLocal.withInitial(Output::new);
+    private final boolean binary;
+
+    /**
+     * @param binary true to send binary payloads, json payloads are always accepted.
+     */
+    public MessageCodec(boolean binary) {
+        this.binary = binary;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public static boolean isBinary(@NotNull byte[] data) {
+        return data.length >= 3 && data[0] == MAGIC_1 && data[1] == MAGIC_2;
+    }
+
+    /**
+     * Encode a message using the binary format.
+     *
+     * @param message message to encode.
+     * @return encoded message.
+     */
+    @NotNull
+    public byte[] encode(@NotNull JsonElement message) {
+        Output out = OUTPUT.get().reset();
+        writeMessage(out, message);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode a json message using the binary format, the json is read as a stream without building a tree.
+     *
+     * @param json message to encode.
+     * @return encoded message.
+     * @throws JsonParseException if the message isn't valid json.
+     */
+    @NotNull
+    public byte[] encode(@NotNull String json) {
+        Output out = OUTPUT.get().reset();
+        writeMessage(out, json);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode several json messages in a single binary frame.
+     *
+     * @param messages messages to encode.
+     * @return encoded frame.
+     * @throws JsonParseException if a message isn't valid json.
+     */
+    @NotNull
+    public byte[] encodeFrame(@NotNull List<String> messages) {
+        Output out = OUTPUT.get().reset();
+        out.write(FRAME);
+        out.writeVarLong(messages.size());
+        for (String json : messages) {
+            writeMessage(out, json);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a message or a frame in the binary or json format.
+     *
+     * @param data message to decode.
+     * @return decoded messages.
+     * @throws JsonParseException if the message can't be decoded.
+     */
+    @NotNull
+    public List<JsonObject> decode(@NotNull byte[] data) {
+        if (!isBinary(data)) {
+            return Collections.singletonList(new JsonParser().parse(new String(data, StandardCharsets.UTF_8)).getAsJsonObject());
+        }
+        if (data[2] > VERSION) {
+            throw new JsonParseException("Unsupported message version " + data[2] + ", update the plugin in all servers.");
+        }
+        try {
+            Input in = new Input(data, 3);
+            byte tag = in.readByte();
+            if (tag != FRAME) {
+                return Collections.singletonList(readMessage(in, tag));
+            }
+            int size = (int) in.readVarLong();
+            List<JsonObject> messages = new ArrayList<>(Math.min(size, data.length));
+            for (int i = 0; i < size; i++) {
+                messages.add(readMessage(in, in.readByte()));
+            }
+            return messages;
+        } catch (IndexOutOfBoundsException | IllegalStateException ex) {
+            throw new JsonParseException("Invalid binary message", ex);
+        }
+    }
+
+    /**
+     * Encode a message for proxy plugin messages, old versions wrap the json with {@link DataOutputStream#writeUTF}.
+     *
+     * @param json message to encode.
+     * @return payload for the plugin message.
+     */
+    @NotNull
+    public byte[] encodeProxy(@NotNull String json) {
+        if (binary) {
+            return encode(json);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length() + 2);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(json);
+        } catch (IOException ex) {
+            throw new JsonParseException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a proxy plugin message in the binary or json format.
+     *
+     * @param data payload of the plugin message.
+     * @return decoded messages.
+     * @throws JsonParseException if the message can't be decoded.
+     */
+    @NotNull
+    public List<JsonObject> decodeProxy(@NotNull byte[] data) {
+        // a writeUTF payload starts with its length, it is only binary if the length doesn't match
+        if (isBinary(data) && data.length != 2 + (((data[0] & 0xFF) << 8) | (data[1] & 0xFF))) {
+            return decode(data);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            return Collections.singletonList(new JsonParser().parse(in.readUTF()).getAsJsonObject());
+        } catch (IOException ex) {
+            throw new JsonParseException(ex);
+        }
+    }
+
+    private void writeMessage(@NotNull Output out, @NotNull JsonElement message) {
+        if (message.isJsonObject()) {
+            JsonObject object = message.getAsJsonObject();
+            if (object.size() == 4 && writeUser(out, string(object, "uuid"), number(object, "coins"), string(object, "messageid"), string(object, "type"))) {
+                return;
+            }
+            if (object.size() == 3 && writeMultiplier(out, object)) {
+                return;
+            }
+        }
+        writeElement(out, message);
+    }
+
+    private void writeMessage(@NotNull Output out, @NotNull String json) {
+        try {
+            if (writeUser(out, json)) {
+                return;
+            }
+            if (json.contains("\"multiplier\"")) { // not common enough to avoid building the tree
+                writeMessage(out, new JsonParser().parse(json));
+                return;
+            }
+            try (JsonReader reader = new JsonReader(new StringReader(json))) {
+                writeStream(out, reader);
+            }
+        } catch (IOException | IllegalStateException | NumberFormatException ex) {
+            throw new JsonParseException(ex);
+        }
+    }
+
+    // reads the top level keys of a balance update without building a tree, nothing is written if it isn't one
+    private boolean writeUser(@NotNull Output out, @NotNull String json) throws IOException {
+        String uuid = null, messageid = null, type = null;
+        Double coins = null;
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return false;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                JsonToken token = reader.peek();
+                if (key.equals("coins") && coins == null && token == JsonToken.NUMBER) {
+                    coins = reader.nextDouble();
+                } else if (token != JsonToken.STRING) {
+                    return false;
+                } else if (key.equals("uuid") && uuid == null) {
+                    uuid = reader.nextString();
+                } else if (key.equals("messageid") && messageid == null) {
+                    messageid = reader.nextString();
+                } else if (key.equals("type") && type == null) {
+                    type = reader.nextString();
+                } else {
+                    return false;
+                }
+            }
+        }
+        return writeUser(out, uuid, coins, messageid, type);
+    }
+
+    private boolean writeUser(@NotNull Output out, String uuid, Double coins, String messageid, String type) {
+        if (!USER_UPDATE_TYPE.equals(type) || coins == null || uuid == null || !isUuid(uuid) || messageid == null || !isUuid(messageid)) {
+            return false;
+        }
+        out.version(VERSION);
+        out.write(USER_UPDATE);
+        writeUuid(out, uuid);
+        out.writeLong(Double.doubleToRawLongBits(coins));
+        writeUuid(out, messageid);
+        return true;
+    }
+
+    private boolean writeMultiplier(@NotNull Output out, @NotNull JsonObject message) {
+        JsonElement multiplier = message.get("multiplier");
+        String messageid = string(message, "messageid");
+        String type = string(message, "type");
+        if (multiplier == null || !multiplier.isJsonObject() || messageid == null || !isUuid(messageid) || type == null) {
+            return false;
+        }
+        out.version(VERSION);
+        out.write(MULTIPLIER_UPDATE);
+        writeUuid(out, messageid);
+        out.writeString(type);
+        // key codes: zero ends the record, odd numbers are known keys and even numbers are the length of other keys
+        for (Map.Entry<String, JsonElement> entry : multiplier.getAsJsonObject().entrySet()) {
+            int known = multiplierKey(entry.getKey());
+            if (known >= 0) {
+                out.writeVarLong(known << 1 | 1);
+            } else {
+                out.writeUtf8(entry.getKey(), 1, true);
+            }
+            writeElement(out, entry.getValue());
+        }
+        out.writeVarLong(0);
+        return true;
+    }
+
+    private static int multiplierKey(@NotNull String key) {
+        for (int i = 0; i < MULTIPLIER_KEYS.length; i++) {
+            if (MULTIPLIER_KEYS[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String string(@NotNull JsonObject object, @NotNull String key) {
+        JsonElement element = object.get(key);
+        return element != null && element.isJsonPrimitive() && element.getAsJsonPrimitive().isString() ? element.getAsString() : null;
+    }
+
+    private static Double number(@NotNull JsonObject object, @NotNull String key) {
+        JsonElement element = object.get(key);
+        return element != null && element.isJsonPrimitive() && element.getAsJsonPrimitive().isNumber() ? element.getAsDouble() : null;
+    }
+
+    private void writeElement(@NotNull Output out, @NotNull JsonElement element) {
+        if (element.isJsonNull()) {
+            out.write(NULL);
+        } else if (element.isJsonObject()) {
+            out.write(OBJECT);
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                out.writeKey(entry.getKey());
+                writeElement(out, entry.getValue());
+            }
+            out.writeVarLong(0);
+        } else if (element.isJsonArray()) {
+            out.write(ARRAY);
+            for (JsonElement value : element.getAsJsonArray()) {
+                writeElement(out, value);
+            }
+            out.write(END);
+        } else {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                out.write(primitive.getAsBoolean() ? TRUE : FALSE);
+            } else if (primitive.isString()) {
+                writeString(out, primitive.getAsString());
+            } else {
+                Number number = primitive.getAsNumber();
+                if (number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte) {
+                    out.write(LONG);
+                    out.writeVarLong(zigzag(number.longValue()));
+                } else if (number instanceof Double || number instanceof Float) {
+                    out.write(DOUBLE);
+                    out.writeLong(Double.doubleToRawLongBits(number.doubleValue()));
+                } else {
+                    writeNumber(out, number.toString());
+                }
+            }
+        }
+    }
+
+    private void writeStream(@NotNull Output out, @NotNull JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                out.write(OBJECT);
+                while (reader.hasNext()) {
+                    out.writeKey(reader.nextName());
+                    writeStream(out, reader);
+                }
+                reader.endObject();
+                out.writeVarLong(0);
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                out.write(ARRAY);
+                while (reader.hasNext()) {
+                    writeStream(out, reader);
+                }
+                reader.endArray();
+                out.write(END);
+                break;
+            case BOOLEAN:
+                out.write(reader.nextBoolean() ? TRUE : FALSE);
+                break;
+            case NULL:
+                reader.nextNull();
+                out.write(NULL);
+                break;
+            case NUMBER:
+                writeNumber(out, reader.nextString());
+                break;
+            case STRING:
+                writeString(out, reader.nextString());
+                break;
+            default:
+                throw new IllegalStateException("Unexpected token " + reader.peek());
+        }
+    }
+
+    // keeps integers as integers so they are read back with the same type
+    private void writeNumber(@NotNull Output out, @NotNull String number) {
+        boolean integral = true;
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if ((c < '0' || c > '9') && !(i == 0 && c == '-')) {
+                integral = false;
+                break;
+            }
+        }
+        if (integral && number.length() < 19) { // always fits in a long
+            out.write(LONG);
+            out.writeVarLong(zigzag(Long.parseLong(number)));
+        } else if (!integral) {
+            out.write(DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits(Double.parseDouble(number)));
+        } else {
+            out.write(NUMBER);
+            out.writeString(number);
+        }
+    }
+
+    private void writeString(@NotNull Output out, @NotNull String value) {
+        if (isUuid(value)) {
+            out.write(UUID);
+            writeUuid(out, value);
+        } else {
+            out.write(STRING);
+            out.writeString(value);
+        }
+    }
+
+    private void writeUuid(@NotNull Output out, @NotNull String value) {
+        out.writeLong(parseHex(value, 0, 8) << 32 | parseHex(value, 9, 13) << 16 | parseHex(value, 14, 18));
+        out.writeLong(parseHex(value, 19, 23) << 48 | parseHex(value, 24, 36));
+    }
+
+    // keys are added in the same order AbstractMessagingService adds them
+    @NotNull
+    private JsonObject readMessage(@NotNull Input in, byte tag) {
+        JsonObject message = new JsonObject();
+        switch (tag) {
+            case USER_UPDATE:
+                message.addProperty("uuid", in.readUuid());
+                message.addProperty("coins", Double.longBitsToDouble(in.readLong()));
+                message.addProperty("messageid", in.readUuid());
+                message.addProperty("type", USER_UPDATE_TYPE);
+                return message;
+            case MULTIPLIER_UPDATE:
+                String messageid = in.readUuid();
+                String type = in.readString();
+                JsonObject multiplier = new JsonObject();
+                long code;
+                while ((code = in.readVarLong()) != 0) {
+                    String key;
+                    if ((code & 1) == 1) {
+                        if (code >>> 1 >= MULTIPLIER_KEYS.length) {
+                            throw new IllegalStateException("Unknown multiplier key " + (code >>> 1));
+                        }
+                        key = MULTIPLIER_KEYS[(int) (code >>> 1)];
+                    } else {
+                        key = in.readUtf8((int) (code >>> 1) - 1);
+                    }
+                    multiplier.add(key, readElement(in, in.readByte()));
+                }
+                message.add("multiplier", multiplier);
+                message.addProperty("messageid", messageid);
+                message.addProperty("type", type);
+                return message;
+            default:
+                return readElement(in, tag).getAsJsonObject();
+        }
+    }
+
+    @NotNull
+    private JsonElement readElement(@NotNull Input in, byte tag) {
+        switch (tag) {
+            case NULL:
+                return JsonNull.INSTANCE;
+            case TRUE:
+                return new JsonPrimitive(true);
+            case FALSE:
+                return new JsonPrimitive(false);
+            case LONG:
+                long zigzag = in.readVarLong();
+                return new JsonPrimitive((zigzag >>> 1) ^ -(zigzag & 1));
+            case DOUBLE:
+                return new JsonPrimitive(Double.longBitsToDouble(in.readLong()));
+            case STRING:
+                return new JsonPrimitive(in.readString());
+            case UUID:
+                return new JsonPrimitive(in.readUuid());
+            case NUMBER:
+                return new JsonPrimitive(new LazilyParsedNumber(in.readString()));
+            case OBJECT:
+                JsonObject object = new JsonObject();
+                String key;
+                while ((key = in.readKey()) != null) {
+                    object.add(key, readElement(in, in.readByte()));
+                }
+                return object;
+            case ARRAY:
+                JsonArray array = new JsonArray();
+                byte next;
+                while ((next = in.readByte()) != END) {
+                    array.add(readElement(in, next));
+                }
+                return array;
+            default:
+                throw new IllegalStateException("Unknown tag " + tag);
+        }
+    }
+
+    // only lowercase uuids, so the decoded string is the same that was encoded
+    private static boolean isUuid(@NotNull String value) {
+        if (value.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = value.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseHex(@NotNull String value, int from, int to) {
+        long result = 0;
+        for (int i = from; i < to; i++) {
+            result = result << 4 | Character.digit(value.charAt(i), 16);
+        }
+        return result;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static final class Output {
+
+        private byte[] buffer = new byte[256];
+        private int position;
+
+        @NotNull
+        Output reset() {
+            position = 0;
+            write(MAGIC_1);
+            write(MAGIC_2);
+            write((byte) GENERIC_VERSION);
+            return this;
+        }
+
+        // older servers can read the payload unless a newer layout is used
+        void version(int version) {
+            if (buffer[2] < version) {
+                buffer[2] = (byte) version;
+            }
+        }
+
+        void write(byte value) {
+            ensure(1);
+            buffer[position++] = value;
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        // keys are written with their length plus one, zero ends the object
+        void writeKey(@NotNull String key) {
+            writeUtf8(key, 1, false);
+        }
+
+        void writeString(@NotNull String value) {
+            writeUtf8(value, 0, false);
+        }
+
+        void writeUtf8(@NotNull String value, int lengthOffset, boolean shifted) {
+            int length = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    length++;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += Character.isSurrogate(c) ? 1 : 3;
+                }
+            }
+            writeVarLong(shifted ? (long) (length + lengthOffset) << 1 : length + lengthOffset);
+            ensure(length);
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    buffer[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[position++] = (byte) (0xC0 | c >> 6);
+                    buffer[position++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[position++] = (byte) (0xF0 | codePoint >> 18);
+                    buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    buffer[position++] = (byte) (0x80 | codePoint & 0x3F);
+                } else {
+                    // lone surrogates are replaced like String#getBytes does
+                    char encoded = Character.isSurrogate(c) ? '?' : c;
+                    if (encoded < 0x80) {
+                        buffer[position++] = (byte) encoded;
+                    } else {
+                        buffer[position++] = (byte) (0xE0 | encoded >> 12);
+                        buffer[position++] = (byte) (0x80 | encoded >> 6 & 0x3F);
+                        buffer[position++] = (byte) (0x80 | encoded & 0x3F);
+                    }
+                }
+            }
+        }
+
+        @NotNull
+        byte[] toByteArray() {
+            byte[] result = Arrays.copyOf(buffer, position);
+            if (buffer.length > 64 * 1024) { // don't keep big buffers for every thread
+                buffer = new byte[256];
+            }
+            return result;
+        }
+
+        private void ensure(int bytes) {
+            if (position + bytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+            }
+        }
+    }
+
+    private static final class Input {
+
+        private final byte[] data;
+        private int position;
+
+        Input(@NotNull byte[] data, int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        byte readByte() {
+            if (position >= data.length) {
+                throw new IndexOutOfBoundsException("End of message");
+            }
+            return data[position++];
+        }
+
+        long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = value << 8 | (readByte() & 0xFF);
+            }
+            return value;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("Malformed variable length number");
+        }
+
+        @NotNull
+        String readString() {
+            return readUtf8((int) readVarLong());
+        }
+
+        String readKey() {
+            int length = (int) readVarLong();
+            return length == 0 ? null : readUtf8(length - 1);
+        }
+
+        @NotNull
+        String readUuid() {
+            return new UUID(readLong(), readLong()).toString();
+        }
+
+        @NotNull
+        String readUtf8(int length) {
+            if (length < 0 || position + length > data.length) {
+                throw new IndexOutOfBoundsException("End of message");
+            }
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.messaging;
+
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Bounded queues of messages that couldn't be sent, one per destination. A message replaces any queued message with the
+ * same content or, for player updates, any queued update of the same player. Queues are saved to disk so they survive a
+ * restart, and messages older than the max age are discarded instead of being sent.
+ *
+ * @author Beelzebu
+ */
+public final class OutboundQueue {
+
+    private static final int MAGIC = 0xC0DE0001;
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+    @NotNull
+    private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+    @NotNull
+    private final File file;
+    private final int maxSize;
+    private final long maxAge;
+    private final boolean dropNewest;
+    // destination -> dedup key -> message, guarded by this
+    private final Map<String, LinkedHashMap<String, Entry>> queues = new LinkedHashMap<>();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    // guarded by this
+    private boolean dirty;
+    private boolean saveScheduled;
+
+    public OutboundQueue(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin, @NotNull File file) {
+        this.plugin = plugin;
+        this.file = file;
+        maxSize = Math.max(1, plugin.getConfig().getInt("Messaging Queue.Max Size", 1000));
+        maxAge = TimeUnit.SECONDS.toMillis(Math.max(1, plugin.getConfig().getInt("Messaging Queue.Max Age", 3600)));
+        dropNewest = "drop-newest".equals(plugin.getConfig().getString("Messaging Queue.Overflow", "drop-oldest").toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Read the messages saved by the last {@link #close()}, messages that expired while the server was stopped are
+     * discarded.
+     */
+    public synchronized void load() {
+        if (!file.exists()) {
+            return;
+        }
+        int read = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Unknown file format");
+            }
+            while (true) {
+                String destination;
+                try {
+                    destination = in.readUTF();
+                } catch (EOFException ex) {
+                    break;
+                }
+                long time = in.readLong();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_RECORD_SIZE) {
+                    throw new IOException("Invalid record length " + length);
+                }
+                byte[] message = new byte[length];
+                in.readFully(message);
+                add(destination, new String(message, StandardCharsets.UTF_8), time);
+                read++;
+            }
+        } catch (IOException ex) {
+            plugin.log("The outbound messages file is corrupt after " + read + " messages, the rest will be discarded.");
+            plugin.debug(ex);
+        }
+        removeExpired(System.currentTimeMillis());
+        if (read > 0) {
+            plugin.log("Loaded " + getDepth() + " messages waiting to be sent to other servers.");
+        }
+    }
+
+    /**
+     * Add a message to the queue of a destination.
+     *
+     * @param destination where the message must be sent.
+     * @param message     message to send.
+     */
+    public void offer(@NotNull String destination, @NotNull String message) {
+        synchronized (this) {
+            add(destination, message, System.currentTimeMillis());
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Remove every message queued for a destination.
+     *
+     * @param destination destination to drain.
+     * @return messages that didn't expire, in the order they were queued.
+     */
+    @NotNull
+    public List<String> drain(@NotNull String destination) {
+        List<String> messages;
+        synchronized (this) {
+            LinkedHashMap<String, Entry> queue = queues.remove(destination);
+            if (queue == null) {
+                return Collections.emptyList();
+            }
+            long now = System.currentTimeMillis();
+            messages = new ArrayList<>(queue.size());
+            for (Entry entry : queue.values()) {
+                if (now - entry.time >= maxAge) {
+                    expired.incrementAndGet();
+                } else {
+                    messages.add(entry.message);
+                }
+            }
+        }
+        scheduleSave();
+        return messages;
+    }
+
+    public synchronized boolean isEmpty(@NotNull String destination) {
+        return !queues.containsKey(destination);
+    }
+
+    public synchronized int getDepth() {
+        return queues.values().stream().mapToInt(Map::size).sum();
+    }
+
+    @NotNull
+    public synchronized Map<String, Integer> getDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        queues.forEach((destination, queue) -> depths.put(destination, queue.size()));
+        return depths;
+    }
+
+    public long getQueued() {
+        return queued.get();
+    }
+
+    public long getDeduplicated() {
+        return deduplicated.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getExpired() {
+        return expired.get();
+    }
+
+    /**
+     * Save the queued messages, must be called when the messaging service is stopped.
+     */
+    public synchronized void close() {
+        save();
+    }
+
+    private void add(@NotNull String destination, @NotNull String message, long time) {
+        LinkedHashMap<String, Entry> queue = queues.computeIfAbsent(destination, k -> new LinkedHashMap<>());
+        String key = dedupKey(message);
+        // remove the old message so the new one goes to the end of the queue
+        if (queue.remove(key) != null) {
+            deduplicated.incrementAndGet();
+        } else if (queue.size() >= maxSize) {
+            dropped.incrementAndGet();
+            if (dropNewest) {
+                return;
+            }
+            Iterator<Entry> it = queue.values().iterator();
+            it.next();
+            it.remove();
+        }
+        queue.put(key, new Entry(message, time));
+        queued.incrementAndGet();
+        dirty = true;
+    }
+
+    private void removeExpired(long now) {
+        Iterator<LinkedHashMap<String, Entry>> queueIt = queues.values().iterator();
+        while (queueIt.hasNext()) {
+            LinkedHashMap<String, Entry> queue = queueIt.next();
+            Iterator<Entry> it = queue.values().iterator();
+            while (it.hasNext()) {
+                if (now - it.next().time >= maxAge) {
+                    it.remove();
+                    expired.incrementAndGet();
+                    dirty = true;
+                }
+            }
+            if (queue.isEmpty()) {
+                queueIt.remove();
+            }
+        }
+    }
+
+    private void scheduleSave() {
+        synchronized (this) {
+            dirty = true;
+            if (saveScheduled) {
+                return;
+            }
+            saveScheduled = true;
+        }
+        if (!plugin.getExecutor().execute(this::scheduledSave)) {
+            synchronized (this) {
+                saveScheduled = false;
+            }
+        }
+    }
+
+    private synchronized void scheduledSave() {
+        saveScheduled = false;
+        save();
+    }
+
+    // the queues are small, so the whole file is written again and replaced atomically
+    private void save() {
+        if (!dirty) {
+            return;
+        }
+        removeExpired(System.currentTimeMillis());
+        try {
+            if (queues.isEmpty()) {
+                Files.deleteIfExists(file.toPath());
+            } else {
+                File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                    out.writeInt(MAGIC);
+                    for (Map.Entry<String, LinkedHashMap<String, Entry>> queue : queues.entrySet()) {
+                        for (Entry entry : queue.getValue().values()) {
+                            byte[] message = entry.message.getBytes(StandardCharsets.UTF_8);
+                            out.writeUTF(queue.getKey());
+                            out.writeLong(entry.time);
+                            out.writeInt(message.length);
+                            out.write(message);
+                        }
+                    }
+                }
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            dirty = false;
+        } catch (IOException ex) {
+            plugin.log("An error has occurred saving the messages waiting to be sent to other servers.");
+            plugin.debug(ex);
+        }
+    }
+
+    // messageid is unique for every message, updates of the same player only need the last balance
+    @NotNull
+    private static String dedupKey(@NotNull String message) {
+        try {
+            JsonElement element = new JsonParser().parse(message);
+            if (!element.isJsonObject()) {
+                return message;
+            }
+            JsonObject object = element.getAsJsonObject();
+            object.remove("messageid");
+            if (object.has("uuid") && object.has("type")) {
+                return object.get("type").getAsString() + ":" + object.get("uuid").getAsString();
+            }
+            return object.toString();
+        } catch (JsonParseException | IllegalStateException | UnsupportedOperationException ex) {
+            return message;
+        }
+    }
+
+    private static final class Entry {
+
+        @NotNull
+        private final String message;
+        private final long time;
+
+        private Entry(@NotNull String message, long time) {
+            this.message = message;
+            this.time = time;
+        }
+    }
+}
@@ -18,16 +18,25 @@
  */
 package com.github.beelzebu.coins.common.messaging;
 
+import com.github.beelzebu.coins.api.cache.CacheProvider;
 import com.github.beelzebu.coins.api.messaging.AbstractMessagingService;
 import com.github.beelzebu.coins.api.messaging.MessagingServiceType;
 import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.common.cache.NearCache;
+import com.github.beelzebu.coins.common.cache.RedisCache;
 import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
 import com.github.beelzebu.coins.common.utils.RedisManager;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import redis.clients.jedis.BinaryJedisPubSub;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPubSub;
 
 /**
  * @author Beelzebu
@@ -35,29 +44,48 @@ import redis.clients.jedis.JedisPubSub;
 public class RedisMessaging extends AbstractMessagingService {
 
     public static final String REDIS_CHANNEL = "coins-messaging";
-    private final RedisManager redisManager;
+    private static final byte[] REDIS_CHANNEL_BYTES = REDIS_CHANNEL.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INVALIDATION_CHANNEL_BYTES = NearCache.INVALIDATION_CHANNEL.getBytes(StandardCharsets.UTF_8);
+    protected final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+    protected final RedisManager redisManager;
+    protected final MessageCodec codec;
+    // messages are handled in the plugin executor, keeping the order they were received
+    protected final Executor messageExecutor;
     private PubSubListener psl;
 
     public RedisMessaging(CommonCoinsPlugin<? extends CoinsBootstrap> coinsPlugin, RedisManager redisManager) {
         super(coinsPlugin);
+        plugin = coinsPlugin;
         this.redisManager = redisManager;
+        messageExecutor = coinsPlugin.getExecutor().ordered();
+        codec = coinsPlugin.getMessageCodec();
     }
 
     @Override
     public void publishUser(@NotNull UUID uuid, double coins) {
+        CacheProvider cache = coinsPlugin.getCache() instanceof NearCache ? ((NearCache) coinsPlugin.getCache()).getRedisCache() : coinsPlugin.getCache();
+        if (cache instanceof RedisCache && ((RedisCache) cache).isAuthoritative()) {
+            return; // balance was already changed in redis by the script, writing it again could overwrite a newer one
+        }
         coinsPlugin.getCache().updatePlayer(uuid, coins);
     }
 
     @Override
     protected void sendMessage(@NotNull JsonObject message) {
         try (Jedis jedis = redisManager.getPool().getResource()) {
-            jedis.publish(REDIS_CHANNEL, message.toString());
+            if (codec.isBinary()) {
+                jedis.publish(REDIS_CHANNEL_BYTES, codec.encode(message));
+            } else {
+                jedis.publish(REDIS_CHANNEL, message.toString());
+            }
         }
     }
 
     @Override
     public void start() {
-        coinsPlugin.getBootstrap().runAsync(psl = new PubSubListener(new JedisPubSubHandler()));
+        Thread thread = new Thread(psl = new PubSubListener(new JedisPubSubHandler()), "Coins Redis Messaging");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     @NotNull
@@ -71,44 +99,99 @@ public class RedisMessaging extends AbstractMessagingService {
         psl.poison();
     }
 
+    /**
+     * Check if a received message must be handled.
+     *
+     * @param message received message.
+     * @return false if the message must be ignored.
+     */
+    protected boolean accept(@NotNull JsonObject message) {
+        return true;
+    }
+
+    /**
+     * Handle a received message, then update the multipliers known by this server.
+     *
+     * @param message received message.
+     */
+    protected final void handle(@NotNull JsonObject message) {
+        handleMessage(message);
+        plugin.handleMultiplierMessage(message);
+    }
+
+    @Nullable
+    protected List<JsonObject> decode(@NotNull byte[] message) {
+        try {
+            return codec.decode(message); // servers may use json or binary messages
+        } catch (JsonParseException ex) {
+            coinsPlugin.log("Received an invalid message from redis, make sure all servers use the same plugin version.");
+            coinsPlugin.debug(ex);
+            return null;
+        }
+    }
+
     private class PubSubListener implements Runnable {
 
-        private final JedisPubSub jpsh;
+        private static final long MAX_BACKOFF = 30000;
+        private final BinaryJedisPubSub jpsh;
+        private volatile boolean running = true;
 
-        public PubSubListener(JedisPubSub jpsh) {
+        public PubSubListener(BinaryJedisPubSub jpsh) {
             this.jpsh = jpsh;
         }
 
         @Override
         public void run() {
-            boolean broken = false;
-            try (Jedis rsc = redisManager.getPool().getResource()) {
-                try {
-                    rsc.subscribe(jpsh, REDIS_CHANNEL);
+            long backoff = 1000;
+            while (running) {
+                long subscribed = System.currentTimeMillis();
+                try (Jedis rsc = redisManager.getPool().getResource()) {
+                    rsc.subscribe(jpsh, REDIS_CHANNEL_BYTES, INVALIDATION_CHANNEL_BYTES);
                 } catch (Exception e) {
+                    if (!running) {
+                        return;
+                    }
                     coinsPlugin.log("PubSub error, attempting to recover.");
                     try {
                         jpsh.unsubscribe();
                     } catch (Exception ignore) {
                     }
-                    broken = true;
+                    if (coinsPlugin.getCache() instanceof NearCache) { // we may have missed invalidations
+                        ((NearCache) coinsPlugin.getCache()).invalidateAll();
+                    }
+                    if (System.currentTimeMillis() - subscribed > MAX_BACKOFF) { // it was working, retry soon
+                        backoff = 1000;
+                    }
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException ignore) {
+                        return;
+                    }
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF);
                 }
             }
-            if (broken) {
-                run();
-            }
         }
 
         void poison() {
+            running = false;
             jpsh.unsubscribe();
         }
     }
 
-    private class JedisPubSubHandler extends JedisPubSub {
+    private class JedisPubSubHandler extends BinaryJedisPubSub {
 
         @Override
-        public void onMessage(String channel, String message) {
-            handleMessage(coinsPlugin.getGson().fromJson(message, JsonObject.class));
+        public void onMessage(byte[] channel, byte[] message) {
+            if (Arrays.equals(INVALIDATION_CHANNEL_BYTES, channel)) {
+                if (coinsPlugin.getCache() instanceof NearCache) {
+                    ((NearCache) coinsPlugin.getCache()).handleInvalidation(new String(message, StandardCharsets.UTF_8));
+                }
+                return;
+            }
+            List<JsonObject> data = decode(message);
+            if (data != null) {
+                messageExecutor.execute(() -> data.stream().filter(RedisMessaging.this::accept).forEach(RedisMessaging.this::handle));
+            }
         }
     }
 }
@@ -0,0 +1,315 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.messaging;
+
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import com.github.beelzebu.coins.common.utils.RedisManager;
+import com.google.gson.JsonObject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.StreamEntry;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Redis messaging backed by a stream, every server reads it with its own consumer group so messages sent while a
+ * server was restarting or disconnected are read when it comes back, as long as they weren't trimmed from the stream.
+ * Pub/sub is still used for near cache invalidations and to exchange messages with servers using pub/sub messaging,
+ * messages received from both are handled once. Consumer groups of servers that stopped reading the stream for a long
+ * time are deleted, otherwise redis keeps tracking them forever.
+ *
+ * @author Beelzebu
+ */
+public final class RedisStreamMessaging extends RedisMessaging {
+
+    public static final String STREAM_KEY = "coins:messaging-stream";
+    // last time every consumer group read the stream
+    public static final String GROUPS_KEY = "coins:messaging-groups";
+    private static final String CLEANUP_SCRIPT = "local removed = {}\n"
+            + "for _, info in ipairs(redis.call('XINFO', 'GROUPS', KEYS[1])) do\n"
+            + "  local name\n"
+            + "  for i = 1, #info, 2 do\n"
+            + "    if info[i] == 'name' then name = info[i + 1] end\n"
+            + "  end\n"
+            + "  if name and string.sub(name, 1, 6) == 'coins-' then\n"
+            + "    local seen = redis.call('HGET', KEYS[2], name)\n"
+            + "    if not seen then\n" // groups created before this was tracked
+            + "      redis.call('HSET', KEYS[2], name, ARGV[1])\n"
+            + "    elseif tonumber(ARGV[1]) - tonumber(seen) > tonumber(ARGV[2]) then\n"
+            + "      redis.call('XGROUP', 'DESTROY', KEYS[1], name)\n"
+            + "      redis.call('HDEL', KEYS[2], name)\n"
+            + "      table.insert(removed, name)\n"
+            + "    end\n"
+            + "  end\n"
+            + "end\n"
+            + "return removed";
+    private static final long HEARTBEAT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long CLEANUP_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int SEEN_MESSAGES = 10000;
+    private static final String JSON_FIELD = "json";
+    private static final String BINARY_FIELD = "binary";
+    // the socket timeout of the pool is 2 seconds when redis doesn't use a password
+    private static final long BLOCK_MILLIS = 1000;
+    private final String serverId;
+    private final String group;
+    private final long maxLength;
+    private final int readBatch;
+    private final boolean publishPubSub;
+    private final long groupExpireMillis;
+    // ids of messages handled recently, messages may arrive from the stream and from pub/sub
+    private final Map<String, Boolean> seen = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(64, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > SEEN_MESSAGES;
+        }
+    });
+    private final AtomicLong read = new AtomicLong();
+    private final AtomicLong acknowledged = new AtomicLong();
+    private volatile boolean running;
+    // only used by the reader thread
+    @Nullable
+    private StreamEntryID lastDispatched;
+    private long nextHeartbeat;
+    private long nextCleanup;
+    private Thread thread;
+
+    public RedisStreamMessaging(CommonCoinsPlugin<? extends CoinsBootstrap> coinsPlugin, RedisManager redisManager) {
+        super(coinsPlugin, redisManager);
+        serverId = loadServerId(coinsPlugin);
+        group = "coins-" + serverId;
+        maxLength = Math.max(100, coinsPlugin.getConfig().getInt("Redis.Streams.Max Length", 10000));
+        readBatch = Math.max(1, coinsPlugin.getConfig().getInt("Redis.Streams.Read Batch", 500));
+        publishPubSub = coinsPlugin.getConfig().getBoolean("Redis.Streams.Publish To PubSub", true);
+        groupExpireMillis = TimeUnit.DAYS.toMillis(Math.max(1, coinsPlugin.getConfig().getInt("Redis.Streams.Group Expire", 7)));
+    }
+
+    @Override
+    protected void sendMessage(@NotNull JsonObject message) {
+        Map<String, String> fields = codec.isBinary() ? Collections.singletonMap(BINARY_FIELD, Base64.getEncoder().encodeToString(codec.encode(message))) : Collections.singletonMap(JSON_FIELD, message.toString());
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            jedis.xadd(STREAM_KEY, StreamEntryID.NEW_ENTRY, fields, maxLength, true);
+        }
+        if (publishPubSub) { // servers still using pub/sub messaging
+            super.sendMessage(message);
+        }
+    }
+
+    @Override
+    protected boolean accept(@NotNull JsonObject message) {
+        return !message.has("messageid") || seen.put(message.get("messageid").getAsString(), Boolean.TRUE) == null;
+    }
+
+    @Override
+    public void start() {
+        // a new server starts reading from the end of the stream, a known server continues where it stopped
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            jedis.xgroupCreate(STREAM_KEY, group, StreamEntryID.LAST_ENTRY, true);
+        } catch (JedisDataException ex) {
+            if (ex.getMessage() == null || !ex.getMessage().startsWith("BUSYGROUP")) {
+                throw ex;
+            }
+        }
+        super.start();
+        running = true;
+        thread = new Thread(this::run, "Coins Redis Stream Messaging");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join(BLOCK_MILLIS * 2);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        super.stop();
+    }
+
+    @NotNull
+    public String getServerId() {
+        return serverId;
+    }
+
+    public long getRead() {
+        return read.get();
+    }
+
+    public long getAcknowledged() {
+        return acknowledged.get();
+    }
+
+    private void run() {
+        // entries delivered to this server that weren't acknowledged are read first
+        StreamEntryID pending = new StreamEntryID();
+        while (running) {
+            try {
+                maintain();
+                if (pending != null) {
+                    pending = read(pending, 0);
+                } else {
+                    read(StreamEntryID.UNRECEIVED_ENTRY, BLOCK_MILLIS);
+                }
+            } catch (JedisException ex) {
+                coinsPlugin.log("Redis stream messaging error, attempting to recover.");
+                coinsPlugin.debug(ex);
+                pending = new StreamEntryID(); // a reply may have been lost after redis delivered the entries
+                try {
+                    Thread.sleep(BLOCK_MILLIS);
+                } catch (InterruptedException ignore) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a batch of entries and send them to the message executor.
+     *
+     * @param from  id to start reading from, only used for pending entries.
+     * @param block max time to wait for new entries.
+     * @return id of the last entry read, or null if there were no entries.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private StreamEntryID read(@NotNull StreamEntryID from, long block) {
+        List<Map.Entry<String, List<StreamEntry>>> response;
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            response = jedis.xreadGroup(group, serverId, readBatch, block, false, new AbstractMap.SimpleImmutableEntry<>(STREAM_KEY, from));
+        }
+        if (response == null || response.isEmpty() || response.get(0).getValue().isEmpty()) {
+            return null;
+        }
+        List<StreamEntry> entries = response.get(0).getValue();
+        List<JsonObject> messages = new ArrayList<>(entries.size());
+        List<StreamEntryID> ids = new ArrayList<>(entries.size());
+        for (StreamEntry entry : entries) {
+            if (lastDispatched != null && entry.getID().compareTo(lastDispatched) <= 0) {
+                continue; // replayed entry that is still waiting in the executor
+            }
+            ids.add(entry.getID());
+            lastDispatched = entry.getID();
+            List<JsonObject> data = decode(entry);
+            if (data != null) {
+                messages.addAll(data);
+            }
+        }
+        read.addAndGet(ids.size());
+        if (ids.isEmpty()) {
+            return entries.get(entries.size() - 1).getID();
+        }
+        // acknowledge after the messages were handled, so they are replayed if the server stops before that
+        messageExecutor.execute(() -> {
+            messages.stream().filter(this::accept).forEach(this::handle);
+            try (Jedis jedis = redisManager.getPool().getResource()) {
+                jedis.xack(STREAM_KEY, group, ids.toArray(new StreamEntryID[0]));
+                acknowledged.addAndGet(ids.size());
+            } catch (JedisException ex) {
+                coinsPlugin.log("Can't acknowledge " + ids.size() + " messages from the redis stream, they will be read again on restart.");
+                coinsPlugin.debug(ex);
+            }
+        });
+        return entries.get(entries.size() - 1).getID();
+    }
+
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        if (now < nextHeartbeat) {
+            return;
+        }
+        nextHeartbeat = now + HEARTBEAT_MILLIS;
+        try (Jedis jedis = redisManager.getPool().getResource()) {
+            jedis.hset(GROUPS_KEY, group, String.valueOf(now));
+            if (now < nextCleanup) {
+                return;
+            }
+            nextCleanup = now + CLEANUP_MILLIS;
+            Object removed = jedis.eval(CLEANUP_SCRIPT, Arrays.asList(STREAM_KEY, GROUPS_KEY), Arrays.asList(String.valueOf(now), String.valueOf(groupExpireMillis)));
+            if (removed instanceof List && !((List<?>) removed).isEmpty()) {
+                coinsPlugin.log("Deleted the redis stream consumer groups of servers that didn't read messages in " + TimeUnit.MILLISECONDS.toDays(groupExpireMillis) + " days: " + removed);
+            }
+        }
+    }
+
+    @Nullable
+    private List<JsonObject> decode(@NotNull StreamEntry entry) {
+        String binary = entry.getFields().get(BINARY_FIELD);
+        if (binary != null) {
+            try {
+                return decode(Base64.getDecoder().decode(binary));
+            } catch (IllegalArgumentException ex) {
+                coinsPlugin.log("Ignoring invalid message " + entry.getID() + " from the redis stream.");
+                return null;
+            }
+        }
+        String json = entry.getFields().get(JSON_FIELD);
+        if (json == null) {
+            coinsPlugin.log("Ignoring invalid message " + entry.getID() + " from the redis stream.");
+            return null;
+        }
+        return decode(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // the consumer group must be the same after a restart to continue reading where the server stopped
+    @NotNull
+    private static String loadServerId(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> coinsPlugin) {
+        String configured = coinsPlugin.getConfig().getString("Redis.Streams.Server ID", "");
+        if (configured != null && !configured.trim().isEmpty()) {
+            return configured.trim();
+        }
+        File file = new File(coinsPlugin.getBootstrap().getDataFolder(), "messaging.id");
+        try {
+            if (file.exists()) {
+                String id = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+                if (!id.isEmpty()) {
+                    return id;
+                }
+            }
+            String id = UUID.randomUUID().toString();
+            Files.write(file.toPath(), id.getBytes(StandardCharsets.UTF_8));
+            return id;
+        } catch (IOException ex) {
+            coinsPlugin.log("Can't read or save " + file.getName() + ", messages sent while this server is offline won't be read.");
+            coinsPlugin.debug(ex);
+            return UUID.randomUUID().toString();
+        }
+    }
+}
@@ -19,6 +19,7 @@
 package com.github.beelzebu.coins.common.plugin;
 
 import com.github.beelzebu.coins.api.CoinsAPI;
+import com.github.beelzebu.coins.api.Multiplier;
 import com.github.beelzebu.coins.api.cache.CacheProvider;
 import com.github.beelzebu.coins.api.cache.CacheType;
 import com.github.beelzebu.coins.api.config.AbstractConfigFile;
@@ -33,19 +34,37 @@ import com.github.beelzebu.coins.api.plugin.CoinsPlugin;
 import com.github.beelzebu.coins.api.storage.StorageProvider;
 import com.github.beelzebu.coins.api.storage.StorageType;
 import com.github.beelzebu.coins.api.utils.StringUtils;
+import com.github.beelzebu.coins.common.api.AsyncCoinsAPI;
+import com.github.beelzebu.coins.common.balance.BalanceService;
+import com.github.beelzebu.coins.common.balance.FixedPoint;
+import com.github.beelzebu.coins.common.cache.EffectiveMultiplierCache;
 import com.github.beelzebu.coins.common.cache.LocalCache;
+import com.github.beelzebu.coins.common.cache.MultiplierIndex;
+import com.github.beelzebu.coins.common.cache.MultiplierScheduler;
+import com.github.beelzebu.coins.common.cache.NameResolver;
+import com.github.beelzebu.coins.common.cache.NearCache;
 import com.github.beelzebu.coins.common.cache.RedisCache;
+import com.github.beelzebu.coins.common.concurrent.CoinsExecutor;
 import com.github.beelzebu.coins.common.config.MultipliersConfigImpl;
 import com.github.beelzebu.coins.common.dependency.Dependency;
 import com.github.beelzebu.coins.common.dependency.DependencyManager;
 import com.github.beelzebu.coins.common.dependency.DependencyRegistry;
 import com.github.beelzebu.coins.common.dependency.classloader.ReflectionClassLoader;
+import com.github.beelzebu.coins.common.leaderboard.Leaderboard;
+import com.github.beelzebu.coins.common.leaderboard.LocalLeaderboard;
+import com.github.beelzebu.coins.common.leaderboard.RedisLeaderboard;
+import com.github.beelzebu.coins.common.leaderboard.StorageLeaderboard;
 import com.github.beelzebu.coins.common.messaging.DummyMessaging;
+import com.github.beelzebu.coins.common.messaging.MessageCodec;
 import com.github.beelzebu.coins.common.messaging.RedisMessaging;
+import com.github.beelzebu.coins.common.messaging.RedisStreamMessaging;
+import com.github.beelzebu.coins.common.storage.CommonSQLDatabase;
 import com.github.beelzebu.coins.common.storage.MySQL;
 import com.github.beelzebu.coins.common.storage.SQLite;
 import com.github.beelzebu.coins.common.utils.FileManager;
 import com.github.beelzebu.coins.common.utils.RedisManager;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -83,6 +102,22 @@ public class CommonCoinsPlugin <T extends CoinsBootstrap> implements CoinsPlugin
     private final DependencyManager dependencyManager;
     @NotNull
     private final FileManager fileManager;
+    @NotNull
+    private final BalanceService balanceService;
+    @NotNull
+    private final MultiplierIndex multiplierIndex = new MultiplierIndex();
+    @NotNull
+    private final MultiplierScheduler multiplierScheduler;
+    @NotNull
+    private final EffectiveMultiplierCache effectiveMultipliers;
+    @NotNull
+    private final NameResolver nameResolver;
+    @NotNull
+    private MessageCodec messageCodec;
+    private final CoinsExecutor executor;
+    @NotNull
+    private FixedPoint fixedPoint;
+    private final AsyncCoinsAPI asyncAPI;
     private final Map<String, AbstractConfigFile> messagesMap = new HashMap<>();
     @Nullable
     private MessagingServiceType messagingServiceType;
@@ -98,6 +133,8 @@ public class CommonCoinsPlugin <T extends CoinsBootstrap> implements CoinsPlugin
     private CacheProvider cache;
     @Nullable
     private RedisManager redisManager;
+    @Nullable
+    private Leaderboard leaderboard;
     private boolean logEnabled = false;
 
     public CommonCoinsPlugin(@NotNull T bootstrap, CoinsConfig config) {
@@ -108,6 +145,13 @@ public class CommonCoinsPlugin <T extends CoinsBootstrap> implements CoinsPlugin
         multipliersConfig = new MultipliersConfigImpl(this, bootstrap.getFileAsConfig(new File(bootstrap.getDataFolder(), "multipliers.yml")));
         dependencyManager = new DependencyManager(this, new ReflectionClassLoader(bootstrap), new DependencyRegistry());
         fileManager = new FileManager(this);
+        balanceService = new BalanceService(this);
+        fixedPoint = new FixedPoint(config);
+        executor = new CoinsExecutor(this);
+        multiplierScheduler = new MultiplierScheduler(this);
+        effectiveMultipliers = new EffectiveMultiplierCache(this);
+        nameResolver = new NameResolver(this);
+        asyncAPI = new AsyncCoinsAPI(this);
     }
 
     @Override
@@ -127,6 +171,8 @@ public class CommonCoinsPlugin <T extends CoinsBootstrap> implements CoinsPlugin
         // update files before we read something
         fileManager.onEnable();
         logEnabled = getConfig().isDebugFile();
+        fixedPoint = new FixedPoint(getConfig());
+        messageCodec = new MessageCodec("binary".equalsIgnoreCase(getConfig().getString("Messaging Format", "json")));
         // identify storage, messaging service and cache types and load dependencies
         storageType = getConfig().getStorageType();
         dependencyManager.loadStorageDependencies(storageType);
@@ -144,13 +190,17 @@ public class CommonCoinsPlugin <T extends CoinsBootstrap> implements CoinsPlugin
         migrateFromV2();
         // load local data
         loadExecutors();
+        executor.start();
         // setup storage and start messaging service
         if (getStorageProvider() != null) {
             getStorageProvider().setup();
         }
+        multiplierScheduler.start();
         if (getCache() != null) {
             getCache().start();
         }
+        leaderboard = createLeaderboard();
+        leaderboard.start();
         if (getMessagingService() != null) {
             getMessagingService().start();
         }
@@ -167,6 +217,10 @@ public class CommonCoinsPlugin <T extends CoinsBootstrap> implements CoinsPlugin
             bootstrap.log("Messaging: " + (getMessagingService() != null ? getMessagingService().getType() : "null"));
             return;
         }
+        if (getStorageProvider() instanceof CommonSQLDatabase && ((CommonSQLDatabase) getStorageProvider()).hasBalanceMismatch()) {
+            bootstrap.log("Can't setup API, balances in the database must be converted with /coins convertbalances.");
+            return;
+        }
         CoinsAPI.setPlugin(this);
     }
 
@@ -179,12 +233,20 @@ public class CommonCoinsPlugin <T extends CoinsBootstrap> implements CoinsPlugin
 
     @Override
     public void disable() {
+        executor.stop(); // let pending tasks finish while storage is still available
         if (getCache() != null) { // stop cache
             getCache().stop();
         }
+        multiplierScheduler.stop();
+        effectiveMultipliers.invalidateAll();
+        nameResolver.invalidateAll();
         if (getMessagingService() != null) { // stop messaging service
             getMessagingService().stop();
         }
+        if (leaderboard != null) {
+            leaderboard.stop();
+            leaderboard = null;
+        }
         if (redisManager != null) { // stop redis manager if was in use by cache or messaging service
             redisManager.stop();
         }
@@ -207,6 +269,9 @@ public class CommonCoinsPlugin <T extends CoinsBootstrap> implements CoinsPlugin
             case PROXY:
                 return messagingService = bootstrap.getProxyMessaging();
             case REDIS:
+                if ("streams".equalsIgnoreCase(getConfig().getString("Redis.Messaging Mode", "pubsub"))) {
+                    return messagingService = new RedisStreamMessaging(this, redisManager);
+                }
                 return messagingService = new RedisMessaging(this, redisManager);
             case NONE:
             default:
@@ -225,7 +290,12 @@ public class CommonCoinsPlugin <T extends CoinsBootstrap> implements CoinsPlugin
         }
         switch (cacheType) {
             case REDIS:
-                return cache = new RedisCache(this, redisManager);
+                RedisCache redisCache = new RedisCache(this, redisManager);
+                if (getConfig().getBoolean("Redis.Near Cache.Enabled", false)) {
+                    dependencyManager.loadDependencies(EnumSet.of(Dependency.CAFFEINE));
+                    return cache = new NearCache(this, redisCache, redisManager);
+                }
+                return cache = redisCache;
             case LOCAL:
             default:
                 dependencyManager.loadDependencies(EnumSet.of(Dependency.CAFFEINE));
@@ -323,11 +393,7 @@ public class CommonCoinsPlugin <T extends CoinsBootstrap> implements CoinsPlugin
         if (!fromdb && bootstrap.getUUID(name) != null) {
             return bootstrap.getUUID(name);
         }
-        StorageProvider storageProvider = getStorageProvider();
-        if (storageProvider != null) {
-            return storageProvider.getUUID(name);
-        }
-        return null;
+        return nameResolver.getUniqueId(name);
     }
 
     @Override
@@ -335,11 +401,7 @@ public class CommonCoinsPlugin <T extends CoinsBootstrap> implements CoinsPlugin
         if (!fromdb && bootstrap.getName(uniqueId) != null) {
             return bootstrap.getName(uniqueId);
         }
-        StorageProvider storageProvider = getStorageProvider();
-        if (storageProvider != null) {
-            return storageProvider.getName(uniqueId);
-        }
-        return null;
+        return nameResolver.getName(uniqueId);
     }
 
     @Override
@@ -389,6 +451,95 @@ public class CommonCoinsPlugin <T extends CoinsBootstrap> implements CoinsPlugin
         return fileManager;
     }
 
+    @NotNull
+    public BalanceService getBalanceService() {
+        return balanceService;
+    }
+
+    /**
+     * Get the index of players ordered by balance.
+     *
+     * @return the leaderboard, or null if the plugin isn't enabled.
+     */
+    @Nullable
+    public Leaderboard getLeaderboard() {
+        return leaderboard;
+    }
+
+    /**
+     * Get the representation used to store balances.
+     *
+     * @return fixed point settings.
+     */
+    @NotNull
+    public FixedPoint getFixedPoint() {
+        return fixedPoint;
+    }
+
+    /**
+     * Update the multipliers known by this server after a message from another server was handled, the api only
+     * updates the cache.
+     *
+     * @param message message received from another server.
+     */
+    public void handleMultiplierMessage(@NotNull JsonObject message) {
+        JsonElement json = message.get("multiplier");
+        if (json == null || !json.isJsonObject()) {
+            return;
+        }
+        Multiplier multiplier = Multiplier.fromJson(json.toString());
+        if (multiplier == null) {
+            return;
+        }
+        CacheProvider cache = getCache() instanceof NearCache ? ((NearCache) getCache()).getRedisCache() : getCache();
+        if (cache instanceof RedisCache) { // redis has the latest version of the multiplier
+            ((RedisCache) cache).refreshMultiplier(multiplier.getId());
+        } else if (cache != null) { // the api already updated the local cache
+            Optional<Multiplier> current = cache.getMultiplier(multiplier.getId());
+            if (current.isPresent()) {
+                multiplierScheduler.schedule(current.get());
+            } else {
+                multiplierScheduler.cancel(multiplier.getId());
+            }
+        }
+        effectiveMultipliers.bumpVersion();
+    }
+
+    @NotNull
+    public MultiplierIndex getMultiplierIndex() {
+        return multiplierIndex;
+    }
+
+    @NotNull
+    public MultiplierScheduler getMultiplierScheduler() {
+        return multiplierScheduler;
+    }
+
+    @NotNull
+    public EffectiveMultiplierCache getEffectiveMultipliers() {
+        return effectiveMultipliers;
+    }
+
+    @NotNull
+    public MessageCodec getMessageCodec() {
+        return messageCodec;
+    }
+
+    @NotNull
+    public NameResolver getNameResolver() {
+        return nameResolver;
+    }
+
+    @NotNull
+    public CoinsExecutor getExecutor() {
+        return executor;
+    }
+
+    @NotNull
+    public AsyncCoinsAPI getAsyncAPI() {
+        return asyncAPI;
+    }
+
     @NotNull
     @Override
     public T getBootstrap() {
@@ -425,6 +576,17 @@ public class CommonCoinsPlugin <T extends CoinsBootstrap> implements CoinsPlugin
         this.cache = cache;
     }
 
+    @NotNull
+    private Leaderboard createLeaderboard() {
+        if (!getConfig().getBoolean("Leaderboard.Enabled", true) || !(getStorageProvider() instanceof CommonSQLDatabase)) {
+            return new StorageLeaderboard(this);
+        }
+        if (Objects.equals(cacheType, CacheType.REDIS)) {
+            return new RedisLeaderboard(this, redisManager, (CommonSQLDatabase) getStorageProvider());
+        }
+        return new LocalLeaderboard(this, (CommonSQLDatabase) getStorageProvider());
+    }
+
     private void motd(boolean enable) {
         bootstrap.sendMessage(bootstrap.getConsole(), StringUtils.rep(""));
         bootstrap.sendMessage(bootstrap.getConsole(), StringUtils.rep("&6-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-"));
@@ -449,7 +611,7 @@ public class CommonCoinsPlugin <T extends CoinsBootstrap> implements CoinsPlugin
             debug("Using \"" + storageType + "\" as storage.");
             debug("Using \"" + messagingServiceType + "\" as messaging service.");
             debug("Using \"" + cacheType + "\" as cache.");
-            bootstrap.runAsync(() -> { // run update check async, so it doesn't delay the startup
+            executor.execute(() -> { // run update check async, so it doesn't delay the startup
                 if (bootstrap.getVersion().contains("SNAPSHOT")) {
                     log("You're using a development version, be careful!");
                     return;
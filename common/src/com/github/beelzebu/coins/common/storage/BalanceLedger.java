@@ -0,0 +1,255 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.storage;
+
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Write-behind buffer for balance updates, keeps the latest balance of every player and flushes them in batches from a
+ * single thread.
+ *
+ * @author Beelzebu
+ */
+public final class BalanceLedger {
+
+    private static final String RECOVERY_FILE = "pending-balances.dat";
+    @NotNull
+    private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+    @NotNull
+    private final CommonSQLDatabase database;
+    private final long interval;
+    private final int batchSize;
+    private final Map<UUID, Double> pending = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedEntries = new AtomicLong();
+    private final AtomicLong failedFlushes = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+    private volatile long lastFlushNanos;
+    private ScheduledExecutorService flusher;
+
+    BalanceLedger(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin, @NotNull CommonSQLDatabase database) {
+        this.plugin = plugin;
+        this.database = database;
+        interval = Math.max(50, plugin.getConfig().getInt("MySQL.Write Behind.Interval", 500));
+        batchSize = Math.max(1, plugin.getConfig().getInt("MySQL.Write Behind.Batch Size", 200));
+    }
+
+    public void start() {
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Coins Balance Ledger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        recover();
+        flusher.scheduleWithFixedDelay(this::flushAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the flusher thread and write every pending balance to the database, if the database can't be reached the
+     * pending balances are saved to disk and written on the next start.
+     */
+    public void stop() {
+        if (flusher == null) {
+            return;
+        }
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(10, TimeUnit.SECONDS)) {
+                plugin.log("Balance ledger didn't finish in time, forcing final flush.");
+                flusher.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (int attempt = 0; attempt < 3 && !pending.isEmpty(); attempt++) {
+            flushAll();
+        }
+        if (!pending.isEmpty()) {
+            plugin.log("Can't write " + pending.size() + " balances to the database, saving them to " + RECOVERY_FILE);
+            save();
+        }
+        flusher = null;
+    }
+
+    public void put(@NotNull UUID uuid, double balance) {
+        pending.put(uuid, balance);
+        if (pending.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flushAll);
+            } catch (Exception ex) { // flusher was stopped, next stop() will write this balance
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    @NotNull
+    public OptionalDouble get(@NotNull UUID uuid) {
+        Double balance = pending.get(uuid);
+        return balance != null ? OptionalDouble.of(balance) : OptionalDouble.empty();
+    }
+
+    @NotNull
+    public OptionalDouble take(@NotNull UUID uuid) {
+        Double balance = pending.remove(uuid);
+        return balance != null ? OptionalDouble.of(balance) : OptionalDouble.empty();
+    }
+
+    public void restore(@NotNull UUID uuid, double balance) {
+        pending.putIfAbsent(uuid, balance);
+    }
+
+    /**
+     * Lock held while a batch is written, balances taken from this ledger must be written while holding it so a batch
+     * read before them can't overwrite a newer balance.
+     *
+     * @return lock shared by the flusher and the writers of taken balances.
+     */
+    @NotNull
+    Object getWriteLock() {
+        return writeLock;
+    }
+
+    public boolean isRunning() {
+        return flusher != null && !flusher.isShutdown();
+    }
+
+    public int getQueueDepth() {
+        return pending.size();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public long getFlushedEntries() {
+        return flushedEntries.get();
+    }
+
+    public long getFailedFlushes() {
+        return failedFlushes.get();
+    }
+
+    public double getLastFlushMillis() {
+        return lastFlushNanos / 1_000_000D;
+    }
+
+    public double getAverageFlushMillis() {
+        long count = flushes.get();
+        return count == 0 ? 0 : totalFlushNanos.get() / 1_000_000D / count;
+    }
+
+    private void flushAll() {
+        flushRequested.set(false);
+        // balances changed during the flush are written by the next one, so this can't run forever
+        for (int batches = pending.size() / batchSize + 1; batches > 0 && !pending.isEmpty(); batches--) {
+            if (!flush()) {
+                return;
+            }
+        }
+    }
+
+    private boolean flush() {
+        // entries stay in pending until they are written, so reads never miss a balance that is being flushed
+        Map<UUID, Double> batch = new HashMap<>();
+        Iterator<Map.Entry<UUID, Double>> it = pending.entrySet().iterator();
+        while (it.hasNext() && batch.size() < batchSize) {
+            Map.Entry<UUID, Double> entry = it.next();
+            batch.put(entry.getKey(), entry.getValue());
+        }
+        if (batch.isEmpty()) {
+            return true;
+        }
+        long start = System.nanoTime();
+        try {
+            synchronized (writeLock) {
+                database.updateBalances(batch);
+                // balances changed while flushing stay pending
+                batch.forEach(pending::remove);
+            }
+            long elapsed = System.nanoTime() - start;
+            lastFlushNanos = elapsed;
+            totalFlushNanos.addAndGet(elapsed);
+            flushes.incrementAndGet();
+            flushedEntries.addAndGet(batch.size());
+            return true;
+        } catch (SQLException ex) {
+            failedFlushes.incrementAndGet();
+            plugin.log("An error has occurred while flushing " + batch.size() + " balances to the database.");
+            plugin.debug(ex);
+            return false;
+        }
+    }
+
+    private void save() {
+        File file = new File(plugin.getBootstrap().getDataFolder(), RECOVERY_FILE);
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<UUID, Double> entry : pending.entrySet()) {
+                writer.write(entry.getKey() + ":" + entry.getValue());
+                writer.newLine();
+            }
+        } catch (IOException ex) {
+            plugin.log("An error has occurred saving pending balances, this balances will be lost:");
+            pending.forEach((uuid, balance) -> plugin.log(uuid + ": " + balance));
+            plugin.debug(ex);
+        }
+    }
+
+    private void recover() {
+        File file = new File(plugin.getBootstrap().getDataFolder(), RECOVERY_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            for (String line : lines) {
+                String[] split = line.split(":");
+                if (split.length == 2) {
+                    pending.putIfAbsent(UUID.fromString(split[0]), Double.parseDouble(split[1]));
+                }
+            }
+            Files.delete(file.toPath());
+            plugin.log("Recovered " + lines.size() + " balances that weren't written to the database on last shutdown.");
+        } catch (IOException | IllegalArgumentException ex) {
+            plugin.log("An error has occurred reading " + RECOVERY_FILE);
+            plugin.debug(ex);
+        }
+    }
+}
@@ -0,0 +1,986 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.storage;
+
+import com.github.beelzebu.coins.api.CoinsUser;
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.api.storage.sql.SQLDatabase;
+import com.github.beelzebu.coins.common.balance.FixedPoint;
+import com.github.beelzebu.coins.common.leaderboard.Leaderboard;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Shared code for the SQL storage providers.
+ *
+ * @author Beelzebu
+ */
+public abstract class CommonSQLDatabase extends SQLDatabase {
+
+    // version 4: the type of the balance column follows the fixed point setting
+    // version 5: indexes for uuid, name and balance lookups
+    protected static final int DATABASE_VERSION = 5;
+    private static final int LOOKUP_BATCH_SIZE = 500;
+    // 4 parameters for every row, sqlite doesn't allow more than 999 parameters in old versions
+    private static final int INSERT_BATCH_SIZE = 200;
+    private static final String BALANCE_FORMAT = "balance_format";
+    private static final String COMMIT_FENCE = "commit_fence";
+    protected final String META_TABLE = prefix + "meta";
+    @Nullable
+    private BalanceLedger ledger;
+    // balances are stored with a different fixed point mode or scale than the config, writes are refused until they
+    // are converted
+    @Nullable
+    private volatile String storedFormat;
+    // format of the balances when this database is only opened to read from it
+    @Nullable
+    private volatile String readFormat;
+
+    public CommonSQLDatabase(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin) {
+        super(plugin);
+    }
+
+    /**
+     * Open this database only to read players from it, migrations aren't run and no writer or ledger is started. Used
+     * to import players from a storage that isn't the one in use.
+     *
+     * @return true if the database can be read, if false nothing needs to be closed.
+     */
+    public final boolean openReadOnly() {
+        if (!openPool(true)) {
+            return false;
+        }
+        try (Connection c = ds.getConnection()) {
+            String format;
+            try {
+                format = getMeta(c, BALANCE_FORMAT);
+            } catch (SQLException ex) { // created by a version without the meta table
+                format = null;
+            }
+            readFormat = format != null ? format : isIntegral(getColumnType(c, "balance")) ? "fixed:" + getFixedPoint().getScale() : "float";
+            return true;
+        } catch (SQLException ex) {
+            plugin.log("Can't read the players from " + getLocation() + ".");
+            plugin.debug(ex);
+            ds.close();
+            ds = null;
+            return false;
+        }
+    }
+
+    /**
+     * Create the connection pool.
+     *
+     * @param readOnly true if the database will only be read.
+     * @return true if the pool was created.
+     */
+    protected abstract boolean openPool(boolean readOnly);
+
+    /**
+     * @return host and database or file of this storage, used to tell storages apart.
+     */
+    @NotNull
+    public abstract String getLocation();
+
+    /**
+     * Start the write-behind ledger if it is enabled in the config, must be called after the connection pool was
+     * created.
+     */
+    protected final void startLedger() {
+        if (ds == null || storedFormat != null || !plugin.getConfig().getBoolean("MySQL.Write Behind.Enabled", false)) {
+            return;
+        }
+        ledger = new BalanceLedger((CommonCoinsPlugin<?>) plugin, this);
+        ledger.start();
+        plugin.log("Balance write-behind is enabled.");
+    }
+
+    @Override
+    public double getCoins(@NotNull UUID uuid) {
+        if (ledger != null) {
+            OptionalDouble pending = ledger.get(uuid);
+            if (pending.isPresent()) {
+                return pending.getAsDouble();
+            }
+        }
+        if (!getFixedPoint().isEnabled()) {
+            return super.getCoins(uuid);
+        }
+        try (Connection c = ds.getConnection(); PreparedStatement ps = c.prepareStatement("SELECT balance FROM " + DATA_TABLE + " WHERE " + getUuidColumn() + " = ?;")) {
+            setUuid(ps, 1, uuid);
+            try (ResultSet res = ps.executeQuery()) {
+                return res.next() ? getBalance(res, 1) : -1;
+            }
+        } catch (SQLException ex) {
+            plugin.log("An error has occurred getting the balance for " + uuid);
+            plugin.debug(ex);
+            return -1;
+        }
+    }
+
+    @Override
+    public void setCoins(@NotNull UUID uuid, double balance) {
+        updateLeaderboard(uuid, balance);
+        if (ledger != null && ledger.isRunning()) {
+            ledger.put(uuid, balance);
+            return;
+        }
+        try {
+            write(c -> {
+                try (PreparedStatement ps = c.prepareStatement("UPDATE " + DATA_TABLE + " SET balance = ? WHERE " + getUuidColumn() + " = ?;")) {
+                    setBalance(ps, 1, balance);
+                    setUuid(ps, 2, uuid);
+                    return ps.executeUpdate();
+                }
+            });
+        } catch (SQLException ex) {
+            plugin.log("An error has occurred setting the balance for " + uuid);
+            plugin.debug(ex);
+        }
+    }
+
+    @Override
+    public void createPlayer(@NotNull UUID uuid, @NotNull String name, double balance) {
+        if (!isindb(uuid)) {
+            try {
+                write(c -> {
+                    try (PreparedStatement ps = c.prepareStatement("INSERT INTO " + DATA_TABLE + " (uuid, name, balance, lastlogin) VALUES (?, ?, ?, ?);")) {
+                        ps.setString(1, uuid.toString());
+                        ps.setString(2, name);
+                        setBalance(ps, 3, balance);
+                        ps.setLong(4, System.currentTimeMillis());
+                        return ps.executeUpdate();
+                    }
+                });
+            } catch (SQLException ex) {
+                plugin.log("An error has occurred creating the player " + name + " (" + uuid + ")");
+                plugin.debug(ex);
+                return;
+            }
+        }
+        ((CommonCoinsPlugin<?>) plugin).getNameResolver().update(uuid, name);
+        Leaderboard leaderboard = ((CommonCoinsPlugin<?>) plugin).getLeaderboard();
+        if (leaderboard != null) {
+            leaderboard.updateName(uuid, name);
+            leaderboard.update(uuid, balance);
+        }
+    }
+
+    @Override
+    public UUID getUUID(@NotNull String name) {
+        return ((CommonCoinsPlugin<?>) plugin).getNameResolver().getUniqueId(name);
+    }
+
+    @Override
+    public String getName(@NotNull UUID uuid) {
+        return ((CommonCoinsPlugin<?>) plugin).getNameResolver().getName(uuid);
+    }
+
+    @Override
+    public boolean isindb(@NotNull String name) {
+        return getUUID(name) != null;
+    }
+
+    @Override
+    public CoinsUser[] getTopPlayers(int top) {
+        return getFixedPoint().isEnabled() ? getPlayers(0, top) : super.getTopPlayers(top);
+    }
+
+    @Override
+    public Map<String, Double> getAllPlayers() {
+        if (!getFixedPoint().isEnabled()) {
+            return super.getAllPlayers();
+        }
+        Map<String, Double> players = new HashMap<>();
+        try {
+            forEachPlayer(user -> players.put(user.getName() + "," + user.getUniqueId(), user.getCoins()));
+        } catch (SQLException ex) {
+            plugin.log("An error has occurred getting all players from the database.");
+            plugin.debug(ex);
+        }
+        return players;
+    }
+
+    @Override
+    public void updatePlayer(@NotNull UUID uuid, @NotNull String name) {
+        super.updatePlayer(uuid, name);
+        ((CommonCoinsPlugin<?>) plugin).getNameResolver().update(uuid, name);
+        Leaderboard leaderboard = ((CommonCoinsPlugin<?>) plugin).getLeaderboard();
+        if (leaderboard != null) {
+            leaderboard.updateName(uuid, name);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (ledger != null) {
+            ledger.stop();
+            ledger = null;
+        }
+        super.shutdown();
+    }
+
+    /**
+     * Add the given amount to the balance of a player using a single update, the amount can be negative but the
+     * balance can never go below zero.
+     *
+     * @param uuid   player to update.
+     * @param amount amount to add to the balance.
+     * @return the new balance of the player, or empty if the player doesn't exist or doesn't have enough coins.
+     */
+    @NotNull
+    public OptionalDouble addCoins(@NotNull UUID uuid, double amount) {
+        try {
+            OptionalDouble balance = writeDelta(c -> updateBalance(c, uuid, amount), uuid);
+            balance.ifPresent(newBalance -> updateLeaderboard(uuid, newBalance));
+            return balance;
+        } catch (SQLException ex) {
+            plugin.log("An error has occurred while updating the balance for " + uuid);
+            plugin.debug(ex);
+            return OptionalDouble.empty();
+        }
+    }
+
+    /**
+     * Move coins from one player to another in a single transaction.
+     *
+     * @param from   player paying the coins.
+     * @param to     player receiving the coins.
+     * @param amount amount of coins to move.
+     * @return new balances of both players in the same order as the parameters, or null if nothing changed.
+     */
+    @Nullable
+    public double[] transferCoins(@NotNull UUID from, @NotNull UUID to, double amount) {
+        try {
+            double[] balances = writeDelta(c -> {
+                OptionalDouble fromBalance = updateBalance(c, from, -amount);
+                OptionalDouble toBalance = fromBalance.isPresent() ? updateBalance(c, to, amount) : OptionalDouble.empty();
+                if (!toBalance.isPresent()) {
+                    throw new RejectedWriteException(); // undo the payment of the sender
+                }
+                return new double[]{fromBalance.getAsDouble(), toBalance.getAsDouble()};
+            }, from, to);
+            updateLeaderboard(from, balances[0]);
+            updateLeaderboard(to, balances[1]);
+            return balances;
+        } catch (RejectedWriteException ex) {
+            return null;
+        } catch (SQLException ex) {
+            plugin.log("An error has occurred while moving " + amount + " coins from " + from + " to " + to);
+            plugin.debug(ex);
+            return null;
+        }
+    }
+
+    /**
+     * Apply a delta to the balance of a player and read the new balance in the same round trip.
+     *
+     * @param c      connection to use.
+     * @param uuid   player to update.
+     * @param amount amount to add to the balance, may be negative.
+     * @return the new balance, or empty if the row wasn't updated.
+     * @throws SQLException if the query fails.
+     */
+    @NotNull
+    protected abstract OptionalDouble updateBalance(@NotNull Connection c, @NotNull UUID uuid, double amount) throws SQLException;
+
+    /**
+     * Read every player in the database without loading the whole table in memory, balances waiting in the ledger
+     * are used instead of the stored ones.
+     *
+     * @param consumer consumer for every player.
+     * @throws SQLException if the query fails.
+     */
+    public void forEachPlayer(@NotNull Consumer<CoinsUser> consumer) throws SQLException {
+        try (Connection c = ds.getConnection(); PreparedStatement ps = c.prepareStatement("SELECT uuid, name, balance FROM " + DATA_TABLE + ";", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            ps.setFetchSize(1000);
+            try (ResultSet res = ps.executeQuery()) {
+                while (res.next()) {
+                    UUID uuid;
+                    try {
+                        uuid = UUID.fromString(res.getString("uuid"));
+                    } catch (IllegalArgumentException | NullPointerException ex) {
+                        continue;
+                    }
+                    double balance = getBalance(res, 3);
+                    if (ledger != null) {
+                        balance = ledger.get(uuid).orElse(balance);
+                    }
+                    consumer.accept(new CoinsUser(uuid, res.getString("name"), balance));
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the players stored after the given id.
+     *
+     * @param afterId id of the last player already read, 0 to count every player.
+     * @return amount of players.
+     * @throws SQLException if the query fails.
+     */
+    public long countPlayers(long afterId) throws SQLException {
+        try (Connection c = ds.getConnection(); PreparedStatement ps = c.prepareStatement("SELECT COUNT(*) FROM " + DATA_TABLE + " WHERE id > ?;")) {
+            ps.setLong(1, afterId);
+            try (ResultSet res = ps.executeQuery()) {
+                return res.next() ? res.getLong(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * Read a chunk of players ordered by id, used to copy the database in chunks that can be resumed later. Balances
+     * waiting in the ledger aren't included.
+     *
+     * @param afterId  id of the last player already read, 0 to start from the first player.
+     * @param limit    max amount of players to read.
+     * @param consumer consumer for every player.
+     * @return id of the last player read, or afterId if there are no more players.
+     * @throws SQLException if the query fails.
+     */
+    public long readPlayers(long afterId, int limit, @NotNull Consumer<CoinsUser> consumer) throws SQLException {
+        long lastId = afterId;
+        try (Connection c = ds.getConnection(); PreparedStatement ps = c.prepareStatement("SELECT id, uuid, name, balance FROM " + DATA_TABLE + " WHERE id > ? ORDER BY id LIMIT ?;", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            ps.setLong(1, afterId);
+            ps.setInt(2, limit);
+            ps.setFetchSize(limit);
+            try (ResultSet res = ps.executeQuery()) {
+                while (res.next()) {
+                    lastId = res.getLong(1);
+                    try {
+                        consumer.accept(new CoinsUser(UUID.fromString(res.getString(2)), res.getString(3), getBalance(res, 4)));
+                    } catch (IllegalArgumentException | NullPointerException ignore) {
+                    }
+                }
+            }
+        }
+        return lastId;
+    }
+
+    /**
+     * Insert the players that aren't in the database yet, all players are written with multi-row inserts in a single
+     * transaction.
+     *
+     * @param users players to insert.
+     * @return amount of players inserted.
+     * @throws SQLException if the players can't be inserted, in this case nothing is written.
+     */
+    public int insertPlayers(@NotNull Collection<CoinsUser> users) throws SQLException {
+        return write(c -> {
+            Map<UUID, CoinsUser> missing = new LinkedHashMap<>();
+            for (CoinsUser user : users) {
+                if (user.getName() != null) {
+                    missing.putIfAbsent(user.getUniqueId(), user);
+                }
+            }
+            missing.keySet().removeAll(getExisting(c, missing.keySet()));
+            insertRows(c, missing.values(), "");
+            return missing.size();
+        });
+    }
+
+    /**
+     * Add the balance of every player to the stored balance in a single transaction, players that aren't in the
+     * database are created with the given balance. Every player must be included only once.
+     *
+     * @param users players to update.
+     * @throws SQLException if the players can't be updated, in this case nothing is written.
+     */
+    public void upsertPlayers(@NotNull Collection<CoinsUser> users) throws SQLException {
+        writeDelta(c -> {
+            upsertRows(c, users);
+            return null;
+        }, users.stream().map(CoinsUser::getUniqueId).toArray(UUID[]::new));
+    }
+
+    /**
+     * Add the balance of every player to the stored balance, or insert the players that don't exist.
+     *
+     * @param c     connection to use.
+     * @param users players to update, every player is included only once.
+     * @throws SQLException if the players can't be updated.
+     */
+    protected void upsertRows(@NotNull Connection c, @NotNull Collection<CoinsUser> users) throws SQLException {
+        Map<UUID, CoinsUser> missing = new LinkedHashMap<>();
+        users.forEach(user -> missing.put(user.getUniqueId(), user));
+        Set<UUID> existing = getExisting(c, missing.keySet());
+        if (!existing.isEmpty()) {
+            try (PreparedStatement ps = c.prepareStatement("UPDATE " + DATA_TABLE + " SET balance = balance + ? WHERE " + getUuidColumn() + " = ?;")) {
+                for (UUID uuid : existing) {
+                    setBalance(ps, 1, missing.remove(uuid).getCoins());
+                    setUuid(ps, 2, uuid);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+        }
+        insertRows(c, missing.values(), "");
+    }
+
+    /**
+     * Insert the given players with multi-row inserts.
+     *
+     * @param c      connection to use.
+     * @param users  players to insert.
+     * @param suffix clause appended to every insert.
+     * @throws SQLException if the players can't be inserted.
+     */
+    protected final void insertRows(@NotNull Connection c, @NotNull Collection<CoinsUser> users, @NotNull String suffix) throws SQLException {
+        List<CoinsUser> rows = new ArrayList<>(users);
+        long now = System.currentTimeMillis();
+        for (int from = 0; from < rows.size(); from += INSERT_BATCH_SIZE) {
+            List<CoinsUser> batch = rows.subList(from, Math.min(rows.size(), from + INSERT_BATCH_SIZE));
+            StringBuilder sql = new StringBuilder("INSERT INTO " + DATA_TABLE + " (uuid, name, balance, lastlogin) VALUES ");
+            for (int i = 0; i < batch.size(); i++) {
+                sql.append(i == 0 ? "(?,?,?,?)" : ",(?,?,?,?)");
+            }
+            try (PreparedStatement ps = c.prepareStatement(sql.append(suffix).append(';').toString())) {
+                int index = 1;
+                for (CoinsUser user : batch) {
+                    ps.setString(index++, user.getUniqueId().toString());
+                    ps.setString(index++, user.getName());
+                    setBalance(ps, index++, user.getCoins());
+                    ps.setLong(index++, now);
+                }
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    @NotNull
+    private Set<UUID> getExisting(@NotNull Connection c, @NotNull Collection<UUID> uuids) throws SQLException {
+        Set<UUID> existing = new HashSet<>();
+        List<UUID> list = new ArrayList<>(uuids);
+        for (int from = 0; from < list.size(); from += LOOKUP_BATCH_SIZE) {
+            List<UUID> batch = list.subList(from, Math.min(list.size(), from + LOOKUP_BATCH_SIZE));
+            try (PreparedStatement ps = c.prepareStatement("SELECT uuid FROM " + DATA_TABLE + " WHERE " + getUuidColumn() + " IN (" + placeholders(batch.size()) + ");")) {
+                for (int i = 0; i < batch.size(); i++) {
+                    setUuid(ps, i + 1, batch.get(i));
+                }
+                try (ResultSet res = ps.executeQuery()) {
+                    while (res.next()) {
+                        existing.add(UUID.fromString(res.getString(1)));
+                    }
+                }
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * Get the position of a player ordered by balance, players with the same balance are ordered by uuid like in
+     * {@link #getPlayers(int, int)}.
+     *
+     * @param uuid player to lookup.
+     * @return position of the player starting from 1, or -1 if the player doesn't exist.
+     */
+    public int getRank(@NotNull UUID uuid) {
+        try (Connection c = ds.getConnection(); PreparedStatement ps = c.prepareStatement("SELECT (SELECT COUNT(*) FROM " + DATA_TABLE + " WHERE balance > p.balance OR (balance = p.balance AND uuid > p.uuid)) FROM " + DATA_TABLE + " p WHERE p." + getUuidColumn() + " = ?;")) {
+            setUuid(ps, 1, uuid);
+            try (ResultSet res = ps.executeQuery()) {
+                return res.next() ? res.getInt(1) + 1 : -1;
+            }
+        } catch (SQLException ex) {
+            plugin.log("An error has occurred getting the rank of " + uuid);
+            plugin.debug(ex);
+            return -1;
+        }
+    }
+
+    /**
+     * Get players ordered by balance.
+     *
+     * @param offset amount of players to skip.
+     * @param amount max amount of players to get.
+     * @return players ordered by balance, then by uuid from highest to lowest.
+     */
+    @NotNull
+    public CoinsUser[] getPlayers(int offset, int amount) {
+        List<CoinsUser> users = new ArrayList<>();
+        try (Connection c = ds.getConnection(); PreparedStatement ps = c.prepareStatement("SELECT uuid, name, balance FROM " + DATA_TABLE + " ORDER BY balance DESC, uuid DESC LIMIT ? OFFSET ?;")) {
+            ps.setInt(1, amount);
+            ps.setInt(2, offset);
+            try (ResultSet res = ps.executeQuery()) {
+                while (res.next()) {
+                    try {
+                        users.add(new CoinsUser(UUID.fromString(res.getString("uuid")), res.getString("name"), getBalance(res, 3)));
+                    } catch (IllegalArgumentException | NullPointerException ignore) {
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            plugin.log("An error has occurred getting players ordered by balance.");
+            plugin.debug(ex);
+        }
+        return users.toArray(new CoinsUser[0]);
+    }
+
+    /**
+     * Check if the balances in the database were stored with the fixed point mode and scale of the config.
+     *
+     * @return true if the balances must be converted with {@link #convertBalances()} before they can be changed.
+     */
+    public boolean hasBalanceMismatch() {
+        return storedFormat != null;
+    }
+
+    /**
+     * Convert the balances in the database to the fixed point mode and scale of the config. The converted balances
+     * are written to a new column that replaces the old one at the end, so this can run again if it was interrupted.
+     *
+     * @return true if the balances were converted, false if they already match the config or the conversion failed.
+     */
+    public boolean convertBalances() {
+        String from = storedFormat;
+        if (from == null) {
+            return false;
+        }
+        try (Connection c = ds.getConnection()) {
+            convertBalanceColumn(c, from);
+        } catch (SQLException ex) {
+            plugin.log("An error has occurred converting the balances, the database wasn't changed.");
+            plugin.debug(ex);
+            return false;
+        }
+        storedFormat = null;
+        startLedger();
+        return true;
+    }
+
+    /**
+     * Compare the format of the balances stored in the meta table with the config. Databases without a stored format
+     * use the type of the balance column, an integral column is assumed to use the scale of the config.
+     *
+     * @param c connection to use.
+     * @throws SQLException if the format can't be read or stored.
+     */
+    protected final void checkBalanceFormat(@NotNull Connection c) throws SQLException {
+        try (Statement st = c.createStatement()) {
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS " + META_TABLE + " (name VARCHAR(32) NOT NULL PRIMARY KEY, value VARCHAR(255) NOT NULL);");
+        }
+        String format = getBalanceFormat();
+        String stored = getMeta(c, BALANCE_FORMAT);
+        if (stored == null) {
+            boolean integral = isIntegral(getColumnType(c, "balance"));
+            stored = integral ? "fixed:" + getFixedPoint().getScale() : "float";
+            if (!stored.equals(format) && isEmpty(c)) { // nothing to convert
+                convertBalanceColumn(c, stored);
+                return;
+            }
+            setMeta(c, BALANCE_FORMAT, stored);
+        }
+        if (stored.equals(format)) {
+            storedFormat = null;
+            return;
+        }
+        storedFormat = stored;
+        for (int i = 0; i < 3; i++) {
+            plugin.log("Balances in the database are stored as " + stored + " but the config uses " + format + ", balances can't be changed until they are converted with /coins convertbalances or the config is changed back.");
+        }
+    }
+
+    private void convertBalanceColumn(@NotNull Connection c, @NotNull String from) throws SQLException {
+        FixedPoint fixedPoint = getFixedPoint();
+        long fromFactor = 1;
+        for (int i = from.startsWith("fixed:") ? Integer.parseInt(from.substring(6)) : 0; i > 0; i--) {
+            fromFactor *= 10;
+        }
+        String value = from.startsWith("fixed:") ? "balance * 1.0 / " + fromFactor : "balance";
+        plugin.log("Converting balances from " + from + " to " + getBalanceFormat() + ", this may take a moment.");
+        try (Statement st = c.createStatement()) {
+            if (getColumnType(c, "balance_tmp") == -1) {
+                st.executeUpdate("ALTER TABLE " + DATA_TABLE + " ADD COLUMN balance_tmp " + getBalanceType() + ";");
+            }
+            st.executeUpdate("UPDATE " + DATA_TABLE + " SET balance_tmp = " + (fixedPoint.isEnabled() ? "ROUND(" + value + " * " + fixedPoint.getFactor() + ")" : value) + ";");
+        }
+        replaceBalanceColumn(c);
+        setMeta(c, BALANCE_FORMAT, getBalanceFormat());
+        plugin.log("Balances were converted successfully.");
+    }
+
+    @NotNull
+    private String getBalanceFormat() {
+        return getFixedPoint().isEnabled() ? "fixed:" + getFixedPoint().getScale() : "float";
+    }
+
+    @Nullable
+    private String getMeta(@NotNull Connection c, @NotNull String name) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("SELECT value FROM " + META_TABLE + " WHERE name = ?;")) {
+            ps.setString(1, name);
+            try (ResultSet res = ps.executeQuery()) {
+                return res.next() ? res.getString(1) : null;
+            }
+        }
+    }
+
+    private void setMeta(@NotNull Connection c, @NotNull String name, @NotNull String value) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("UPDATE " + META_TABLE + " SET value = ? WHERE name = ?;")) {
+            ps.setString(1, value);
+            ps.setString(2, name);
+            if (ps.executeUpdate() > 0) {
+                return;
+            }
+        }
+        try (PreparedStatement ps = c.prepareStatement("INSERT INTO " + META_TABLE + " (name, value) VALUES (?, ?);")) {
+            ps.setString(1, name);
+            ps.setString(2, value);
+            ps.executeUpdate();
+        }
+    }
+
+    private boolean isEmpty(@NotNull Connection c) throws SQLException {
+        try (Statement st = c.createStatement(); ResultSet res = st.executeQuery("SELECT 1 FROM " + DATA_TABLE + " LIMIT 1;")) {
+            return !res.next();
+        }
+    }
+
+    /**
+     * Fail if balances can't be written because they must be converted first.
+     *
+     * @throws SQLException if the balances must be converted.
+     */
+    protected final void checkWritable() throws SQLException {
+        if (storedFormat != null) {
+            throw new SQLException("Balances are stored as " + storedFormat + " but the config uses " + getBalanceFormat() + ", run /coins convertbalances.");
+        }
+    }
+
+    /**
+     * Drop the balance column and rename balance_tmp to balance in a single step.
+     *
+     * @param c connection to use.
+     * @throws SQLException if the column can't be replaced.
+     */
+    protected abstract void replaceBalanceColumn(@NotNull Connection c) throws SQLException;
+
+    /**
+     * @return SQL type for the balance column with the current fixed point setting.
+     */
+    @NotNull
+    protected abstract String getBalanceType();
+
+    /**
+     * @return column used to find players by uuid.
+     */
+    @NotNull
+    protected String getUuidColumn() {
+        return "uuid";
+    }
+
+    protected void setUuid(@NotNull PreparedStatement ps, int index, @NotNull UUID uuid) throws SQLException {
+        ps.setString(index, uuid.toString());
+    }
+
+    protected final void setBalance(@NotNull PreparedStatement ps, int index, double balance) throws SQLException {
+        if (getFixedPoint().isEnabled()) {
+            ps.setLong(index, getFixedPoint().toMinor(balance));
+        } else {
+            ps.setDouble(index, balance);
+        }
+    }
+
+    protected final double getBalance(@NotNull ResultSet res, int index) throws SQLException {
+        String format = readFormat;
+        if (format != null) { // may be different to the config of this server
+            return format.startsWith("fixed:") ? BigDecimal.valueOf(res.getLong(index), Integer.parseInt(format.substring(6))).doubleValue() : res.getDouble(index);
+        }
+        return getFixedPoint().isEnabled() ? getFixedPoint().toMajor(res.getLong(index)) : res.getDouble(index);
+    }
+
+    @NotNull
+    protected final FixedPoint getFixedPoint() {
+        return ((CommonCoinsPlugin<?>) plugin).getFixedPoint();
+    }
+
+    /**
+     * Find the uuids of many players with one query for every 500 names, if a name is used by more than one player
+     * the one that joined last is used.
+     *
+     * @param names names to lookup.
+     * @return uuids by lowercase name, names not found aren't included.
+     * @throws SQLException if the query fails.
+     */
+    @NotNull
+    public Map<String, UUID> getUniqueIds(@NotNull Collection<String> names) throws SQLException {
+        Map<String, UUID> uuids = new HashMap<>();
+        List<String> list = new ArrayList<>(names);
+        try (Connection c = ds.getConnection()) {
+            for (int from = 0; from < list.size(); from += LOOKUP_BATCH_SIZE) {
+                List<String> batch = list.subList(from, Math.min(list.size(), from + LOOKUP_BATCH_SIZE));
+                try (PreparedStatement ps = c.prepareStatement("SELECT uuid, name FROM " + DATA_TABLE + " WHERE " + getNameColumn() + " IN (" + placeholders(batch.size()) + ") ORDER BY lastlogin;")) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        ps.setString(i + 1, batch.get(i));
+                    }
+                    try (ResultSet res = ps.executeQuery()) {
+                        while (res.next()) {
+                            try {
+                                uuids.put(res.getString("name").toLowerCase(Locale.ROOT), UUID.fromString(res.getString("uuid")));
+                            } catch (IllegalArgumentException | NullPointerException ignore) {
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return uuids;
+    }
+
+    /**
+     * Find the names of many players with one query for every 500 uuids.
+     *
+     * @param uuids uuids to lookup.
+     * @return names by uuid, uuids not found aren't included.
+     * @throws SQLException if the query fails.
+     */
+    @NotNull
+    public Map<UUID, String> getNames(@NotNull Collection<UUID> uuids) throws SQLException {
+        Map<UUID, String> names = new HashMap<>();
+        List<UUID> list = new ArrayList<>(uuids);
+        try (Connection c = ds.getConnection()) {
+            for (int from = 0; from < list.size(); from += LOOKUP_BATCH_SIZE) {
+                List<UUID> batch = list.subList(from, Math.min(list.size(), from + LOOKUP_BATCH_SIZE));
+                try (PreparedStatement ps = c.prepareStatement("SELECT uuid, name FROM " + DATA_TABLE + " WHERE " + getUuidColumn() + " IN (" + placeholders(batch.size()) + ");")) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        setUuid(ps, i + 1, batch.get(i));
+                    }
+                    try (ResultSet res = ps.executeQuery()) {
+                        while (res.next()) {
+                            try {
+                                names.put(UUID.fromString(res.getString("uuid")), res.getString("name"));
+                            } catch (IllegalArgumentException | NullPointerException ignore) {
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return column used to find players by name, comparisons must ignore case.
+     */
+    @NotNull
+    protected String getNameColumn() {
+        return "name";
+    }
+
+    @Nullable
+    public BalanceLedger getLedger() {
+        return ledger;
+    }
+
+    protected final boolean hasIndex(@NotNull Connection c, @NotNull String index) throws SQLException {
+        try (ResultSet res = c.getMetaData().getIndexInfo(c.getCatalog(), null, DATA_TABLE, false, false)) {
+            while (res.next()) {
+                if (index.equalsIgnoreCase(res.getString("INDEX_NAME"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    protected final int getColumnType(@NotNull Connection c, @NotNull String column) throws SQLException {
+        try (ResultSet res = c.getMetaData().getColumns(c.getCatalog(), null, DATA_TABLE, column)) {
+            return res.next() ? res.getInt("DATA_TYPE") : -1;
+        }
+    }
+
+    @NotNull
+    private static String placeholders(int amount) {
+        StringBuilder builder = new StringBuilder(amount * 2);
+        for (int i = 0; i < amount; i++) {
+            builder.append(i == 0 ? "?" : ",?");
+        }
+        return builder.toString();
+    }
+
+    private boolean isIntegral(int type) {
+        return type == Types.BIGINT || type == Types.INTEGER || type == Types.SMALLINT || type == Types.TINYINT;
+    }
+
+    private void updateLeaderboard(@NotNull UUID uuid, double balance) {
+        Leaderboard leaderboard = ((CommonCoinsPlugin<?>) plugin).getLeaderboard();
+        if (leaderboard != null) {
+            leaderboard.update(uuid, balance);
+        }
+    }
+
+    // a delta must never be applied over an older balance that is still waiting in the ledger, pending balances are
+    // committed on their own so they aren't lost if the delta is rolled back. The ledger can't flush while this runs,
+    // otherwise a batch read before the delta would overwrite it with a stale balance
+    private <T> T writeDelta(@NotNull SQLFunction<T> delta, @NotNull UUID... uuids) throws SQLException {
+        BalanceLedger ledger = this.ledger;
+        if (ledger == null) {
+            return write(delta);
+        }
+        synchronized (ledger.getWriteLock()) {
+            Map<UUID, Double> taken = new HashMap<>();
+            for (UUID uuid : uuids) {
+                ledger.take(uuid).ifPresent(balance -> taken.put(uuid, balance));
+            }
+            if (!taken.isEmpty()) {
+                try {
+                    updateBalances(taken);
+                } catch (SQLException | RuntimeException ex) {
+                    taken.forEach(ledger::restore);
+                    throw ex;
+                }
+            }
+            return write(delta);
+        }
+    }
+
+    /**
+     * Write all the balances in a single batch and transaction.
+     *
+     * @param balances balances to write.
+     * @throws SQLException if the batch can't be written, in this case nothing is written.
+     */
+    public void updateBalances(@NotNull Map<UUID, Double> balances) throws SQLException {
+        write(c -> writeBalances(c, balances));
+    }
+
+    /**
+     * Write all the balances in a single transaction only if no write with a newer fencing token was committed, used by
+     * writers holding a lock that may expire while they are still writing.
+     *
+     * @param balances balances to write.
+     * @param fence    fencing token of the writer, must increase every time the lock changes of owner.
+     * @throws StaleFenceException if a newer token was already used, in this case nothing is written.
+     * @throws SQLException        if the batch can't be written, in this case nothing is written.
+     */
+    public void updateBalances(@NotNull Map<UUID, Double> balances, long fence) throws SQLException {
+        write(c -> {
+            checkFence(c, fence);
+            return writeBalances(c, balances);
+        });
+    }
+
+    // tokens are zero padded so they can be compared as text in the meta table, the update locks the row until commit
+    private void checkFence(@NotNull Connection c, long fence) throws SQLException {
+        String value = String.format(Locale.ROOT, "%019d", fence);
+        try (PreparedStatement ps = c.prepareStatement("UPDATE " + META_TABLE + " SET value = ? WHERE name = ? AND value <= ?;")) {
+            ps.setString(1, value);
+            ps.setString(2, COMMIT_FENCE);
+            ps.setString(3, value);
+            if (ps.executeUpdate() > 0) {
+                return;
+            }
+        }
+        String stored = getMeta(c, COMMIT_FENCE);
+        if (stored != null) {
+            throw new StaleFenceException(fence, Long.parseLong(stored));
+        }
+        setMeta(c, COMMIT_FENCE, value);
+    }
+
+    private int[] writeBalances(@NotNull Connection c, @NotNull Map<UUID, Double> balances) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("UPDATE " + DATA_TABLE + " SET balance = ? WHERE " + getUuidColumn() + " = ?;")) {
+            for (Map.Entry<UUID, Double> entry : balances.entrySet()) {
+                setBalance(ps, 1, entry.getValue());
+                setUuid(ps, 2, entry.getKey());
+                ps.addBatch();
+            }
+            return ps.executeBatch();
+        }
+    }
+
+    /**
+     * Run the given statements in a single transaction, the transaction is rolled back if the function throws an
+     * exception. Statements must not commit or rollback the connection.
+     *
+     * @param function statements to run.
+     * @param <T>      type of the result.
+     * @return the result of the function.
+     * @throws SQLException if the function fails or the transaction can't be committed.
+     */
+    protected <T> T write(@NotNull SQLFunction<T> function) throws SQLException {
+        checkWritable();
+        try (Connection c = ds.getConnection()) {
+            boolean autoCommit = c.getAutoCommit();
+            c.setAutoCommit(false);
+            try {
+                T result = function.apply(c);
+                c.commit();
+                return result;
+            } catch (SQLException | RuntimeException ex) {
+                c.rollback();
+                throw ex;
+            } finally {
+                c.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    protected interface SQLFunction<T> {
+
+        T apply(@NotNull Connection c) throws SQLException;
+    }
+
+    /**
+     * Thrown when a fenced write is rejected because a writer with a newer token already committed.
+     */
+    public static final class StaleFenceException extends SQLException {
+
+        private final long stored;
+
+        private StaleFenceException(long fence, long stored) {
+            super("Fencing token " + fence + " is older than the last committed token " + stored);
+            this.stored = stored;
+        }
+
+        /**
+         * @return newest token committed to the database.
+         */
+        public long getStored() {
+            return stored;
+        }
+    }
+
+    // thrown by a write to undo its changes without reporting an error
+    private static final class RejectedWriteException extends SQLException {
+
+        private RejectedWriteException() {
+            super("Write rejected");
+        }
+    }
+}
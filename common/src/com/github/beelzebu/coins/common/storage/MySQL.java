@@ -18,33 +18,51 @@
  */
 package com.github.beelzebu.coins.common.storage;
 
+import com.github.beelzebu.coins.api.CoinsUser;
 import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
 import com.github.beelzebu.coins.api.storage.StorageType;
-import com.github.beelzebu.coins.api.storage.sql.SQLDatabase;
 import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collection;
+import java.util.OptionalDouble;
+import java.util.UUID;
 import org.jetbrains.annotations.NotNull;
 
 /**
  * @author Beelzebu
  */
-public final class MySQL extends SQLDatabase {
+public final class MySQL extends CommonSQLDatabase {
 
+    // uuid_bin is a generated column, it can't be used on old MySQL and MariaDB versions
+    private boolean binaryUuid = false;
     public MySQL(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin) {
         super(plugin);
     }
 
     @Override
     public void setup() {
-        int maxPoolSize = plugin.getConfig().getInt("MySQL.Connection Pool", 8);
+        if (!openPool(false)) {
+            plugin.log("We will change your storage type to SQLite.");
+            plugin.setStorageType(StorageType.SQLITE);
+            return;
+        }
+        updateDatabase();
+        startLedger();
+    }
+
+    @Override
+    protected boolean openPool(boolean readOnly) {
+        int maxPoolSize = readOnly ? 2 : plugin.getConfig().getInt("MySQL.Connection Pool", 8);
         HikariConfig hc = new HikariConfig();
-        hc.setPoolName("Coins MySQL Connection Pool");
+        hc.setPoolName(readOnly ? "Coins MySQL Import Pool" : "Coins MySQL Connection Pool");
+        hc.setReadOnly(readOnly);
         String urlprefix = "jdbc:mysql://";
         if (isMariaDB()) {
             urlprefix = "jdbc:mariadb://";
@@ -59,11 +77,12 @@ public final class MySQL extends SQLDatabase {
         hc.addDataSourceProperty("encoding", "UTF-8");
         hc.addDataSourceProperty("characterEncoding", "utf8");
         hc.addDataSourceProperty("useUnicode", "true");
+        hc.addDataSourceProperty("rewriteBatchedStatements", "true");
         hc.setJdbcUrl(urlprefix + plugin.getConfig().getString("MySQL.Host") + ":" + plugin.getConfig().get("MySQL.Port", "3306") + "/" + plugin.getConfig().getString("MySQL.Database") + "?autoReconnect=true&useSSL=false");
         hc.setUsername(plugin.getConfig().getString("MySQL.User"));
         hc.setPassword(plugin.getConfig().getString("MySQL.Password"));
         hc.setMaxLifetime(60000);
-        hc.setMinimumIdle(Math.max(4, maxPoolSize));
+        hc.setMinimumIdle(readOnly ? 1 : Math.max(4, maxPoolSize));
         hc.setIdleTimeout(30000);
         hc.setConnectionTimeout(10000);
         hc.setMaximumPoolSize(maxPoolSize);
@@ -71,14 +90,18 @@ public final class MySQL extends SQLDatabase {
         hc.validate();
         try {
             ds = new HikariDataSource(hc);
+            return true;
         } catch (Exception ex) {
             plugin.log("An exception has occurred while starting connection pool, check your database credentials.");
             plugin.debug(ex);
-            plugin.log("We will change your storage type to SQLite.");
-            plugin.setStorageType(StorageType.SQLITE);
-            return;
+            return false;
         }
-        updateDatabase();
+    }
+
+    @NotNull
+    @Override
+    public String getLocation() {
+        return plugin.getConfig().getString("MySQL.Host") + ":" + plugin.getConfig().get("MySQL.Port", "3306") + "/" + plugin.getConfig().getString("MySQL.Database");
     }
 
     @Override
@@ -150,7 +173,7 @@ public final class MySQL extends SQLDatabase {
                             plugin.debug(ex);
                             return;
                         }
-                        ((CommonCoinsPlugin) plugin).getFileManager().updateDatabaseVersion(configDatabaseVersion++);
+                        ((CommonCoinsPlugin) plugin).getFileManager().updateDatabaseVersion(++configDatabaseVersion);
                         break;
                     case 2:
                         /*
@@ -173,7 +196,33 @@ public final class MySQL extends SQLDatabase {
                             plugin.log("An error has occurred while updating database to " + (configDatabaseVersion + 1));
                             throw ex;
                         }
-                        ((CommonCoinsPlugin) plugin).getFileManager().updateDatabaseVersion(configDatabaseVersion++);
+                        ((CommonCoinsPlugin) plugin).getFileManager().updateDatabaseVersion(++configDatabaseVersion);
+                        break;
+                    case 3:
+                        // the balance column is checked against the fixed point setting below, and converted with
+                        // /coins convertbalances
+                        ((CommonCoinsPlugin) plugin).getFileManager().updateDatabaseVersion(++configDatabaseVersion);
+                        break;
+                    case 4:
+                        /*
+                        In this version a binary uuid column was added as lookup key, with indexes for names and
+                        balances. The name index uses the case insensitive collation of the column.
+                         */
+                        try {
+                            if (getColumnType(c, "uuid_bin") == -1) {
+                                try (Statement st = c.createStatement()) {
+                                    st.executeUpdate("ALTER TABLE `" + DATA_TABLE + "` ADD COLUMN `uuid_bin` BINARY(16) AS (UNHEX(REPLACE(`uuid`, '-', ''))) STORED, ADD UNIQUE INDEX `uuid_bin_UQ` (`uuid_bin`);");
+                                } catch (SQLException ex) {
+                                    plugin.log("Binary uuid column couldn't be created, this requires MySQL 5.7 or MariaDB 10.2.");
+                                    plugin.debug(ex);
+                                }
+                            }
+                            createIndexes(c);
+                        } catch (SQLException ex) {
+                            plugin.log("An error has occurred while updating database to version " + (configDatabaseVersion + 1));
+                            throw ex;
+                        }
+                        ((CommonCoinsPlugin) plugin).getFileManager().updateDatabaseVersion(++configDatabaseVersion);
                         break;
                     default:
                         plugin.log("Seems that your database is outdated and can't be updated.");
@@ -182,6 +231,8 @@ public final class MySQL extends SQLDatabase {
                 }
             }
             plugin.log("Database version is up to date.");
+            checkBalanceFormat(c); // fixed point may be enabled or disabled after the database was updated
+            binaryUuid = getColumnType(c, "uuid_bin") != -1;
             purgeDatabase(c);
         } catch (SQLException ex) {
             plugin.log("Something was wrong creating the default databases. Please check the debug log.");
@@ -189,6 +240,100 @@ public final class MySQL extends SQLDatabase {
         }
     }
 
+    @NotNull
+    @Override
+    protected OptionalDouble updateBalance(@NotNull Connection c, @NotNull UUID uuid, double amount) throws SQLException {
+        // MySQL has no UPDATE ... RETURNING, the row stays locked by the update until the transaction ends so the
+        // balance read after it is the one that was written
+        boolean autoCommit = c.getAutoCommit();
+        if (autoCommit) {
+            c.setAutoCommit(false);
+        }
+        try {
+            OptionalDouble balance = OptionalDouble.empty();
+            try (PreparedStatement ps = c.prepareStatement("UPDATE " + DATA_TABLE + " SET balance = balance + ? WHERE " + getUuidColumn() + " = ? AND balance + ? >= 0;")) {
+                setBalance(ps, 1, amount);
+                setUuid(ps, 2, uuid);
+                setBalance(ps, 3, amount);
+                if (ps.executeUpdate() > 0) {
+                    try (PreparedStatement select = c.prepareStatement("SELECT balance FROM " + DATA_TABLE + " WHERE " + getUuidColumn() + " = ?;")) {
+                        setUuid(select, 1, uuid);
+                        try (ResultSet res = select.executeQuery()) {
+                            if (res.next()) {
+                                balance = OptionalDouble.of(getBalance(res, 1));
+                            }
+                        }
+                    }
+                }
+            }
+            if (autoCommit) {
+                c.commit();
+            }
+            return balance;
+        } catch (SQLException ex) {
+            if (autoCommit) {
+                c.rollback();
+            }
+            throw ex;
+        } finally {
+            if (autoCommit) {
+                c.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Override
+    protected void replaceBalanceColumn(@NotNull Connection c) throws SQLException {
+        boolean indexed = hasIndex(c, "balance_IDX"); // dropped with the column
+        try (Statement st = c.createStatement()) {
+            st.executeUpdate("ALTER TABLE `" + DATA_TABLE + "` DROP COLUMN `balance`, CHANGE COLUMN `balance_tmp` `balance` " + getBalanceType() + ";");
+        }
+        if (indexed) {
+            createIndexes(c);
+        }
+    }
+
+    @NotNull
+    @Override
+    protected String getUuidColumn() {
+        return binaryUuid ? "uuid_bin" : "uuid";
+    }
+
+    @Override
+    protected void setUuid(@NotNull PreparedStatement ps, int index, @NotNull UUID uuid) throws SQLException {
+        if (!binaryUuid) {
+            super.setUuid(ps, index, uuid);
+            return;
+        }
+        ps.setBytes(index, ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array());
+    }
+
+    @Override
+    protected void upsertRows(@NotNull Connection c, @NotNull Collection<CoinsUser> users) throws SQLException {
+        if (!binaryUuid) { // uuid_name_UQ doesn't detect players that changed their name
+            super.upsertRows(c, users);
+            return;
+        }
+        insertRows(c, users, " ON DUPLICATE KEY UPDATE balance = balance + VALUES(balance)");
+    }
+
+    @NotNull
+    @Override
+    protected String getBalanceType() {
+        return (getFixedPoint().isEnabled() ? "BIGINT" : "DOUBLE") + " NOT NULL DEFAULT 0";
+    }
+
+    private void createIndexes(@NotNull Connection c) throws SQLException {
+        try (Statement st = c.createStatement()) {
+            if (!hasIndex(c, "name_IDX")) {
+                st.executeUpdate("CREATE INDEX `name_IDX` ON `" + DATA_TABLE + "` (`name`);");
+            }
+            if (!hasIndex(c, "balance_IDX")) {
+                st.executeUpdate("CREATE INDEX `balance_IDX` ON `" + DATA_TABLE + "` (`balance` DESC);");
+            }
+        }
+    }
+
     private boolean isMariaDB() {
         return getStorageType().equals(StorageType.MARIADB);
     }
@@ -20,7 +20,6 @@ package com.github.beelzebu.coins.common.storage;
 
 import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
 import com.github.beelzebu.coins.api.storage.StorageType;
-import com.github.beelzebu.coins.api.storage.sql.SQLDatabase;
 import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
@@ -30,12 +29,20 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.OptionalDouble;
+import java.util.Properties;
+import java.util.UUID;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Beelzebu
  */
-public final class SQLite extends SQLDatabase {
+public final class SQLite extends CommonSQLDatabase {
+
+    private static final String URL = "jdbc:sqlite:plugins/Coins/database.db";
+    @Nullable
+    private SQLiteWriter writer;
 
     public SQLite(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin) {
         super(plugin);
@@ -43,18 +50,65 @@ public final class SQLite extends SQLDatabase {
 
     @Override
     public void setup() {
+        openPool(false);
+        updateDatabase();
+        writer = new SQLiteWriter((CommonCoinsPlugin<?>) plugin, URL, getPragmas());
+        try {
+            writer.start();
+        } catch (SQLException ex) {
+            plugin.log("Can't open the SQLite write connection, writes will use the connection pool.");
+            plugin.debug(ex);
+            writer = null;
+        }
+        startLedger();
+    }
+
+    @Override
+    protected boolean openPool(boolean readOnly) {
+        Properties properties;
+        if (readOnly) { // the pragmas would need to write to the database
+            properties = new Properties();
+            properties.setProperty("open_mode", "1"); // SQLITE_OPEN_READONLY
+        } else {
+            properties = getPragmas();
+        }
         HikariConfig hc = new HikariConfig();
-        hc.setPoolName("Coins SQLite Connection Pool");
+        hc.setPoolName(readOnly ? "Coins SQLite Import Pool" : "Coins SQLite Connection Pool");
         hc.setDriverClassName("org.sqlite.JDBC");
-        hc.setJdbcUrl("jdbc:sqlite:plugins/Coins/database.db");
+        hc.setJdbcUrl(URL);
+        hc.setDataSourceProperties(properties);
         hc.setConnectionTestQuery("SELECT 1");
         hc.setMinimumIdle(1);
         hc.setConnectionTimeout(10000);
-        hc.setMaximumPoolSize(4);
+        hc.setMaximumPoolSize(readOnly ? 1 : Math.max(1, plugin.getConfig().getInt("SQLite.Read Connections", 4)));
         hc.setLeakDetectionThreshold(30000);
         hc.validate();
-        ds = new HikariDataSource(hc);
-        updateDatabase();
+        try {
+            ds = new HikariDataSource(hc);
+            return true;
+        } catch (Exception ex) {
+            if (!readOnly) {
+                throw ex;
+            }
+            plugin.log("Can't open the SQLite database to import from.");
+            plugin.debug(ex);
+            return false;
+        }
+    }
+
+    @NotNull
+    @Override
+    public String getLocation() {
+        return URL.substring("jdbc:sqlite:".length());
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown(); // flush the ledger before the writer stops
+        if (writer != null) {
+            writer.stop();
+            writer = null;
+        }
     }
 
     @NotNull
@@ -63,6 +117,78 @@ public final class SQLite extends SQLDatabase {
         return StorageType.SQLITE;
     }
 
+    @NotNull
+    @Override
+    protected OptionalDouble updateBalance(@NotNull Connection c, @NotNull UUID uuid, double amount) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("UPDATE " + DATA_TABLE + " SET balance = balance + ? WHERE " + getUuidColumn() + " = ? AND balance + ? >= 0 RETURNING balance;")) {
+            setBalance(ps, 1, amount);
+            setUuid(ps, 2, uuid);
+            setBalance(ps, 3, amount);
+            try (ResultSet res = ps.executeQuery()) {
+                return res.next() ? OptionalDouble.of(getBalance(res, 1)) : OptionalDouble.empty();
+            }
+        }
+    }
+
+    @Override
+    protected <T> T write(@NotNull SQLFunction<T> function) throws SQLException {
+        checkWritable();
+        SQLiteWriter writer = this.writer;
+        return writer != null ? writer.write(function) : super.write(function);
+    }
+
+    // WAL lets the pool read while the writer commits, and NORMAL only syncs the WAL on checkpoints
+    @NotNull
+    private Properties getPragmas() {
+        Properties properties = new Properties();
+        properties.setProperty("journal_mode", "WAL");
+        properties.setProperty("synchronous", "NORMAL");
+        properties.setProperty("busy_timeout", "5000");
+        properties.setProperty("cache_size", String.valueOf(-1024L * Math.max(2, plugin.getConfig().getInt("SQLite.Cache Size", 16))));
+        properties.setProperty("mmap_size", String.valueOf(1024L * 1024 * Math.max(0, plugin.getConfig().getInt("SQLite.Mmap Size", 64))));
+        return properties;
+    }
+
+    @Override
+    protected void replaceBalanceColumn(@NotNull Connection c) throws SQLException {
+        boolean indexed = hasIndex(c, "balance_IDX"); // indexed columns can't be dropped
+        boolean autoCommit = c.getAutoCommit();
+        c.setAutoCommit(false);
+        try (Statement st = c.createStatement()) {
+            st.executeUpdate("DROP INDEX IF EXISTS `balance_IDX`;");
+            st.executeUpdate("ALTER TABLE `" + DATA_TABLE + "` DROP COLUMN `balance`;");
+            st.executeUpdate("ALTER TABLE `" + DATA_TABLE + "` RENAME COLUMN `balance_tmp` TO `balance`;");
+            if (indexed) {
+                createIndexes(c);
+            }
+            c.commit();
+        } catch (SQLException ex) {
+            c.rollback();
+            throw ex;
+        } finally {
+            c.setAutoCommit(autoCommit);
+        }
+    }
+
+    @NotNull
+    @Override
+    protected String getBalanceType() {
+        return getFixedPoint().isEnabled() ? "BIGINT DEFAULT 0" : "DOUBLE DEFAULT 0";
+    }
+
+    @NotNull
+    @Override
+    protected String getNameColumn() {
+        return "name COLLATE NOCASE"; // same collation as name_IDX
+    }
+
+    private void createIndexes(@NotNull Connection c) throws SQLException {
+        try (Statement st = c.createStatement()) {
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS `name_IDX` ON `" + DATA_TABLE + "` (`name` COLLATE NOCASE);");
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS `balance_IDX` ON `" + DATA_TABLE + "` (`balance` DESC);");
+        }
+    }
+
     @Override
     protected void updateDatabase() {
         try (Connection c = ds.getConnection()) {
@@ -117,7 +243,7 @@ public final class SQLite extends SQLDatabase {
                             }
                             throw ex;
                         }
-                        ((CommonCoinsPlugin) plugin).getFileManager().updateDatabaseVersion(configDatabaseVersion++);
+                        ((CommonCoinsPlugin) plugin).getFileManager().updateDatabaseVersion(++configDatabaseVersion);
                         break;
                     case 2:
                         try {
@@ -143,11 +269,26 @@ public final class SQLite extends SQLDatabase {
                             try (PreparedStatement ps = c.prepareStatement("ALTER TABLE " + MULTIPLIERS_TABLE + "X RENAME TO " + MULTIPLIERS_TABLE)) {
                                 ps.executeUpdate();
                             }
-                            ((CommonCoinsPlugin) plugin).getFileManager().updateDatabaseVersion(configDatabaseVersion++);
+                            ((CommonCoinsPlugin) plugin).getFileManager().updateDatabaseVersion(++configDatabaseVersion);
+                        } catch (SQLException ex) {
+                            plugin.log("An error has occurred while updating database to version " + (configDatabaseVersion + 1));
+                            throw ex;
+                        }
+                        break;
+                    case 3:
+                        // the balance column is checked against the fixed point setting below, and converted with
+                        // /coins convertbalances
+                        ((CommonCoinsPlugin) plugin).getFileManager().updateDatabaseVersion(++configDatabaseVersion);
+                        break;
+                    case 4:
+                        // uuid lookups already use uuid_name_UQ, sqlite can't add a stored binary uuid column
+                        try {
+                            createIndexes(c);
                         } catch (SQLException ex) {
                             plugin.log("An error has occurred while updating database to version " + (configDatabaseVersion + 1));
                             throw ex;
                         }
+                        ((CommonCoinsPlugin) plugin).getFileManager().updateDatabaseVersion(++configDatabaseVersion);
                         break;
                     default:
                         plugin.log("Seems that your database is outdated and can't be updated.");
@@ -156,6 +297,7 @@ public final class SQLite extends SQLDatabase {
                 }
             }
             plugin.log("Database version is up to date.");
+            checkBalanceFormat(c); // fixed point may be enabled or disabled after the database was updated
             purgeDatabase(c);
         } catch (SQLException ex) {
             plugin.log("Something was wrong creating the default databases. Please check the debug log.");
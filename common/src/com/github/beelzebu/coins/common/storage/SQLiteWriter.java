@@ -0,0 +1,217 @@
+/*
+ * This file is part of coins3
+ *
+ * Copyright © 2020 Beelzebu
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.beelzebu.coins.common.storage;
+
+import com.github.beelzebu.coins.api.plugin.CoinsBootstrap;
+import com.github.beelzebu.coins.common.plugin.CommonCoinsPlugin;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Single thread that owns the only write connection to the SQLite database. Writes waiting in the queue are grouped in
+ * one transaction, so many balance updates share a single commit and writers never compete for the database lock.
+ * Every write runs in its own savepoint, a failed write doesn't undo the others in the same transaction.
+ *
+ * @author Beelzebu
+ */
+final class SQLiteWriter {
+
+    @NotNull
+    private final CommonCoinsPlugin<? extends CoinsBootstrap> plugin;
+    @NotNull
+    private final String url;
+    @NotNull
+    private final Properties properties;
+    private final int batchSize;
+    private final BlockingQueue<Write<?>> queue = new LinkedBlockingQueue<>();
+    @Nullable
+    private Connection connection;
+    @Nullable
+    private volatile Thread thread;
+    private volatile boolean running;
+
+    SQLiteWriter(@NotNull CommonCoinsPlugin<? extends CoinsBootstrap> plugin, @NotNull String url, @NotNull Properties properties) {
+        this.plugin = plugin;
+        this.url = url;
+        this.properties = properties;
+        batchSize = Math.max(1, plugin.getConfig().getInt("SQLite.Batch Size", 500));
+    }
+
+    void start() throws SQLException {
+        connection = DriverManager.getConnection(url, properties);
+        connection.setAutoCommit(false);
+        running = true;
+        thread = new Thread(this::run, "Coins SQLite Writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop accepting writes and wait until the queued ones were committed.
+     */
+    void stop() {
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        failPending(new SQLException("SQLite writer was stopped"));
+    }
+
+    /**
+     * Queue a write and wait until the transaction containing it was committed.
+     *
+     * @param function statements to run, they must not commit or rollback the connection.
+     * @param <T>      type of the result.
+     * @return the result of the function.
+     * @throws SQLException if the function fails or the transaction can't be committed.
+     */
+    <T> T write(@NotNull CommonSQLDatabase.SQLFunction<T> function) throws SQLException {
+        if (Thread.currentThread() == thread) { // nested write, it is already part of the current transaction
+            return function.apply(connection);
+        }
+        if (!running) {
+            throw new SQLException("SQLite writer is not running");
+        }
+        Write<T> write = new Write<>(function);
+        queue.add(write);
+        if (!running && queue.remove(write)) { // stopped while it was queued
+            throw new SQLException("SQLite writer is not running");
+        }
+        try {
+            return write.future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the SQLite writer", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException(cause);
+        }
+    }
+
+    private void run() {
+        List<Write<?>> batch = new ArrayList<>(batchSize);
+        try {
+            while (running || !queue.isEmpty()) {
+                Write<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                if (connection != null) {
+                    connection.close();
+                }
+            } catch (SQLException ex) {
+                plugin.debug(ex);
+            }
+        }
+    }
+
+    private void commit(@NotNull List<Write<?>> batch) {
+        assert connection != null;
+        try {
+            for (Write<?> write : batch) {
+                Savepoint savepoint = connection.setSavepoint();
+                try {
+                    write.run(connection);
+                    connection.releaseSavepoint(savepoint);
+                } catch (SQLException | RuntimeException ex) {
+                    connection.rollback(savepoint);
+                    write.error = ex;
+                }
+            }
+            connection.commit();
+        } catch (SQLException ex) {
+            plugin.log("An error has occurred committing " + batch.size() + " writes to the SQLite database.");
+            plugin.debug(ex);
+            try {
+                connection.rollback();
+            } catch (SQLException e) {
+                plugin.debug(e);
+            }
+            for (Write<?> write : batch) {
+                if (write.error == null) {
+                    write.error = ex;
+                }
+            }
+        }
+        batch.forEach(Write::complete);
+    }
+
+    private void failPending(@NotNull SQLException ex) {
+        Write<?> write;
+        while ((write = queue.poll()) != null) {
+            write.future.completeExceptionally(ex);
+        }
+    }
+
+    private static final class Write<T> {
+
+        private final CommonSQLDatabase.SQLFunction<T> function;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private T result;
+        private Exception error;
+
+        private Write(CommonSQLDatabase.SQLFunction<T> function) {
+            this.function = function;
+        }
+
+        private void run(@NotNull Connection connection) throws SQLException {
+            result = function.apply(connection);
+        }
+
+        private void complete() {
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(result);
+            }
+        }
+    }
+}
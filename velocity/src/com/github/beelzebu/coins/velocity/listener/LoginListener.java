@@ -21,8 +21,8 @@ package com.github.beelzebu.coins.velocity.listener;
 import com.github.beelzebu.coins.velocity.CoinsVelocityPlugin;
 import com.github.beelzebu.coins.velocity.messaging.VelocityMessaging;
 import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
 import com.velocitypowered.api.event.player.ServerConnectedEvent;
-import java.util.Queue;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -38,11 +38,13 @@ public class LoginListener {
 
     @Subscribe
     public void onPlayerJoin(@NotNull ServerConnectedEvent e) {
+        coinsVelocityPlugin.getEffectiveMultipliers().invalidate(e.getPlayer().getUniqueId()); // usable multipliers depend on the server
         VelocityMessaging velocityMessaging = (VelocityMessaging) coinsVelocityPlugin.getBootstrap().getProxyMessaging();
-        Queue<String> messageQueue = velocityMessaging.getMessageQueue().get(e.getServer().getServerInfo().getName());
-        String message;
-        while (messageQueue != null && (message = messageQueue.poll()) != null) {
-            velocityMessaging.sendMessage(message, true, e.getServer());
-        }
+        velocityMessaging.sendQueued(e.getServer());
+    }
+
+    @Subscribe
+    public void onDisconnect(@NotNull DisconnectEvent e) {
+        coinsVelocityPlugin.getEffectiveMultipliers().invalidate(e.getPlayer().getUniqueId());
     }
 }
\ No newline at end of file
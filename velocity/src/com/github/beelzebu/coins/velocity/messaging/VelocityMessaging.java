@@ -19,82 +19,170 @@
 package com.github.beelzebu.coins.velocity.messaging;
 
 import com.github.beelzebu.coins.api.messaging.ProxyMessaging;
+import com.github.beelzebu.coins.common.balance.BalanceAuthority;
+import com.github.beelzebu.coins.common.messaging.MessageBatcher;
+import com.github.beelzebu.coins.common.messaging.MessageCodec;
+import com.github.beelzebu.coins.common.messaging.OutboundQueue;
 import com.github.beelzebu.coins.velocity.CoinsVelocityMain;
 import com.github.beelzebu.coins.velocity.CoinsVelocityPlugin;
-import com.google.common.io.ByteArrayDataInput;
-import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.connection.PluginMessageEvent;
 import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ServerConnection;
 import com.velocitypowered.api.proxy.messages.MinecraftChannelIdentifier;
 import com.velocitypowered.api.proxy.server.RegisteredServer;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
+import java.io.File;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Beelzebu
  */
 public class VelocityMessaging extends ProxyMessaging {
 
-    private final Map<String, Queue<String>> messageQueue = new LinkedHashMap<>();
+    private final OutboundQueue messageQueue;
+    private final CoinsVelocityPlugin plugin;
+    // messages are handled in the plugin executor, keeping the order they were received
+    private final Executor messageExecutor;
+    private final MessageCodec codec;
+    private final MessageBatcher batcher;
+    @Nullable
+    private final BalanceAuthority balanceAuthority;
     private final MinecraftChannelIdentifier channelIdentifier = MinecraftChannelIdentifier.create(CHANNEL.split(":")[0], CHANNEL.split(":")[1]);
+    private final MinecraftChannelIdentifier balanceIdentifier = MinecraftChannelIdentifier.create(BalanceAuthority.CHANNEL.split(":")[0], BalanceAuthority.CHANNEL.split(":")[1]);
 
     public VelocityMessaging(CoinsVelocityPlugin coinsPlugin) {
         super(coinsPlugin);
+        plugin = coinsPlugin;
+        messageExecutor = coinsPlugin.getExecutor().ordered();
+        codec = coinsPlugin.getMessageCodec();
+        batcher = new MessageBatcher(coinsPlugin, super::publishUser, this::sendFrame);
+        balanceAuthority = coinsPlugin.getConfig().getBoolean("Proxy Balances.Enabled", false) ? new BalanceAuthority(coinsPlugin) : null;
+        messageQueue = new OutboundQueue(coinsPlugin, new File(coinsPlugin.getBootstrap().getDataFolder(), "outbound.queue"));
     }
 
     @Subscribe
     public void onMessageReceive(@NotNull PluginMessageEvent e) {
+        if (e.getIdentifier().equals(balanceIdentifier) && balanceAuthority != null) {
+            e.setResult(PluginMessageEvent.ForwardResult.handled()); // never forward balance messages, players could use them to fake responses
+            if (e.getSource() instanceof ServerConnection) {
+                ServerConnection server = (ServerConnection) e.getSource();
+                balanceAuthority.receive(e.getData(), response -> server.sendPluginMessage(balanceIdentifier, response));
+            }
+            return;
+        }
         if (!e.getIdentifier().equals(channelIdentifier)) {
             return;
         }
         if (e.getSource() instanceof Player) {
             return;
         }
-        ByteArrayDataInput in = ByteStreams.newDataInput(e.getData());
-        JsonObject data = coinsPlugin.getGson().fromJson(in.readUTF(), JsonObject.class);
-        handleMessage(data);
+        List<JsonObject> data;
+        try {
+            data = codec.decodeProxy(e.getData());
+        } catch (JsonParseException ex) {
+            coinsPlugin.log("Received an invalid plugin message, make sure all servers use the same plugin version.");
+            coinsPlugin.debug(ex);
+            return;
+        }
+        messageExecutor.execute(() -> data.forEach(this::handle));
+    }
+
+    // the api handles the message, then local multiplier state is updated
+    private void handle(@NotNull JsonObject message) {
+        handleMessage(message);
+        plugin.handleMultiplierMessage(message);
     }
 
     @Override
     public void start() {
+        messageQueue.load();
         CoinsVelocityMain bootstrap = (CoinsVelocityMain) coinsPlugin.getBootstrap();
         bootstrap.getProxyServer().getEventManager().register(bootstrap, this);
         bootstrap.getProxyServer().getChannelRegistrar().register(channelIdentifier);
+        if (balanceAuthority != null) {
+            bootstrap.getProxyServer().getChannelRegistrar().register(balanceIdentifier);
+            balanceAuthority.start();
+        }
+        batcher.start();
     }
 
     @Override
     public void stop() {
         CoinsVelocityMain bootstrap = (CoinsVelocityMain) coinsPlugin.getBootstrap();
+        if (balanceAuthority != null) {
+            bootstrap.getProxyServer().getChannelRegistrar().unregister(balanceIdentifier);
+            balanceAuthority.stop();
+        }
+        batcher.stop();
         bootstrap.getProxyServer().getEventManager().unregisterListener(bootstrap, this);
         bootstrap.getProxyServer().getChannelRegistrar().unregister(channelIdentifier);
+        messageQueue.close();
+    }
+
+    @Override
+    public void publishUser(@NotNull UUID uuid, double coins) {
+        batcher.publishUser(uuid, coins);
     }
 
     @Override
     protected void sendMessage(String message, boolean wait) {
+        if (batcher.collect(message)) {
+            return;
+        }
         CoinsVelocityMain bootstrap = (CoinsVelocityMain) coinsPlugin.getBootstrap();
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeUTF(message);
         bootstrap.getProxyServer().getAllServers().forEach(registeredServer -> sendMessage(message, wait, registeredServer));
     }
 
     public void sendMessage(String message, boolean wait, @NotNull RegisteredServer server) {
-        ByteArrayDataOutput out = ByteStreams.newDataOutput();
-        out.writeUTF(message);
-        if (wait && !server.sendPluginMessage(channelIdentifier, out.toByteArray())) {
-            Queue<String> actualQueue = getMessageQueue().getOrDefault(server.getServerInfo().getName(), new LinkedList<>());
-            actualQueue.add(message);
-            getMessageQueue().put(server.getServerInfo().getName(), actualQueue);
+        if (wait && !server.sendPluginMessage(channelIdentifier, codec.encodeProxy(message))) {
+            messageQueue.offer(server.getServerInfo().getName(), message);
         }
     }
 
+    /**
+     * Send the messages that were queued because the server didn't have players online.
+     *
+     * @param server server to send the messages.
+     */
+    public void sendQueued(@NotNull RegisteredServer server) {
+        List<String> messages = messageQueue.drain(server.getServerInfo().getName());
+        if (!messages.isEmpty()) {
+            sendFrame(messages, server);
+        }
+    }
+
+    // old servers can't read frames, so they are only used with binary messages
+    private void sendFrame(@NotNull List<String> messages) {
+        CoinsVelocityMain bootstrap = (CoinsVelocityMain) coinsPlugin.getBootstrap();
+        bootstrap.getProxyServer().getAllServers().forEach(registeredServer -> sendFrame(messages, registeredServer));
+    }
+
+    private void sendFrame(@NotNull List<String> messages, @NotNull RegisteredServer server) {
+        if (!codec.isBinary()) {
+            messages.forEach(message -> sendMessage(message, true, server));
+        } else if (!server.sendPluginMessage(channelIdentifier, codec.encodeFrame(messages))) {
+            messages.forEach(message -> messageQueue.offer(server.getServerInfo().getName(), message));
+        }
+    }
+
+    @Nullable
+    public BalanceAuthority getBalanceAuthority() {
+        return balanceAuthority;
+    }
+
+    @NotNull
+    public MessageBatcher getBatcher() {
+        return batcher;
+    }
+
     @NotNull
-    public Map<String, Queue<String>> getMessageQueue() {
+    public OutboundQueue getMessageQueue() {
         return messageQueue;
     }
 }